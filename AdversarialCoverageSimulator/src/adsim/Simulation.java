@@ -61,6 +61,15 @@ public interface Simulation {
 	public void reloadSettings();
 
 
+	/**
+	 * Gets the context of the simulation, which holds its settings, stats, and random
+	 * number generator.
+	 * 
+	 * @return the context
+	 */
+	public SimulationContext getContext();
+
+
 	/**
 	 * Sets the environment for the simulation.
 	 * 
@@ -0,0 +1,134 @@
+package adsim;
+
+import java.util.Random;
+
+import simulations.coverage.CoverageStats;
+
+/**
+ * Everything a simulation needs from outside of itself: the settings it runs with, its
+ * stats, its random number generator, and the engine and console controller that drive
+ * it, if any. The objects that make up a simulation (environment, sensors, actuators,
+ * algorithms) get these from the context instead of from {@link SimulatorMain}, so
+ * simulations with separate contexts share no mutable state and can run on different
+ * threads.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class SimulationContext {
+	private final SimulatorSettings settings;
+	private final Random random;
+	private final ConsoleController controller;
+	private SimulatorEngine engine = null;
+	private CoverageStats stats = null;
+
+
+	/**
+	 * Creates a context
+	 *
+	 * @param settings
+	 *                the settings for the simulation
+	 * @param random
+	 *                the random number generator for the simulation
+	 * @param controller
+	 *                the console controller to register commands with, or null if
+	 *                the simulation should not be controllable from the console
+	 */
+	public SimulationContext(SimulatorSettings settings, Random random, ConsoleController controller) {
+		this.settings = settings;
+		this.random = random;
+		this.controller = controller;
+	}
+
+
+	/**
+	 * Creates a context for an interactive simulation, which uses the global settings
+	 * (so that changes made from the console take effect) and the global console
+	 * controller.
+	 *
+	 * @return the new context
+	 */
+	public static SimulationContext createDefault() {
+		return new SimulationContext(SimulatorMain.settings, new Random(), SimulatorMain.controller);
+	}
+
+
+	/**
+	 * Creates a context for a simulation that runs on its own, with a private copy of
+	 * the given settings, a seeded random number generator, and no console.
+	 *
+	 * @param settings
+	 *                the settings to copy
+	 * @param seed
+	 *                the seed for the random number generator
+	 * @return the new context
+	 */
+	public static SimulationContext createIsolated(SimulatorSettings settings, long seed) {
+		return new SimulationContext(new SimulatorSettings(settings), new Random(seed), null);
+	}
+
+
+	public SimulatorSettings getSettings() {
+		return this.settings;
+	}
+
+
+	public Random getRandom() {
+		return this.random;
+	}
+
+
+	/**
+	 * Gets the console controller for the simulation
+	 *
+	 * @return the controller, or null if the simulation has no console
+	 */
+	public ConsoleController getController() {
+		return this.controller;
+	}
+
+
+	/**
+	 * Gets the engine driving the simulation
+	 *
+	 * @return the engine, or null if the simulation is not run by an engine
+	 */
+	public SimulatorEngine getEngine() {
+		return this.engine;
+	}
+
+
+	public void setEngine(SimulatorEngine engine) {
+		this.engine = engine;
+	}
+
+
+	public CoverageStats getStats() {
+		return this.stats;
+	}
+
+
+	public void setStats(CoverageStats stats) {
+		this.stats = stats;
+	}
+
+
+	/**
+	 * Registers a console command, if the simulation has a console
+	 */
+	public void registerCommand(String command, TerminalCommand action) {
+		if (this.controller != null) {
+			this.controller.registerCommand(command, action);
+		}
+	}
+
+
+	/**
+	 * Runs a console command without echoing it, if the simulation has a console
+	 */
+	public void runCommand_noEcho(String cmdStr) {
+		if (this.controller != null) {
+			this.controller.runCommand_noEcho(cmdStr);
+		}
+	}
+}
@@ -12,6 +12,14 @@ public class SimulatorArgs {
 
 	public long MAX_STEPS = Long.MAX_VALUE;
 
+	/**
+	 * The number of runs to do in headless batch mode, or 0 to run normally
+	 */
+	public int BATCH_RUNS = 0;
+	public int BATCH_THREADS = Runtime.getRuntime().availableProcessors();
+	public boolean HAS_SEED = false;
+	public long SEED = 0;
+
 	public String SETTINGS_FILE = null;
 	public String RC_FILE = "";
 
@@ -44,6 +52,17 @@ public class SimulatorArgs {
 			} else if (this.origArgs[argNum].equals("--rcfile")) {
 				argNum++;
 				this.RC_FILE = this.origArgs[argNum];
+			} else if (this.origArgs[argNum].equals("--batch")) {
+				argNum++;
+				this.BATCH_RUNS = Integer.parseInt(this.origArgs[argNum]);
+				this.HEADLESS = true;
+			} else if (this.origArgs[argNum].equals("--threads")) {
+				argNum++;
+				this.BATCH_THREADS = Integer.parseInt(this.origArgs[argNum]);
+			} else if (this.origArgs[argNum].equals("--seed")) {
+				argNum++;
+				this.SEED = Long.parseLong(this.origArgs[argNum]);
+				this.HAS_SEED = true;
 			}
 
 			argNum++;
@@ -237,7 +237,7 @@ public class SimulatorEngine {
 
 	private void handleSimulationCompletion() {
 		this.simulation.onRunEnd();
-		CoverageStats stats = SimulatorMain.getStats();
+		CoverageStats stats = this.simulation.getContext().getStats();
 
 		refreshDisplay();
 
@@ -249,7 +249,10 @@ public class SimulatorEngine {
 
 	private void step() {
 		this.simulation.onStep();
-		SimulatorMain.getStats().updateTimeStep();
+		CoverageStats stats = this.simulation.getContext().getStats();
+		if (stats != null) {
+			stats.updateTimeStep();
+		}
 	}
 
 
@@ -1,6 +1,7 @@
 package adsim;
 
 import gridenv.GridEnvironment;
+import simulations.coverage.CoverageBatchRunner;
 import simulations.coverage.CoverageSimulation;
 import simulations.coverage.CoverageStats;
 
@@ -12,7 +13,6 @@ public class SimulatorMain {
 	public static ConsoleController controller = null;
 
 	GridEnvironment env = null;
-	private static CoverageStats stats;
 	private static SimulatorEngine engine = null;
 
 
@@ -33,6 +33,13 @@ public class SimulatorMain {
 		if (!args.RC_FILE.equals("")) {
 			SimulatorMain.controller.loadCommandFile(args.RC_FILE);
 		}
+
+		if (0 < args.BATCH_RUNS) {
+			// Batch mode runs its own simulations instead of the engine's, then exits
+			long seed = args.HAS_SEED ? args.SEED : System.nanoTime();
+			new CoverageBatchRunner(args.BATCH_RUNS, args.BATCH_THREADS, seed).run();
+			return;
+		}
 		SimulatorMain.controller.start();
 
 
@@ -53,12 +60,15 @@ public class SimulatorMain {
 	}
 
 
+	/**
+	 * Gets the stats of the simulation currently run by the engine
+	 * 
+	 * @return the stats, or null if the simulation has none
+	 */
 	public static CoverageStats getStats() {
-		return stats;
-	}
-
-
-	public static void setStats(CoverageStats stats) {
-		SimulatorMain.stats = stats;
+		if (engine == null || engine.getSimulation() == null) {
+			return null;
+		}
+		return engine.getSimulation().getContext().getStats();
 	}
 }
@@ -54,6 +54,20 @@ public class SimulatorSettings {
 	}
 
 
+	/**
+	 * Creates a snapshot of the given settings. Unlike the default constructor, no
+	 * console commands are registered, so later changes to either object do not
+	 * affect the other.
+	 * 
+	 * @param other
+	 *                the settings to copy
+	 */
+	public SimulatorSettings(SimulatorSettings other) {
+		this.settingsMap.putAll(other.settingsMap);
+		this.settingTypes.putAll(other.settingTypes);
+	}
+
+
 	private void registerConsoleCommands() {
 
 		ConsoleController controller = SimulatorMain.controller;
@@ -104,6 +118,11 @@ public class SimulatorSettings {
 		this.setInt("deepql.minibatch_seq.fullep.numCodes", -1);
 		this.setInt("deepql.external.rnn.num_codes_per_minibatch", 1);
 		this.setInt("deepql.nn_input.vision_radius", 5);
+		this.setInt("deepql.replay.priority.beta_annealing_minibatches", 100000);
+		this.setInt("deepql.external_torch_nn.shm_request_bytes", 1 << 20);
+		this.setInt("deepql.external_torch_nn.async_queue_size", 4096);
+		this.setInt("deepql.external_torch_nn.async_flush_transitions", 64);
+		this.setInt("deepql.external_torch_nn.async_flush_millis", 5);
 		this.setInt("env.grid.height", 5);
 		this.setInt("env.grid.maxheight", 5);
 		this.setInt("env.grid.maxwidth", 5);
@@ -114,7 +133,9 @@ public class SimulatorSettings {
 		this.setInt("logging.deepql.loss_display_interval", 500);
 		this.setInt("neuralnet.hidden_layer_size", 30);
 		this.setInt("neuralnet.num_hidden_layers", 2);
+		this.setInt("neuralnet.training_threads", 1);
 		this.setInt("robots.count", 1);
+		this.setInt("robots.two_phase_threads", 1);
 		this.setInt("stats.multirun.batch_size", 100);
 
 		this.setBoolean("autorun.do_repaint", false);
@@ -124,7 +145,11 @@ public class SimulatorSettings {
 		this.setBoolean("deepql.always_forward_nninput", false);
 		this.setBoolean("deepql.display.print_q_values", false);
 		this.setBoolean("deepql.external.use_fast_forwards", false);
+		this.setBoolean("deepql.external_torch_nn.binary_float32", false);
+		this.setBoolean("deepql.external_torch_nn.async_transitions", false);
 		this.setBoolean("deepql.nn_input.obstacle_layer", true);
+		this.setBoolean("deepql.replay.float_storage", false);
+		this.setBoolean("deepql.replay.prioritized", false);
 		this.setBoolean("deepql.use_external_qlearner", true);
 		this.setBoolean("display.show_binary_coverage", false);
 		this.setBoolean("deepql.statepreprocessor.attempt_normalization", true);
@@ -134,6 +159,7 @@ public class SimulatorSettings {
 		this.setBoolean("neuralnet.give_global_pos_and_size", false);
 		this.setBoolean("neuralnet.torch.use_partial_transitions", false);
 		this.setBoolean("robots.breakable", true);
+		this.setBoolean("robots.two_phase_steps", false);
 		this.setBoolean("rules.robots.robotsAreObstacles", true);
 
 		this.setDouble("deepql.discountfactor", 0.9);
@@ -141,6 +167,10 @@ public class SimulatorSettings {
 		this.setDouble("deepql.greedy_epsilon_minimum", 0.1);
 		this.setDouble("deepql.greedy_epsilon_start", 1.0);
 		this.setDouble("deepql.learning_rate_decay_factor", 1.0);
+		this.setDouble("deepql.replay.extra_frames_fraction", 0.25);
+		this.setDouble("deepql.replay.priority.alpha", 0.6);
+		this.setDouble("deepql.replay.priority.beta_start", 0.4);
+		this.setDouble("deepql.replay.priority.epsilon", 1e-4);
 		this.setDouble("deepql.reward.cover_again", -0.01);
 		this.setDouble("deepql.reward.cover_unique", 0.1);
 		this.setDouble("deepql.reward.death", -0.2);
@@ -156,8 +186,11 @@ public class SimulatorSettings {
 		this.setString("deepql.external_torch_nn.io_file_prefix", "/home/ai04/midarcy/prog/lua/scratch/environments/betatester/");
 		this.setString("deepql.external_torch_nn.nninput_file_name", "input2.dat");
 		this.setString("deepql.external_torch_nn.nnoutput_file_name", "output2.dat");
+		this.setString("deepql.external_torch_nn.protocol", "text");
+		this.setString("deepql.external_torch_nn.shm_file", "/dev/shm/adsim_external_nn");
 		this.setString("deepql.minibatch_seq_type", "manual");
 		this.setString("deepql.nn_setup_mode", "native");
+		this.setString("deepql.replay.file", "");
 		this.setString("deepql.statepreprocessor.vision_type", "CENTERED_SNAP_TO_EDGES");
 		this.setString("env.grid.dangervalues", "@o 0.00 @d 0.3 @r 0.00 0.25");
 		this.setString("hooks.env.post_init.cmd", "");
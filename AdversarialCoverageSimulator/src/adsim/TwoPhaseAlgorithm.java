@@ -0,0 +1,29 @@
+package adsim;
+
+/**
+ * An algorithm whose step can be split in two, so that an environment with several
+ * robots can get every robot ready to move before any of them moves. Work that the
+ * robots would otherwise each do on their own during the first half (such as asking an
+ * external network for Q-values) can then be done for all of them at once.
+ * <p>
+ * Calling {@link #prepareStep()} and then {@link #finishStep()} must do the same as
+ * {@link #step()}, except that the state seen by the first half may be from before
+ * other robots moved.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public interface TwoPhaseAlgorithm extends Algorithm {
+	/**
+	 * Looks at the environment and queues any work that can be shared with other
+	 * robots. Called for every robot before {@link #finishStep()} is called for any of
+	 * them.
+	 */
+	public void prepareStep();
+
+
+	/**
+	 * Decides on an action, using the results of the shared work, and takes it
+	 */
+	public void finishStep();
+}
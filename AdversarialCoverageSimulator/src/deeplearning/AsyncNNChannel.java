@@ -0,0 +1,351 @@
+package deeplearning;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends transitions from a writer thread of its own, so the simulation never waits on
+ * the pipe (or on formatting the message) after a step. Transitions are copied into a
+ * bounded single-producer, single-consumer queue, and the writer thread sends them to
+ * the wrapped channel with flushing turned off, flushing once it has sent enough
+ * transitions or the oldest unflushed one has waited long enough. If the external
+ * program falls behind and the queue fills up, the simulation waits for room.
+ * <p>
+ * Every other message waits until the queued transitions have been sent and flushed,
+ * and is then sent on the calling thread, so the external program sees the messages in
+ * the order they were sent. This helps most when transitions are streamed without
+ * waiting for replies (as with {@code ExternalDQL}); if something else is sent after
+ * every step, each step still waits for the writer. All methods must be called from
+ * the same thread.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+class AsyncNNChannel implements ExternalNNChannel {
+	private static final long PARK_NANOS = 20000;
+	private static final long EXIT_TIMEOUT_NANOS = 2000000000L;
+
+	private final ExternalNNChannel channel;
+	private final int capacity;
+	private final int flushTransitions;
+	private final long flushNanos;
+	private final Thread writerThread;
+
+	/**
+	 * The queued transitions, indexed by transition number modulo the capacity
+	 */
+	private final double[][] startStates;
+	private final boolean[] hasStartStates;
+	private final double[][] nextStates;
+	private final int[] actions;
+	private final double[] rewards;
+	private final boolean[] terminals;
+
+	/**
+	 * The number of transitions queued, sent, and flushed. Only the simulation thread
+	 * writes {@link #nQueued}, and only the writer thread writes the other two.
+	 */
+	private volatile long nQueued = 0;
+	private volatile long nSent = 0;
+	private volatile long nFlushed = 0;
+	private volatile boolean flushRequested = false;
+	private volatile boolean writerWaiting = false;
+	private volatile boolean simulationWaiting = false;
+	private volatile Thread simulationThread = null;
+
+
+	/**
+	 * Wraps a channel and starts its writer thread
+	 *
+	 * @param channel
+	 *                the channel to send messages on
+	 * @param capacity
+	 *                the number of transitions that can be queued before the
+	 *                simulation has to wait
+	 * @param flushTransitions
+	 *                the number of transitions to send before flushing
+	 * @param flushMillis
+	 *                the longest a sent transition can wait to be flushed
+	 */
+	public AsyncNNChannel(ExternalNNChannel channel, int capacity, int flushTransitions, int flushMillis) {
+		this.channel = channel;
+		this.capacity = Math.max(1, capacity);
+		this.flushTransitions = Math.max(1, flushTransitions);
+		this.flushNanos = Math.max(0, flushMillis) * 1000000L;
+
+		this.startStates = new double[this.capacity][];
+		this.hasStartStates = new boolean[this.capacity];
+		this.nextStates = new double[this.capacity][];
+		this.actions = new int[this.capacity];
+		this.rewards = new double[this.capacity];
+		this.terminals = new boolean[this.capacity];
+
+		this.channel.setAutoFlush(false);
+		this.writerThread = new Thread("ExternalNN transition writer") {
+			@Override
+			public void run() {
+				writeTransitions();
+			}
+		};
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+
+		// The writer is a daemon thread, so it has to be given a chance to send what
+		// is left in the queue when the simulator exits
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				finishOnExit();
+			}
+		});
+	}
+
+
+	@Override
+	public void sendTransition(double[] startState, int action, double reward, boolean isTerminal,
+			double[] nextState) {
+		long transitionNum = this.nQueued;
+		if (this.capacity <= transitionNum - this.nSent) {
+			// The external program is falling behind. The writer wakes this thread up
+			// once the queue is half empty, so the threads don't take turns for every
+			// transition.
+			this.simulationThread = Thread.currentThread();
+			this.wakeWriter();
+			while (this.capacity <= transitionNum - this.nSent) {
+				this.simulationWaiting = true;
+				if (this.capacity <= transitionNum - this.nSent) {
+					LockSupport.park(this);
+				}
+				this.simulationWaiting = false;
+			}
+		}
+
+		int slot = (int) (transitionNum % this.capacity);
+		this.hasStartStates[slot] = (startState != null);
+		if (startState != null) {
+			this.startStates[slot] = copyInto(this.startStates[slot], startState);
+		}
+		if (!isTerminal) {
+			this.nextStates[slot] = copyInto(this.nextStates[slot], nextState);
+		}
+		this.actions[slot] = action;
+		this.rewards[slot] = reward;
+		this.terminals[slot] = isTerminal;
+
+		// Waking the writer costs a system call, so it is only woken when it has
+		// nothing to do or there are enough transitions to flush. Otherwise it wakes up
+		// on its own in time to flush the ones it has sent.
+		this.nQueued = transitionNum + 1;
+		if (this.writerWaiting
+				&& (this.nFlushed == this.nSent || this.flushTransitions <= this.nQueued - this.nSent)) {
+			this.wakeWriter();
+		}
+	}
+
+
+	@Override
+	public void sendFeedForward(double[] inputs) {
+		this.drain();
+		this.channel.sendFeedForward(inputs);
+		this.channel.flush();
+	}
+
+
+	@Override
+	public void sendFeedForwardBatch(double[] inputs, int nStates, int stateSize) {
+		this.drain();
+		this.channel.sendFeedForwardBatch(inputs, nStates, stateSize);
+		this.channel.flush();
+	}
+
+
+	@Override
+	public void sendFeedForwardNoState() {
+		this.drain();
+		this.channel.sendFeedForwardNoState();
+		this.channel.flush();
+	}
+
+
+	@Override
+	public void sendBackPropagate(double[] correctOutputs) {
+		this.drain();
+		this.channel.sendBackPropagate(correctOutputs);
+		this.channel.flush();
+	}
+
+
+	@Override
+	public void sendCode(String code) {
+		this.drain();
+		this.channel.sendCode(code);
+		this.channel.flush();
+	}
+
+
+	@Override
+	public void sendForget() {
+		this.drain();
+		this.channel.sendForget();
+		this.channel.flush();
+	}
+
+
+	@Override
+	public double[] readOutputs() {
+		this.drain();
+		return this.channel.readOutputs();
+	}
+
+
+	@Override
+	public double[][] readOutputsBatch(int nStates) {
+		this.drain();
+		return this.channel.readOutputsBatch(nStates);
+	}
+
+
+	@Override
+	public void setAutoFlush(boolean autoFlush) {
+		// Everything but transitions is always flushed, and transitions are flushed by
+		// the writer thread
+	}
+
+
+	@Override
+	public void flush() {
+		this.drain();
+	}
+
+
+	/**
+	 * Waits until every queued transition has been sent and flushed, after which the
+	 * writer thread leaves the wrapped channel alone until another transition is
+	 * queued
+	 */
+	private void drain() {
+		if (this.nFlushed == this.nQueued) {
+			return;
+		}
+		this.flushRequested = true;
+		this.wakeWriter();
+		this.simulationThread = Thread.currentThread();
+		while (this.nFlushed != this.nQueued) {
+			this.simulationWaiting = true;
+			if (this.nFlushed != this.nQueued) {
+				LockSupport.park(this);
+			}
+			this.simulationWaiting = false;
+		}
+		this.flushRequested = false;
+	}
+
+
+	/**
+	 * Waits for a while for the queued transitions to be sent, without waiting forever
+	 * if the external program has stopped reading
+	 */
+	private void finishOnExit() {
+		long deadline = System.nanoTime() + EXIT_TIMEOUT_NANOS;
+		this.flushRequested = true;
+		this.wakeWriter();
+		while (this.nFlushed != this.nQueued && System.nanoTime() < deadline) {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+	}
+
+
+	/**
+	 * The loop of the writer thread
+	 */
+	private void writeTransitions() {
+		long oldestUnflushedTime = 0;
+		while (true) {
+			long transitionNum = this.nSent;
+			if (transitionNum < this.nQueued) {
+				this.sendQueuedTransition((int) (transitionNum % this.capacity));
+				this.nSent = transitionNum + 1;
+				if (this.simulationWaiting && this.nQueued - this.nSent <= this.capacity / 2) {
+					this.simulationWaiting = false;
+					LockSupport.unpark(this.simulationThread);
+				}
+				if (transitionNum == this.nFlushed) {
+					oldestUnflushedTime = System.nanoTime();
+				}
+				if (this.flushTransitions <= this.nSent - this.nFlushed
+						|| this.flushNanos <= System.nanoTime() - oldestUnflushedTime) {
+					this.flushSent();
+				}
+				continue;
+			}
+
+			long waitNanos = 0;
+			if (this.nFlushed < this.nSent) {
+				waitNanos = this.flushNanos - (System.nanoTime() - oldestUnflushedTime);
+				if (waitNanos <= 0 || this.flushRequested) {
+					this.flushSent();
+					continue;
+				}
+			}
+
+			// Checked again after announcing the wait, so a wake-up in between can't be
+			// missed
+			this.writerWaiting = true;
+			if (this.nSent == this.nQueued && !this.flushRequested) {
+				if (waitNanos == 0) {
+					LockSupport.park(this);
+				} else {
+					LockSupport.parkNanos(this, Math.max(PARK_NANOS, waitNanos));
+				}
+			}
+			this.writerWaiting = false;
+		}
+	}
+
+
+	/**
+	 * Wakes the writer thread if it's waiting. The flag is cleared first, so the
+	 * simulation doesn't keep waking it (at the cost of a system call each time) before
+	 * it gets to run.
+	 */
+	private void wakeWriter() {
+		this.writerWaiting = false;
+		LockSupport.unpark(this.writerThread);
+	}
+
+
+	private void sendQueuedTransition(int slot) {
+		try {
+			this.channel.sendTransition(this.hasStartStates[slot] ? this.startStates[slot] : null, this.actions[slot],
+					this.rewards[slot], this.terminals[slot], this.nextStates[slot]);
+		} catch (RuntimeException e) {
+			// Dropping the transition is better than leaving the simulation waiting
+			// forever for the queue to empty
+			System.err.println("Failed to send transition to external NN.");
+			e.printStackTrace();
+		}
+	}
+
+
+	private void flushSent() {
+		long sent = this.nSent;
+		try {
+			this.channel.flush();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+		this.nFlushed = sent;
+		if (this.simulationWaiting) {
+			this.simulationWaiting = false;
+			LockSupport.unpark(this.simulationThread);
+		}
+	}
+
+
+	private static double[] copyInto(double[] dest, double[] src) {
+		if (dest == null || dest.length != src.length) {
+			dest = new double[src.length];
+		}
+		System.arraycopy(src, 0, dest, 0, src.length);
+		return dest;
+	}
+}
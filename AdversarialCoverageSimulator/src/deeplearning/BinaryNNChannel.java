@@ -0,0 +1,364 @@
+package deeplearning;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A binary protocol, which avoids formatting and parsing every value as text. Every
+ * message is a frame of:
+ *
+ * <pre>
+ * int32   length of the rest of the frame
+ * uint8   opcode
+ * ...     payload
+ * </pre>
+ *
+ * All numbers are little-endian, and real values are float64 or float32 depending on how
+ * the channel was created. Arrays of values are sent as an int32 count followed by the
+ * values. The payloads are:
+ *
+ * <pre>
+ * FEED_FORWARD            values
+ * FEED_FORWARD_BATCH      int32 number of states, values (all of the states)
+ * FEED_FORWARD_NOSTATE    (none)
+ * BACKPROPAGATE           values
+ * TRANSITION              values (start state), int32 action, real reward,
+ *                         uint8 terminal, values (next state, only if not terminal)
+ * TRANSITION_NOSTARTSTATE the same as TRANSITION, without the start state
+ * FORGET                  (none)
+ * CODE                    int32 length, UTF-8 code (such as a minibatch code)
+ * </pre>
+ *
+ * Replies to feed forwards are frames with no opcode, holding just the values of the
+ * outputs (for a batch, the outputs for each state, one after another).
+ * <p>
+ * Frames are sent over a pair of byte channels (such as named pipes). Subclasses can
+ * move them some other way by overriding {@link #startFrame}, {@link #finishFrame}, and
+ * {@link #readReplyFrame}.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+class BinaryNNChannel implements ExternalNNChannel {
+	static final byte OP_FEED_FORWARD = 1;
+	static final byte OP_FEED_FORWARD_NOSTATE = 2;
+	static final byte OP_BACKPROPAGATE = 3;
+	static final byte OP_TRANSITION = 4;
+	static final byte OP_TRANSITION_NOSTARTSTATE = 5;
+	static final byte OP_FORGET = 6;
+	static final byte OP_CODE = 7;
+	static final byte OP_FEED_FORWARD_BATCH = 8;
+
+	/**
+	 * How large the output buffer may grow to hold frames held back by
+	 * {@link #setAutoFlush(boolean)}
+	 */
+	private static final int MAX_PENDING_BYTES = 1 << 16;
+
+	private final WritableByteChannel out;
+	private final ReadableByteChannel in;
+	protected final boolean useFloat32;
+	private final int valueSize;
+	private boolean autoFlush = true;
+	/**
+	 * Frames waiting to be sent, from the start of the buffer to its position
+	 */
+	private ByteBuffer outBuf = ByteBuffer.allocateDirect(4096).order(ByteOrder.LITTLE_ENDIAN);
+	private ByteBuffer inBuf = ByteBuffer.allocateDirect(256).order(ByteOrder.LITTLE_ENDIAN);
+	/**
+	 * The buffer the current frame is being written into
+	 */
+	private ByteBuffer frame = null;
+
+
+	/**
+	 * Creates a binary channel
+	 *
+	 * @param out
+	 *                the channel to send messages on
+	 * @param in
+	 *                the channel to read replies from
+	 * @param useFloat32
+	 *                whether to send real values as float32 instead of float64
+	 */
+	public BinaryNNChannel(WritableByteChannel out, ReadableByteChannel in, boolean useFloat32) {
+		this.out = out;
+		this.in = in;
+		this.useFloat32 = useFloat32;
+		this.valueSize = useFloat32 ? 4 : 8;
+	}
+
+
+	@Override
+	public void sendFeedForward(double[] inputs) {
+		this.beginFrame(OP_FEED_FORWARD, this.sizeOfValues(inputs));
+		this.putValues(inputs);
+		this.sendFrame();
+	}
+
+
+	@Override
+	public void sendFeedForwardBatch(double[] inputs, int nStates, int stateSize) {
+		int nValues = nStates * stateSize;
+		this.beginFrame(OP_FEED_FORWARD_BATCH, 4 + 4 + nValues * this.valueSize);
+		this.frame.putInt(nStates);
+		this.frame.putInt(nValues);
+		for (int i = 0; i < nValues; i++) {
+			this.putValue(inputs[i]);
+		}
+		this.sendFrame();
+	}
+
+
+	@Override
+	public void sendFeedForwardNoState() {
+		this.beginFrame(OP_FEED_FORWARD_NOSTATE, 0);
+		this.sendFrame();
+	}
+
+
+	@Override
+	public void sendBackPropagate(double[] correctOutputs) {
+		this.beginFrame(OP_BACKPROPAGATE, this.sizeOfValues(correctOutputs));
+		this.putValues(correctOutputs);
+		this.sendFrame();
+	}
+
+
+	@Override
+	public void sendTransition(double[] startState, int action, double reward, boolean isTerminal,
+			double[] nextState) {
+		int payloadSize = 4 + this.valueSize + 1;
+		if (startState != null) {
+			payloadSize += this.sizeOfValues(startState);
+		}
+		if (!isTerminal) {
+			payloadSize += this.sizeOfValues(nextState);
+		}
+
+		this.beginFrame(startState == null ? OP_TRANSITION_NOSTARTSTATE : OP_TRANSITION, payloadSize);
+		if (startState != null) {
+			this.putValues(startState);
+		}
+		this.frame.putInt(action);
+		this.putValue(reward);
+		this.frame.put((byte) (isTerminal ? 1 : 0));
+		if (!isTerminal) {
+			this.putValues(nextState);
+		}
+		this.sendFrame();
+	}
+
+
+	@Override
+	public void sendCode(String code) {
+		byte[] codeBytes = code.getBytes(StandardCharsets.UTF_8);
+		this.beginFrame(OP_CODE, 4 + codeBytes.length);
+		this.frame.putInt(codeBytes.length);
+		this.frame.put(codeBytes);
+		this.sendFrame();
+	}
+
+
+	@Override
+	public void sendForget() {
+		this.beginFrame(OP_FORGET, 0);
+		this.sendFrame();
+	}
+
+
+	@Override
+	public double[] readOutputs() {
+		try {
+			ByteBuffer reply = this.readReplyFrame();
+			if (reply == null) {
+				return null;
+			}
+			int nValues = reply.getInt();
+			double[] outputs = new double[nValues];
+			for (int i = 0; i < nValues; i++) {
+				outputs[i] = this.useFloat32 ? reply.getFloat() : reply.getDouble();
+			}
+			return outputs;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+
+	@Override
+	public void setAutoFlush(boolean autoFlush) {
+		this.autoFlush = autoFlush;
+	}
+
+
+	@Override
+	public void flush() {
+		try {
+			this.writePendingFrames();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	@Override
+	public double[][] readOutputsBatch(int nStates) {
+		double[] allOutputs = this.readOutputs();
+		if (allOutputs == null) {
+			return null;
+		}
+		int nOutputs = allOutputs.length / nStates;
+		double[][] outputs = new double[nStates][];
+		for (int i = 0; i < nStates; i++) {
+			outputs[i] = Arrays.copyOfRange(allOutputs, i * nOutputs, (i + 1) * nOutputs);
+		}
+		return outputs;
+	}
+
+
+	/**
+	 * Waits for the next reply
+	 *
+	 * @return a buffer positioned at the start of the reply's contents (just after its
+	 *         length), or null if the end of the stream was reached
+	 */
+	protected ByteBuffer readReplyFrame() throws IOException {
+		// The reply won't come until the request is sent
+		this.writePendingFrames();
+		if (!this.readFully(4)) {
+			return null;
+		}
+		int frameLength = this.inBuf.getInt();
+		if (!this.readFully(frameLength)) {
+			return null;
+		}
+		return this.inBuf;
+	}
+
+
+	/**
+	 * Reads exactly the given number of bytes into the input buffer, and flips it
+	 *
+	 * @return false if the end of the stream was reached first
+	 */
+	private boolean readFully(int nBytes) throws IOException {
+		if (this.inBuf.capacity() < nBytes) {
+			this.inBuf = ByteBuffer.allocateDirect(nBytes).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		this.inBuf.clear();
+		this.inBuf.limit(nBytes);
+		while (this.inBuf.hasRemaining()) {
+			if (this.in.read(this.inBuf) < 0) {
+				return false;
+			}
+		}
+		this.inBuf.flip();
+		return true;
+	}
+
+
+	private int sizeOfValues(double[] values) {
+		return 4 + values.length * this.valueSize;
+	}
+
+
+	private void beginFrame(byte opcode, int payloadSize) {
+		this.frame = this.startFrame(4 + 1 + payloadSize);
+		this.frame.putInt(1 + payloadSize);
+		this.frame.put(opcode);
+	}
+
+
+	private void putValues(double[] values) {
+		this.frame.putInt(values.length);
+		for (int i = 0; i < values.length; i++) {
+			this.putValue(values[i]);
+		}
+	}
+
+
+	private void putValue(double value) {
+		if (this.useFloat32) {
+			this.frame.putFloat((float) value);
+		} else {
+			this.frame.putDouble(value);
+		}
+	}
+
+
+	private void sendFrame() {
+		try {
+			this.finishFrame(this.frame);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		this.frame = null;
+	}
+
+
+	/**
+	 * Gets a buffer to write the next frame into
+	 *
+	 * @param frameSize
+	 *                the size of the frame in bytes
+	 * @return a little-endian buffer positioned where the frame should start, with
+	 *         room for the whole frame (after any frames held back by
+	 *         {@link #setAutoFlush(boolean)})
+	 */
+	protected ByteBuffer startFrame(int frameSize) {
+		if (this.outBuf.remaining() < frameSize && !this.autoFlush && this.outBuf.capacity() < MAX_PENDING_BYTES) {
+			// Make room for a batch of frames instead of sending a few at a time
+			ByteBuffer newBuf = ByteBuffer
+					.allocateDirect(Math.max(MAX_PENDING_BYTES, this.outBuf.position() + frameSize))
+					.order(ByteOrder.LITTLE_ENDIAN);
+			this.outBuf.flip();
+			newBuf.put(this.outBuf);
+			this.outBuf = newBuf;
+		}
+		if (this.outBuf.remaining() < frameSize) {
+			try {
+				this.writePendingFrames();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if (this.outBuf.capacity() < frameSize) {
+			this.outBuf = ByteBuffer.allocateDirect(Math.max(frameSize, 2 * this.outBuf.capacity()))
+					.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return this.outBuf;
+	}
+
+
+	/**
+	 * Sends a frame once it has been written
+	 *
+	 * @param frameBuf
+	 *                the buffer from {@link #startFrame}, positioned at the end of
+	 *                the frame
+	 */
+	protected void finishFrame(ByteBuffer frameBuf) throws IOException {
+		if (this.autoFlush) {
+			this.writePendingFrames();
+		}
+	}
+
+
+	private void writePendingFrames() throws IOException {
+		this.outBuf.flip();
+		try {
+			while (this.outBuf.hasRemaining()) {
+				this.out.write(this.outBuf);
+			}
+		} finally {
+			this.outBuf.clear();
+		}
+	}
+}
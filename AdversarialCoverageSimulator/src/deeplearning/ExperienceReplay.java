@@ -0,0 +1,90 @@
+package deeplearning;
+
+import java.util.Random;
+
+/**
+ * Storage for the transitions a deep Q-learner trains on
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public interface ExperienceReplay {
+	/**
+	 * Adds a transition, dropping the oldest one if the storage is full. The states
+	 * are copied, so the arrays may be reused by the caller.
+	 *
+	 * @param state
+	 *                the state the action was taken in
+	 * @param action
+	 *                the action taken
+	 * @param reward
+	 *                the reward received for the action
+	 * @param isTerminal
+	 *                whether the action ended the episode
+	 * @param nextState
+	 *                the state after the action was taken
+	 */
+	public void add(double[] state, int action, double reward, boolean isTerminal, double[] nextState);
+
+
+	/**
+	 * Samples transitions uniformly at random (with replacement) into the given
+	 * buffers. The states of sample {@code i} are written at offset
+	 * {@code i * getStateSize()} of the state buffers.
+	 *
+	 * @param randgen
+	 *                the random number generator to pick samples with
+	 * @param batchSize
+	 *                the number of samples
+	 * @param states
+	 *                the buffer for the start states
+	 * @param nextStates
+	 *                the buffer for the next states
+	 * @param actions
+	 *                the buffer for the actions
+	 * @param rewards
+	 *                the buffer for the rewards
+	 * @param terminals
+	 *                the buffer for the terminal flags
+	 */
+	public void sample(Random randgen, int batchSize, double[] states, double[] nextStates, int[] actions,
+			double[] rewards, boolean[] terminals);
+
+
+	/**
+	 * Copies one stored transition into sample {@code sampleNum} of the given
+	 * buffers, in the same layout as {@link #sample}
+	 *
+	 * @param slot
+	 *                the slot of the transition, which for transition number
+	 *                {@code n} is {@code n % getCapacity()}
+	 */
+	public void read(int slot, int sampleNum, double[] states, double[] nextStates, int[] actions, double[] rewards,
+			boolean[] terminals);
+
+
+	/**
+	 * Gets the number of transitions that can currently be sampled. These are always
+	 * the most recently added ones.
+	 */
+	public int size();
+
+
+	/**
+	 * Gets the maximum number of transitions that can be stored, which is also the
+	 * number of slots
+	 */
+	public int getCapacity();
+
+
+	/**
+	 * Gets the number of transitions that have ever been added
+	 */
+	public long getTransitionCount();
+
+
+	/**
+	 * Gets the length of each stored state
+	 */
+	public int getStateSize();
+}
@@ -0,0 +1,101 @@
+package deeplearning;
+
+/**
+ * The connection between an {@link ExternalTorchNN} and the external program that runs
+ * the network. Each method sends one message (or reads one reply), in whatever format
+ * the channel uses.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+interface ExternalNNChannel {
+	/**
+	 * Sends a state to be fed forward (code {@code f})
+	 */
+	public void sendFeedForward(double[] inputs);
+
+
+	/**
+	 * Sends several states to be fed forward at once (code {@code f_batch})
+	 *
+	 * @param inputs
+	 *                the states, one after another
+	 * @param nStates
+	 *                the number of states
+	 * @param stateSize
+	 *                the length of each state
+	 */
+	public void sendFeedForwardBatch(double[] inputs, int nStates, int stateSize);
+
+
+	/**
+	 * Asks for the last state sent to be fed forward again (code {@code f_nostate})
+	 */
+	public void sendFeedForwardNoState();
+
+
+	/**
+	 * Sends the correct outputs for the last state fed forward (code {@code b})
+	 */
+	public void sendBackPropagate(double[] correctOutputs);
+
+
+	/**
+	 * Sends a transition (code {@code t}, or {@code t_nostartstate} if the start state
+	 * is left out)
+	 *
+	 * @param startState
+	 *                the start state, or null to leave it out (the external program
+	 *                then uses the next state of the last transition)
+	 * @param action
+	 *                the action taken, numbered from 1
+	 * @param nextState
+	 *                the next state, which is left out if the transition is terminal
+	 */
+	public void sendTransition(double[] startState, int action, double reward, boolean isTerminal,
+			double[] nextState);
+
+
+	/**
+	 * Sends a code that isn't part of the protocol, such as a minibatch code or a
+	 * command typed into the console
+	 */
+	public void sendCode(String code);
+
+
+	/**
+	 * Tells the external program to forget its recurrent state (code {@code forget})
+	 */
+	public void sendForget();
+
+
+	/**
+	 * Waits for the outputs of the last feed forward
+	 *
+	 * @return the outputs, or null if none could be read
+	 */
+	public double[] readOutputs();
+
+
+	/**
+	 * Waits for the outputs of the last batch fed forward
+	 *
+	 * @param nStates
+	 *                the number of states in the batch
+	 * @return the outputs for each state, or null if they couldn't be read
+	 */
+	public double[][] readOutputsBatch(int nStates);
+
+
+	/**
+	 * Sets whether each message is sent as soon as it has been written (the default), or
+	 * held back until {@link #flush()} so that several messages can be sent at once
+	 */
+	public void setAutoFlush(boolean autoFlush);
+
+
+	/**
+	 * Sends any messages held back since the last flush
+	 */
+	public void flush();
+}
@@ -1,55 +1,181 @@
 package deeplearning;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.util.InputMismatchException;
-import java.util.Scanner;
-
-import adsim.SimulatorMain;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import adsim.SimulationContext;
+import adsim.SimulatorSettings;
 import adsim.TerminalCommand;
 
-import java.io.BufferedReader;
-import java.io.*;
-
 /**
  * A Neural Network class, implemented with an external program that can be communicated
- * with via a pipe.
+ * with via a pipe. Messages are sent either as text lines or, for less overhead per
+ * step, in the binary format described in {@link BinaryNNChannel}, over the pipe or
+ * through shared memory ({@link SharedMemoryNNChannel}), depending on the setting
+ * {@code deepql.external_torch_nn.protocol}. Transitions can also be sent from a
+ * separate thread ({@link AsyncNNChannel}), so the simulation doesn't wait on the pipe.
  * 
  * @author Mike D"Arcy
  *
  */
 public class ExternalTorchNN extends NeuralNet {
+	/**
+	 * Connections shared by several robots, by the name of the file they send to
+	 */
+	private static final Map<String, ExternalTorchNN> sharedInstances = new HashMap<>();
+
 	String outFilename;
 	String inFilename;
-	PrintWriter outWriter = new PrintWriter(System.out);
-	Scanner inReader = new Scanner(System.in);
-	BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-	StringBuilder outMsg = new StringBuilder("");
+	private final SimulatorSettings settings;
+	private final ExternalNNChannel channel;
+
+	/**
+	 * States queued with {@link #queueFeedForward(double[])}, one after another, and the
+	 * outputs for them once the batch has been sent
+	 */
+	private double[] batchInputs = new double[0];
+	private int batchSize = 0;
+	private int batchStateSize = 0;
+	private double[][] batchOutputs = null;
 
 
 	public ExternalTorchNN(String outFile, String inFile) {
-		this.registerCustomCommands();
+		this(outFile, inFile, SimulationContext.createDefault());
+	}
+
+
+	/**
+	 * Connects to the external program through the given files (usually named pipes)
+	 *
+	 * @param outFile
+	 *                the file to send messages to
+	 * @param inFile
+	 *                the file to read replies from
+	 * @param context
+	 *                the context of the simulation that uses the network, to get the
+	 *                protocol and minibatch code from and to register console
+	 *                commands with
+	 */
+	public ExternalTorchNN(String outFile, String inFile, SimulationContext context) {
+		final SimulatorSettings settings = context.getSettings();
+		this.registerCustomCommands(context);
+		this.loadSettings(settings);
 
 		this.outFilename = outFile;
 		this.inFilename = inFile;
+		this.settings = settings;
+
+		String protocol = settings.getString("deepql.external_torch_nn.protocol");
+		boolean useFloat32 = settings.getBoolean("deepql.external_torch_nn.binary_float32");
+		ExternalNNChannel channel = null;
+		if (protocol.equalsIgnoreCase("binary")) {
+			channel = this.openBinaryChannel(useFloat32);
+		} else if (protocol.equalsIgnoreCase("shm")) {
+			channel = this.openSharedMemoryChannel(settings.getString("deepql.external_torch_nn.shm_file"),
+					settings.getInt("deepql.external_torch_nn.shm_request_bytes"), useFloat32);
+		} else if (!protocol.equalsIgnoreCase("text")) {
+			System.err.printf("Unknown protocol %s for external NN. Using text instead.\n", protocol);
+		}
+		if (channel == null) {
+			channel = this.openTextChannel();
+		}
+		if (settings.getBoolean("deepql.external_torch_nn.async_transitions")) {
+			channel = new AsyncNNChannel(channel, settings.getInt("deepql.external_torch_nn.async_queue_size"),
+					settings.getInt("deepql.external_torch_nn.async_flush_transitions"),
+					settings.getInt("deepql.external_torch_nn.async_flush_millis"));
+		}
+		this.channel = channel;
+	}
+
+
+	/**
+	 * Gets a connection to the external program that is shared with everything else
+	 * that sends to the same file, creating it if needed. Robots that batch their feed
+	 * forwards together have to share a connection, and so do robots that send
+	 * transitions from a writer thread, since separate writer threads would write
+	 * their frames to the pipe at the same time.
+	 *
+	 * @see #ExternalTorchNN(String, String, SimulationContext)
+	 */
+	public static synchronized ExternalTorchNN getSharedInstance(String outFile, String inFile,
+			SimulationContext context) {
+		ExternalTorchNN nn = sharedInstances.get(outFile);
+		if (nn == null) {
+			nn = new ExternalTorchNN(outFile, inFile, context);
+			sharedInstances.put(outFile, nn);
+		}
+		return nn;
+	}
+
+
+	private ExternalNNChannel openTextChannel() {
+		PrintWriter outWriter = new PrintWriter(System.out);
+		BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
 
 		try {
-			this.outWriter = new PrintWriter(new File(this.outFilename));
+			outWriter = new PrintWriter(new File(this.outFilename));
 		} catch (FileNotFoundException e) {
 			System.err.printf("Failed to find file %s. Using STDOUT instead.\n", this.outFilename);
 		}
 
 		try {
-			this.br = new BufferedReader(new FileReader(this.inFilename));
+			br = new BufferedReader(new FileReader(this.inFilename));
 		} catch (FileNotFoundException e) {
 			System.err.printf("Failed to find file %s. Using STDIN instead.\n", this.inFilename);
 		}
+
+		return new TextNNChannel(outWriter, br);
+	}
+
+
+	private ExternalNNChannel openBinaryChannel(boolean useFloat32) {
+		WritableByteChannel out = Channels.newChannel(System.out);
+		ReadableByteChannel in = Channels.newChannel(System.in);
+
+		// Opened in the same order as the text files, since opening a named pipe
+		// waits for the other end
+		try {
+			out = new FileOutputStream(this.outFilename).getChannel();
+		} catch (FileNotFoundException e) {
+			System.err.printf("Failed to find file %s. Using STDOUT instead.\n", this.outFilename);
+		}
+
+		try {
+			in = new FileInputStream(this.inFilename).getChannel();
+		} catch (FileNotFoundException e) {
+			System.err.printf("Failed to find file %s. Using STDIN instead.\n", this.inFilename);
+		}
+
+		return new BinaryNNChannel(out, in, useFloat32);
 	}
 
 
-	private void registerCustomCommands() {
-		SimulatorMain.controller.registerCommand(":ExternalTorchNN_sendCommand", new TerminalCommand() {
+	private ExternalNNChannel openSharedMemoryChannel(String filename, int requestBytes, boolean useFloat32) {
+		try {
+			return new SharedMemoryNNChannel(new File(filename), requestBytes, useFloat32);
+		} catch (IOException e) {
+			System.err.printf("Failed to map shared file %s. Using text instead.\n", filename);
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+
+	private void registerCustomCommands(SimulationContext context) {
+		context.registerCommand(":ExternalTorchNN_sendCommand", new TerminalCommand() {
 			@Override
 			public void execute(String[] args) {
 				if (args.length < 1) {
@@ -62,125 +188,95 @@ public class ExternalTorchNN extends NeuralNet {
 
 
 	private void sendCommand(String code) {
-		this.outWriter.printf("%s\n", code);
-		this.outWriter.flush();
+		this.channel.sendCode(code);
 	}
 
 
 	@Override
 	public void feedForward(double[] inputs) {
-		this.outMsg.append("f\n");
-		for (int i = 0; i < inputs.length; i++) {
-			this.outMsg.append(String.format("%a ", inputs[i]));
-		}
-
-		this.outMsg.append('\n');
-		this.outWriter.print(this.outMsg.toString());
-		this.outWriter.flush();
-		this.outMsg.setLength(0);
+		this.channel.sendFeedForward(inputs);
 	}
 	
 	
 	public void feedForward_noSendState() {
-		this.outWriter.print("f_nostate\n");
-		this.outWriter.flush();
+		this.channel.sendFeedForwardNoState();
 	}
 
 
 	@Override
 	public double[] getOutputs() {
-		// Make an array with the same size as the last layer of the
-		// network
-		double[] outputs = new double[5];
-		Scanner s = null;
-		String str = "";
-		try {
-			str = this.br.readLine();
-			if (str != null) {
-				s = new Scanner(str);
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		return this.channel.readOutputs();
+	}
 
-		if (s == null) {
-			return null;
+
+	/**
+	 * Adds a state to the batch to be fed forward the next time
+	 * {@link #getQueuedOutputs(int)} is called, so that several robots can get their
+	 * outputs with one round trip to the external program. Once a batch has been sent,
+	 * the next state queued starts a new one. States can be queued from several threads
+	 * at once.
+	 *
+	 * @return the position of the state in the batch, to get its outputs with
+	 */
+	public synchronized int queueFeedForward(double[] inputs) {
+		if (this.batchOutputs != null || this.batchStateSize != inputs.length) {
+			this.batchOutputs = null;
+			this.batchSize = 0;
+			this.batchStateSize = inputs.length;
+		}
+		if (this.batchInputs.length < (this.batchSize + 1) * inputs.length) {
+			this.batchInputs = Arrays.copyOf(this.batchInputs, 2 * (this.batchSize + 1) * inputs.length);
 		}
+		System.arraycopy(inputs, 0, this.batchInputs, this.batchSize * inputs.length, inputs.length);
+		this.batchSize++;
+		return this.batchSize - 1;
+	}
 
-		try {
-			for (int i = 0; i < outputs.length; i++) {
-				outputs[i] = s.nextDouble();
+
+	/**
+	 * Gets the outputs for a queued state, sending the batch it's in first if that
+	 * hasn't been done yet
+	 *
+	 * @param batchIndex
+	 *                the position returned by {@link #queueFeedForward(double[])}
+	 * @return the outputs, or null if they couldn't be read
+	 */
+	public synchronized double[] getQueuedOutputs(int batchIndex) {
+		if (this.batchOutputs == null) {
+			if (this.batchSize == 1) {
+				this.channel.sendFeedForward(Arrays.copyOf(this.batchInputs, this.batchStateSize));
+				this.batchOutputs = new double[][] { this.channel.readOutputs() };
+			} else {
+				this.channel.sendFeedForwardBatch(this.batchInputs, this.batchSize, this.batchStateSize);
+				this.batchOutputs = this.channel.readOutputsBatch(this.batchSize);
 			}
-		} catch (InputMismatchException e) {
-			System.err.printf("Input mismatch when attempting to retreive NN outputs!\n");
-			System.err.printf("The offending input was encountered in this string: %s\n", str);
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e1) {
-				System.err.println("Sleeping Thread was interrupted.");
-				;
+			if (this.batchOutputs == null) {
+				this.batchOutputs = new double[this.batchSize][];
 			}
 		}
-
-		return outputs;
+		return this.batchOutputs[batchIndex];
 	}
 
 
 	@Override
 	public void backPropagateFromLastSample_RMSProp(double[] correctOutputs) {
-
-		this.outMsg.append("b\n");
-		for (int i = 0; i < correctOutputs.length; i++) {
-			this.outMsg.append(String.format("%a ", correctOutputs[i]));
-		}
-		this.outMsg.append('\n');
-		this.outWriter.print(this.outMsg.toString());
-		this.outWriter.flush();
-		this.outMsg.setLength(0);
+		this.channel.sendBackPropagate(correctOutputs);
 	}
 
 
 	public void sendTransition(StateTransition trans, boolean allowPartial) {
-
-		if (allowPartial) {
-			this.outMsg.append("t_nostartstate\n");
-		} else {
-			this.outMsg.append("t\n");
-
-			// Output the initial state
-			for (int i = 0; i < trans.nnInput.length; i++) {
-				this.outMsg.append(String.format("%a ", trans.nnInput[i]));
-			}
-
-			this.outMsg.append('\n');
-		}
-
-		// Output the transition info
-		this.outMsg.append(String.format("%d %a %d \n", trans.action + 1, trans.reward, trans.isTerminal ? 1 : 0));
-
-		if (!trans.isTerminal) {
-			// Output the next state
-			for (int i = 0; i < trans.nextInput.length; i++) {
-				this.outMsg.append(String.format("%a ", trans.nextInput[i]));
-			}
-			this.outMsg.append('\n');
-		}
-
-		this.outWriter.print(this.outMsg.toString());
-		this.outWriter.flush();
-		this.outMsg.setLength(0);
+		this.channel.sendTransition(allowPartial ? null : trans.nnInput, trans.action + 1, trans.reward, trans.isTerminal,
+				trans.nextInput);
 	}
 
 
 	public void runTorchMinibatch() {
-		this.outWriter.println(SimulatorMain.settings.getString("neuralnet.torch.minibatch_code"));
-		this.outWriter.flush();
+		this.channel.sendCode(this.settings.getString("neuralnet.torch.minibatch_code"));
 	}
 
 
 	@Override
 	public void forget() {
-		this.outWriter.println("forget");
-		this.outWriter.flush();
+		this.channel.sendForget();
 	}
 }
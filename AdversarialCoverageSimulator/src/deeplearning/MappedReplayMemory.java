@@ -0,0 +1,251 @@
+package deeplearning;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Experience replay stored in a memory-mapped file instead of on the heap, so it can
+ * be much larger than the heap and is still there when the simulator is restarted.
+ * Opening an existing file resumes from the transitions already in it.
+ * <p>
+ * The file starts with a header of {@link #HEADER_SIZE} bytes, followed by a ring of
+ * fixed-size records, one per transition:
+ *
+ * <pre>
+ * offset 0:  reward (double)
+ * offset 8:  action (int)
+ * offset 12: terminal flag (byte, then 3 bytes of padding)
+ * offset 16: start state, then next state ({@code stateSize} floats or doubles each)
+ * </pre>
+ *
+ * Files are written in the native byte order of the machine. Since a single mapping
+ * can't be larger than 2 GB, the records are mapped in segments.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class MappedReplayMemory implements ExperienceReplay {
+	private static final int MAGIC = 0x41445250;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int RECORD_HEADER_SIZE = 16;
+	private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+	private static final int HEADER_MAGIC_OFFSET = 0;
+	private static final int HEADER_VERSION_OFFSET = 4;
+	private static final int HEADER_STATE_SIZE_OFFSET = 8;
+	private static final int HEADER_FLOAT_STORAGE_OFFSET = 12;
+	private static final int HEADER_CAPACITY_OFFSET = 16;
+	private static final int HEADER_COUNT_OFFSET = 24;
+
+	private final int stateSize;
+	private final int capacity;
+	private final boolean useFloatStorage;
+	private final int valueSize;
+	private final int recordSize;
+	private final int recordsPerSegment;
+	private final MappedByteBuffer header;
+	private final MappedByteBuffer[] segments;
+	private long transitionCount;
+
+
+	/**
+	 * Opens a replay file, creating it if it doesn't exist
+	 *
+	 * @param file
+	 *                the file to store transitions in
+	 * @param stateSize
+	 *                the length of each state
+	 * @param capacity
+	 *                the maximum number of transitions to remember
+	 * @param useFloatStorage
+	 *                whether to store states as floats instead of doubles
+	 * @throws IOException
+	 *                 if the file can't be mapped, or it exists but was created with
+	 *                 a different layout
+	 */
+	public MappedReplayMemory(File file, int stateSize, int capacity, boolean useFloatStorage) throws IOException {
+		this.stateSize = stateSize;
+		this.capacity = Math.max(1, capacity);
+		this.useFloatStorage = useFloatStorage;
+		this.valueSize = useFloatStorage ? 4 : 8;
+		this.recordSize = RECORD_HEADER_SIZE + 2 * stateSize * this.valueSize;
+		if (MAX_SEGMENT_SIZE < this.recordSize) {
+			throw new IOException("States of size " + stateSize + " are too large for a replay file");
+		}
+		this.recordsPerSegment = MAX_SEGMENT_SIZE / this.recordSize;
+
+		boolean isNewFile = !file.exists() || file.length() == 0;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (isNewFile) {
+				raf.setLength(HEADER_SIZE + (long) this.capacity * this.recordSize);
+			} else if (raf.length() < HEADER_SIZE) {
+				throw new IOException("Replay file " + file + " is too short to be a replay file");
+			}
+
+			this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+			this.header.order(ByteOrder.nativeOrder());
+			if (isNewFile) {
+				this.header.putInt(HEADER_MAGIC_OFFSET, MAGIC);
+				this.header.putInt(HEADER_VERSION_OFFSET, VERSION);
+				this.header.putInt(HEADER_STATE_SIZE_OFFSET, stateSize);
+				this.header.putInt(HEADER_FLOAT_STORAGE_OFFSET, useFloatStorage ? 1 : 0);
+				this.header.putLong(HEADER_CAPACITY_OFFSET, this.capacity);
+				this.header.putLong(HEADER_COUNT_OFFSET, 0);
+				this.transitionCount = 0;
+			} else {
+				this.checkHeader(file, raf.length());
+				this.transitionCount = this.header.getLong(HEADER_COUNT_OFFSET);
+			}
+
+			int nSegments = (int) (((long) this.capacity + this.recordsPerSegment - 1) / this.recordsPerSegment);
+			this.segments = new MappedByteBuffer[nSegments];
+			for (int i = 0; i < nSegments; i++) {
+				long firstRecord = (long) i * this.recordsPerSegment;
+				long nRecords = Math.min(this.recordsPerSegment, this.capacity - firstRecord);
+				this.segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + firstRecord * this.recordSize,
+						nRecords * this.recordSize);
+				this.segments[i].order(ByteOrder.nativeOrder());
+			}
+		} finally {
+			// The mappings stay valid after the file is closed
+			raf.close();
+		}
+	}
+
+
+	/**
+	 * Makes sure an existing file was written with the same layout as this memory
+	 */
+	private void checkHeader(File file, long fileLength) throws IOException {
+		if (this.header.getInt(HEADER_MAGIC_OFFSET) != MAGIC || this.header.getInt(HEADER_VERSION_OFFSET) != VERSION) {
+			throw new IOException("File " + file + " is not a replay file, or was written on a different machine");
+		}
+		int fileStateSize = this.header.getInt(HEADER_STATE_SIZE_OFFSET);
+		boolean fileUsesFloats = this.header.getInt(HEADER_FLOAT_STORAGE_OFFSET) != 0;
+		long fileCapacity = this.header.getLong(HEADER_CAPACITY_OFFSET);
+		if (fileStateSize != this.stateSize || fileUsesFloats != this.useFloatStorage || fileCapacity != this.capacity) {
+			throw new IOException(String.format(
+					"Replay file %s has state size %d, capacity %d, and %s storage, but state size %d, capacity %d, and %s storage were requested",
+					file, fileStateSize, fileCapacity, fileUsesFloats ? "float" : "double", this.stateSize, this.capacity,
+					this.useFloatStorage ? "float" : "double"));
+		}
+		if (fileLength < HEADER_SIZE + (long) this.capacity * this.recordSize) {
+			throw new IOException("Replay file " + file + " is truncated");
+		}
+	}
+
+
+	@Override
+	public void add(double[] state, int action, double reward, boolean isTerminal, double[] nextState) {
+		int recordNum = (int) (this.transitionCount % this.capacity);
+		MappedByteBuffer segment = this.segments[recordNum / this.recordsPerSegment];
+		int offset = (recordNum % this.recordsPerSegment) * this.recordSize;
+
+		segment.putDouble(offset, reward);
+		segment.putInt(offset + 8, action);
+		segment.put(offset + 12, (byte) (isTerminal ? 1 : 0));
+		this.writeState(segment, offset + RECORD_HEADER_SIZE, state);
+		this.writeState(segment, offset + RECORD_HEADER_SIZE + this.stateSize * this.valueSize, nextState);
+
+		// The count is kept in the file, so the transitions can be resumed
+		this.transitionCount++;
+		this.header.putLong(HEADER_COUNT_OFFSET, this.transitionCount);
+	}
+
+
+	@Override
+	public void sample(Random randgen, int batchSize, double[] states, double[] nextStates, int[] actions,
+			double[] rewards, boolean[] terminals) {
+		// The stored records are always the most recent ones, so their order in the
+		// file doesn't matter
+		int size = this.size();
+		for (int i = 0; i < batchSize; i++) {
+			this.read(randgen.nextInt(size), i, states, nextStates, actions, rewards, terminals);
+		}
+	}
+
+
+	@Override
+	public void read(int slot, int sampleNum, double[] states, double[] nextStates, int[] actions, double[] rewards,
+			boolean[] terminals) {
+		MappedByteBuffer segment = this.segments[slot / this.recordsPerSegment];
+		int offset = (slot % this.recordsPerSegment) * this.recordSize;
+
+		rewards[sampleNum] = segment.getDouble(offset);
+		actions[sampleNum] = segment.getInt(offset + 8);
+		terminals[sampleNum] = segment.get(offset + 12) != 0;
+		this.readState(segment, offset + RECORD_HEADER_SIZE, states, sampleNum * this.stateSize);
+		this.readState(segment, offset + RECORD_HEADER_SIZE + this.stateSize * this.valueSize, nextStates,
+				sampleNum * this.stateSize);
+	}
+
+
+	@Override
+	public int size() {
+		return (int) Math.min(this.capacity, this.transitionCount);
+	}
+
+
+	@Override
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+
+	@Override
+	public long getTransitionCount() {
+		return this.transitionCount;
+	}
+
+
+	@Override
+	public int getStateSize() {
+		return this.stateSize;
+	}
+
+
+	/**
+	 * Forces any changes out to the file, which otherwise happens whenever the
+	 * operating system gets to it (mapped changes are not lost when the JVM exits)
+	 */
+	public void flush() {
+		for (MappedByteBuffer segment : this.segments) {
+			segment.force();
+		}
+		this.header.force();
+	}
+
+
+	private void writeState(MappedByteBuffer segment, int offset, double[] state) {
+		if (this.useFloatStorage) {
+			for (int i = 0; i < this.stateSize; i++) {
+				segment.putFloat(offset + 4 * i, (float) state[i]);
+			}
+		} else {
+			for (int i = 0; i < this.stateSize; i++) {
+				segment.putDouble(offset + 8 * i, state[i]);
+			}
+		}
+	}
+
+
+	private void readState(MappedByteBuffer segment, int offset, double[] dest, int destOffset) {
+		if (this.useFloatStorage) {
+			for (int i = 0; i < this.stateSize; i++) {
+				dest[destOffset + i] = segment.getFloat(offset + 4 * i);
+			}
+		} else {
+			for (int i = 0; i < this.stateSize; i++) {
+				dest[destOffset + i] = segment.getDouble(offset + 8 * i);
+			}
+		}
+	}
+}
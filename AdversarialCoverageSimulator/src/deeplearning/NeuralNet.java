@@ -2,20 +2,64 @@ package deeplearning;
 
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
-
-import adsim.SimulatorMain;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import adsim.SimulatorSettings;
+
+/**
+ * A feed-forward neural network. Each layer is stored densely, as one weight matrix
+ * with a row per neuron and a column per neuron of the previous layer, plus
+ * preallocated arrays for the outputs, error terms, weight deltas and RMSProp caches,
+ * so feeding forward and training run as loops over primitive arrays without
+ * allocating anything per sample.
+ * <p>
+ * Samples can be given one at a time or as a whole minibatch. A minibatch gives exactly
+ * the same outputs and weight updates as its samples would one at a time, but reuses
+ * each row of weights across many samples.
+ * <p>
+ * Every layer except the output layer ends with a bias neuron, which has no inputs and
+ * always outputs 1.
+ *
+ * @author Mike D'Arcy
+ *
+ */
 public class NeuralNet {
-	List<List<Neuron>> layers = new ArrayList<>();
+	List<Layer> layers = new ArrayList<>();
 
-	public double LEARNING_RATE = SimulatorMain.settings.getDouble("neuralnet.learning_rate");
-	public double MOMENTUM_GAMMA = SimulatorMain.settings.getDouble("neuralnet.momentum");
-	public double RMS_DECAY_RATE = SimulatorMain.settings.getDouble("neuralnet.rms.decay_rate");
+	/*
+	 * The training hyperparameters start at the default settings, and are set from
+	 * the settings of the simulation that owns the network by loadSettings()
+	 */
+	public double LEARNING_RATE = 0.1;
+	public double MOMENTUM_GAMMA = 0.9;
+	public double RMS_DECAY_RATE = 0.9;
 	public TrainingType trainingType = TrainingType.RMSPROP;
+	/**
+	 * The number of threads minibatches are split across. With one thread, training
+	 * gives exactly the same results as feeding samples one at a time.
+	 */
+	public int trainingThreads = 1;
+	/**
+	 * The threads that minibatches are trained on, by number of threads. They are
+	 * shared by every network, so that each robot's network doesn't start threads of
+	 * its own.
+	 */
+	private static final Map<Integer, ForkJoinPool> trainingPools = new HashMap<>();
 	private int samplesInBatch = 0;
+	/**
+	 * The number of samples fed through the network by the last call to
+	 * {@link #feedForwardBatch}
+	 */
+	private int lastBatchSize = 0;
 	static Random randgen = new Random();
 	static final ActivationFunction DEFAULT_ACTIVATION = ActivationFunction.RELU_ACTIVATION;
 
@@ -27,99 +71,144 @@ public class NeuralNet {
 
 	public NeuralNet(int[] nNodesInLayer) {
 		// Set up the input layer
-		this.layers.add(new ArrayList<Neuron>());
-		for (int i = 0; i < nNodesInLayer[0]; i++) {
-			this.layers.get(0).add(new Neuron(this.layers.get(0).size(), DEFAULT_ACTIVATION));
-		}
-		// Add a bias neuron to the input layer
-		this.layers.get(0).add(new Neuron(this.layers.get(0).size(), DEFAULT_ACTIVATION));
-		this.layers.get(0).get(this.layers.get(0).size() - 1).setOutputValue(1.0);
+		this.layers.add(createInputLayer(nNodesInLayer[0]));
 
 		for (int i = 1; i < nNodesInLayer.length; i++) {
-			this.layers.add(new ArrayList<Neuron>());
-			for (int j = 0; j < nNodesInLayer[i]; j++) {
-				Neuron n = new Neuron(this.layers.get(i).size(), DEFAULT_ACTIVATION);
-				for (int k = 0; k < this.layers.get(i - 1).size(); k++) {
-					n.addInput(this.layers.get(i - 1).get(k));
-				}
-				n.normalizeWeights();
-				this.layers.get(i).add(n);
-			}
 			// Add a bias neuron to the layer, if it isn't the
 			// output layer
-			if (i < nNodesInLayer.length - 1) {
-				this.layers.get(i).add(new Neuron(this.layers.get(i).size(), DEFAULT_ACTIVATION));
-				this.layers.get(i).get(this.layers.get(i).size() - 1).setOutputValue(1.0);
+			boolean hasBias = i < nNodesInLayer.length - 1;
+			Layer layer = new Layer(nNodesInLayer[i] + (hasBias ? 1 : 0), this.getLastLayer().size, DEFAULT_ACTIVATION);
+			for (int j = 0; j < nNodesInLayer[i]; j++) {
+				connectToAllInputs(layer, j);
 			}
+			if (hasBias) {
+				layer.outputs[layer.size - 1] = 1.0;
+			}
+			this.layers.add(layer);
 		}
 
 		// Use linear activation for the output layer
-		for (int i = 0; i < this.layers.get(this.layers.size() - 1).size(); i++) {
-			this.layers.get(this.layers.size() - 1).get(i).activeFunc = ActivationFunction.LINEAR_ACTIVATION;
-		}
+		this.getLastLayer().activeFunc = ActivationFunction.LINEAR_ACTIVATION;
 	}
 
 
 	public NeuralNet(String propertiesStr) {
 		Scanner scan = new Scanner(propertiesStr);
-		// Set up the input layer
+		// Set up the input layer. The number of input nodes includes the
+		// bias neuron.
 		int nInputNodes = 0;
 		if (scan.hasNextInt()) {
 			nInputNodes = scan.nextInt();
 		}
-
-		this.layers.add(new ArrayList<Neuron>());
-		for (int i = 0; i < nInputNodes - 1; i++) {
-			this.layers.get(0).add(new Neuron(this.layers.get(0).size(), DEFAULT_ACTIVATION));
-		}
-		// Add a bias neuron to the input layer
-		this.layers.get(0).add(new Neuron(this.layers.get(0).size(), DEFAULT_ACTIVATION));
-		this.layers.get(0).get(this.layers.get(0).size() - 1).setOutputValue(1.0);
-
-		if (scan.hasNext()) {
-			this.layers.add(new ArrayList<Neuron>());
-		}
-
+		this.layers.add(createInputLayer(Math.max(0, nInputNodes - 1)));
+
+		// Each neuron is given as one token per neuron in the last layer: a
+		// weight, "r" for a small random weight, or "n" for no connection.
+		// Layers are separated by ";".
+		boolean hasMoreLayers = scan.hasNext();
+		List<double[]> neuronWeights = new ArrayList<>();
+		List<boolean[]> neuronConnections = new ArrayList<>();
+		int nNodesInLastLayer = this.getLastLayer().size;
 		int nConnections = 0;
-		int nNodesInLastLayer = nInputNodes;
-		int layerNum = 1;
-		Neuron curNeuron = new Neuron(-1, null);
 		while (scan.hasNext()) {
 
 			String tok = scan.next().trim();
-			if (nConnections == 0 && !tok.equals(";")) {
-				curNeuron = new Neuron(this.layers.get(layerNum).size(), DEFAULT_ACTIVATION);
-				this.layers.get(layerNum).add(curNeuron);
-			}
 			if (tok.equals(";")) {
+				Layer layer = createLayer(neuronWeights, neuronConnections, nNodesInLastLayer);
 				// Set the bias neuron from the last layer
-				curNeuron.setOutputValue(1.0);
+				if (0 < layer.size) {
+					layer.outputs[layer.size - 1] = 1.0;
+				}
+				this.layers.add(layer);
+
 				// Set up the next layer
-				nNodesInLastLayer = this.layers.get(this.layers.size() - 1).size();
-				this.layers.add(new ArrayList<Neuron>());
-				layerNum++;
+				nNodesInLastLayer = layer.size;
+				neuronWeights.clear();
+				neuronConnections.clear();
 				nConnections = 0;
 				continue;
-			} else if (tok.equals("n")) {
-				nConnections++;
-			} else if (tok.equals("r")) {
-				curNeuron.addInput(this.layers.get(layerNum - 1).get(nConnections), NeuralNet.randgen.nextDouble() * 0.01);
-				nConnections++;
-			} else {
-				curNeuron.addInput(this.layers.get(layerNum - 1).get(nConnections), Double.parseDouble(tok));
-				nConnections++;
 			}
 
+			if (nConnections == 0) {
+				neuronWeights.add(new double[nNodesInLastLayer]);
+				neuronConnections.add(new boolean[nNodesInLastLayer]);
+			}
+			if (!tok.equals("n")) {
+				double weight = tok.equals("r") ? NeuralNet.randgen.nextDouble() * 0.01 : Double.parseDouble(tok);
+				neuronWeights.get(neuronWeights.size() - 1)[nConnections] = weight;
+				neuronConnections.get(neuronConnections.size() - 1)[nConnections] = true;
+			}
+			nConnections++;
+
 			nConnections %= nNodesInLastLayer;
 		}
 		scan.close();
+		if (hasMoreLayers) {
+			this.layers.add(createLayer(neuronWeights, neuronConnections, nNodesInLastLayer));
+		}
+
 		// Use linear activation for the output layer
-		for (int i = 0; i < this.layers.get(this.layers.size() - 1).size(); i++) {
-			this.layers.get(this.layers.size() - 1).get(i).activeFunc = ActivationFunction.LINEAR_ACTIVATION;
+		this.getLastLayer().activeFunc = ActivationFunction.LINEAR_ACTIVATION;
+	}
+
+
+	/**
+	 * Sets the learning rate, momentum and RMSProp decay rate from the given settings
+	 *
+	 * @param settings
+	 *                the settings of the simulation that uses the network
+	 */
+	public void loadSettings(SimulatorSettings settings) {
+		this.LEARNING_RATE = settings.getDouble("neuralnet.learning_rate");
+		this.MOMENTUM_GAMMA = settings.getDouble("neuralnet.momentum");
+		this.RMS_DECAY_RATE = settings.getDouble("neuralnet.rms.decay_rate");
+	}
+
+
+	/**
+	 * Creates an input layer with the given number of inputs, plus a bias neuron
+	 */
+	private static Layer createInputLayer(int nInputs) {
+		Layer layer = new Layer(nInputs + 1, 0, DEFAULT_ACTIVATION);
+		layer.outputs[nInputs] = 1.0;
+		return layer;
+	}
+
+
+	/**
+	 * Creates a layer from per-neuron weights and connection flags, one entry per
+	 * neuron of the previous layer
+	 */
+	private static Layer createLayer(List<double[]> neuronWeights, List<boolean[]> neuronConnections, int nInputs) {
+		Layer layer = new Layer(neuronWeights.size(), nInputs, DEFAULT_ACTIVATION);
+		for (int j = 0; j < layer.size; j++) {
+			for (int k = 0; k < nInputs; k++) {
+				if (neuronConnections.get(j)[k]) {
+					layer.connect(j, k, neuronWeights.get(j)[k]);
+				}
+			}
+		}
+		return layer;
+	}
+
+
+	/**
+	 * Connects a neuron to every neuron of the previous layer, with random weights
+	 * scaled by the number of inputs
+	 */
+	private static void connectToAllInputs(Layer layer, int neuronNum) {
+		double inverseInputSizeSqrt = 1.0 / Math.sqrt(layer.nInputs);
+		for (int k = 0; k < layer.nInputs; k++) {
+			layer.connect(neuronNum, k, inverseInputSizeSqrt * (2 * NeuralNet.randgen.nextDouble() - 1));
 		}
 	}
-	
-	
+
+
+	private Layer getLastLayer() {
+		return this.layers.get(this.layers.size() - 1);
+	}
+
+
 	public void forget() {
 		// No native RNNs, so do nothing
 	}
@@ -130,19 +219,14 @@ public class NeuralNet {
 			return "Torch network.";
 		}
 		StringBuilder sb = new StringBuilder("");
-		sb.append(this.layers.get(0).size());
+		sb.append(this.layers.get(0).size);
 		for (int i = 1; i < this.layers.size(); i++) {
-			for (int j = 0; j < this.layers.get(i).size(); j++) {
-				int curNum = 0;
-				Neuron n = new Neuron(-1, null);
-				for (int k = 0; k < this.layers.get(i - 1).size(); k++) {
-					if (curNum < this.layers.get(i).get(j).inputNeurons.size()) {
-						n = this.layers.get(i).get(j).inputNeurons.get(curNum);
-					}
-					if (n.idInLayer == k) {
+			Layer layer = this.layers.get(i);
+			for (int j = 0; j < layer.size; j++) {
+				for (int k = 0; k < layer.nInputs; k++) {
+					if (layer.connected[j][k]) {
 						sb.append(' ');
-						sb.append(this.layers.get(i).get(j).inputWeights.get(curNum));
-						curNum++;
+						sb.append(String.format("%f", layer.weights[j][k]));
 					} else {
 						sb.append(" n");
 					}
@@ -163,61 +247,45 @@ public class NeuralNet {
 
 
 	public void setLayerActivation(int layerNum, ActivationFunction activation) {
-		List<Neuron> layer = this.layers.get(layerNum);
-		for (int i = 0; i < layer.size(); i++) {
-			layer.get(i).setActivation(activation);
-		}
+		this.layers.get(layerNum).activeFunc = activation;
 	}
 
 
 	/**
 	 * Add a convolutional layer to the network
-	 * 
+	 *
 	 * @param fieldSize
 	 * @param stride
 	 */
 	public void addConvolutionalLayer(int fieldSize, int stride) {
-		List<Neuron> lastLayer = this.layers.get(this.layers.size() - 1);
-		int nNeurons = ((lastLayer.size() - fieldSize) / stride) + 1;
-		Neuron lastLayerBiasNeuron = lastLayer.get(this.layers.get(this.layers.size() - 1).size() - 1);
-		List<Neuron> convLayer = new ArrayList<>();
+		Layer lastLayer = this.getLastLayer();
+		int nNeurons = ((lastLayer.size - fieldSize) / stride) + 1;
+		int lastLayerBiasNeuron = lastLayer.size - 1;
+		Layer convLayer = new Layer(nNeurons + 1, lastLayer.size, DEFAULT_ACTIVATION);
 
 		for (int i = 0; i < nNeurons; i++) {
-			Neuron n = new Neuron(i, DEFAULT_ACTIVATION);
 			for (int j = 0; j < fieldSize; j++) {
-				n.addInput(lastLayer.get(j + i * stride), randgen.nextGaussian() / lastLayer.size());
+				convLayer.connect(i, j + i * stride, randgen.nextGaussian() / lastLayer.size);
 			}
-			n.addInput(lastLayerBiasNeuron, randgen.nextGaussian() / lastLayer.size());
-			convLayer.add(n);
+			convLayer.connect(i, lastLayerBiasNeuron, randgen.nextGaussian() / lastLayer.size);
 		}
-		Neuron n = new Neuron(nNeurons, DEFAULT_ACTIVATION);
-		n.setOutputValue(1.0);
-		convLayer.add(n);
+		convLayer.outputs[nNeurons] = 1.0;
 		this.layers.add(convLayer);
 	}
 
 
 	/**
 	 * Add a fully connected layer to the network
-	 * 
+	 *
 	 * @param nNeurons
 	 * @param activeFunc
 	 */
 	public void addFullyConnectedLayer(int nNeurons, ActivationFunction activeFunc) {
-		List<Neuron> lastLayer = this.layers.get(this.layers.size() - 1);
-		List<Neuron> newLayer = new ArrayList<>();
-		int lastLayerSize = this.layers.get(this.layers.size() - 1).size();
+		Layer newLayer = new Layer(nNeurons + 1, this.getLastLayer().size, activeFunc);
 		for (int i = 0; i < nNeurons; i++) {
-			Neuron n = new Neuron(i, activeFunc);
-			for (int j = 0; j < lastLayerSize; j++) {
-				n.addInput(lastLayer.get(j), 0.0);
-			}
-			n.normalizeWeights();
-			newLayer.add(n);
+			connectToAllInputs(newLayer, i);
 		}
-		Neuron n = new Neuron(nNeurons, activeFunc);
-		n.setOutputValue(1.0);
-		newLayer.add(n);
+		newLayer.outputs[nNeurons] = 1.0;
 		this.layers.add(newLayer);
 	}
 
@@ -226,40 +294,30 @@ public class NeuralNet {
 	 * Returns an int array, with each element representing the number of neurons in
 	 * the corresponding layer of the net. the 0th element corresponds to the input
 	 * layer.
-	 * 
+	 *
 	 * @return
 	 */
 	public int[] getLayerSizes() {
 		int[] ret = new int[this.layers.size()];
 		for (int i = 0; i < this.layers.size(); i++) {
-			ret[i] = this.layers.get(i).size();
+			ret[i] = this.layers.get(i).size;
 		}
 		return ret;
 	}
 
 
 	/**
-	 * Remove a neuron from a layer of the network
-	 * 
+	 * Remove a neuron from a layer of the network, along with its connections to the
+	 * next layer
+	 *
 	 * @param layerNum
 	 * @param neuronNum
 	 */
 	public void removeNeuronFromLayer(int layerNum, int neuronNum) {
-		List<Neuron> layer = this.layers.get(layerNum);
-		Neuron neuron = layer.get(neuronNum);
 		if (layerNum < this.layers.size() - 1) {
-			List<Neuron> nextLayer = this.layers.get(layerNum + 1);
-			for (int i = 0; i < nextLayer.size(); i++) {
-				for (int j = 0; j < nextLayer.get(i).inputNeurons.size(); j++) {
-					if (nextLayer.get(i).inputNeurons.get(j).idInLayer == neuron.idInLayer) {
-						nextLayer.get(i).inputNeurons.remove(j);
-					}
-				}
-			}
+			this.layers.set(layerNum + 1, this.layers.get(layerNum + 1).copyWithout(-1, neuronNum));
 		}
-
-		layer.remove(neuronNum);
-
+		this.layers.set(layerNum, this.layers.get(layerNum).copyWithout(neuronNum, -1));
 	}
 
 
@@ -294,79 +352,303 @@ public class NeuralNet {
 
 
 	public void feedForward(double[] inputs) {
-		if (inputs.length != this.layers.get(0).size() - 1) {
+		Layer inputLayer = this.layers.get(0);
+		if (inputs.length != inputLayer.size - 1) {
 			return;
 		}
 
 		// Initialize the input layer
-		for (int i = 0; i < this.layers.get(0).size() - 1; i++) {
-			this.layers.get(0).get(i).setOutputValue(inputs[i]);
-		}
+		System.arraycopy(inputs, 0, inputLayer.outputs, 0, inputs.length);
 
 		// Feed forward
 		for (int i = 1; i < this.layers.size(); i++) {
-			for (int j = 0; j < this.layers.get(i).size(); j++) {
-				this.layers.get(i).get(j).recalcOutput();
+			this.layers.get(i).feedForward(this.layers.get(i - 1).outputs);
+		}
+	}
+
+
+	/**
+	 * Back-propagates the error between the last outputs and the given correct
+	 * outputs. For each weight, the gradient is accumulated into the weight delta as
+	 * {@code delta = deltaDecay * delta + gradientScale * gradient}.
+	 */
+	private void backPropagateFromLastSample(double[] correctOutputs, double deltaDecay, double gradientScale) {
+		Layer outputLayer = this.getLastLayer();
+		outputLayer.calcOutputErrorTerms(correctOutputs);
+		for (int i = this.layers.size() - 1; 0 < i; i--) {
+			Layer layer = this.layers.get(i);
+			if (i < this.layers.size() - 1) {
+				layer.calcHiddenErrorTerms();
 			}
+			// The input layer has no use for error sums
+			Layer prevLayer = this.layers.get(i - 1);
+			layer.backPropagate(prevLayer.outputs, (1 < i ? prevLayer.weightedErrorSums : null), deltaDecay, gradientScale);
 		}
 	}
 
 
 	public void backPropagateFromLastSample_Momentum(double[] correctOutputs) {
-		double[] realOutputs = this.getOutputs();
-		List<Neuron> outputNeurons = this.layers.get(this.layers.size() - 1);
-		for (int i = 0; i < outputNeurons.size(); i++) {
-			outputNeurons.get(i).setErrorTerm(-(correctOutputs[i] - realOutputs[i])
-					* outputNeurons.get(i).activeFunc.activationDerivative(outputNeurons.get(i).getWeightedSumOfInputs()));
-			outputNeurons.get(i).backPropagate(this.MOMENTUM_GAMMA);
+		this.backPropagateFromLastSample(correctOutputs, this.MOMENTUM_GAMMA, this.LEARNING_RATE);
+	}
+
+
+	public void backPropagateFromLastSample_RMSProp(double[] correctOutputs) {
+		this.samplesInBatch++;
+		this.backPropagateFromLastSample(correctOutputs, 1.0, 1.0);
+	}
+
+
+	/**
+	 * Feeds a whole minibatch through the network at once. The inputs are given as a
+	 * matrix with one row per sample, and the outputs are kept per sample (see
+	 * {@link #getBatchOutputs}) until the next batch is fed forward. Each sample gives
+	 * exactly the same outputs as it would from {@link #feedForward}.
+	 *
+	 * @param inputs
+	 *                the inputs, with sample {@code s} at
+	 *                {@code [s * nInputs, (s + 1) * nInputs)}
+	 * @param batchSize
+	 *                the number of samples
+	 */
+	public void feedForwardBatch(final double[] inputs, int batchSize) {
+		Layer inputLayer = this.layers.get(0);
+		if (inputs.length < batchSize * (inputLayer.size - 1)) {
+			return;
+		}
+
+		for (int i = 0; i < this.layers.size(); i++) {
+			this.layers.get(i).ensureBatchCapacity(batchSize);
+		}
+
+		int nChunks = this.getNumBatchChunks(batchSize);
+		if (nChunks == 1) {
+			this.feedForwardSamples(inputs, 0, batchSize);
+		} else {
+			this.runOnChunks(nChunks, batchSize, new RangeTask() {
+				@Override
+				public void run(int chunkNum, int start, int end) {
+					feedForwardSamples(inputs, start, end);
+				}
+			});
+		}
+		this.lastBatchSize = batchSize;
+	}
+
+
+	/**
+	 * Feeds the samples in [start, end) of a minibatch through the network
+	 */
+	private void feedForwardSamples(double[] inputs, int start, int end) {
+		// Initialize the input layer, including each sample's bias input
+		Layer inputLayer = this.layers.get(0);
+		int nInputs = inputLayer.size - 1;
+		for (int s = start; s < end; s++) {
+			System.arraycopy(inputs, s * nInputs, inputLayer.batchOutputs[s], 0, nInputs);
+			inputLayer.batchOutputs[s][nInputs] = inputLayer.outputs[nInputs];
+		}
+
+		// Feed forward
+		for (int i = 1; i < this.layers.size(); i++) {
+			this.layers.get(i).feedForwardBatch(this.layers.get(i - 1).batchOutputs, start, end);
+		}
+	}
+
+
+	/**
+	 * Copies the outputs of the last minibatch into the given array, with one row per
+	 * sample
+	 *
+	 * @param outputs
+	 *                the array to fill, which must hold at least
+	 *                {@code batchSize * nOutputs} values
+	 */
+	public void getBatchOutputs(double[] outputs) {
+		Layer outputLayer = this.getLastLayer();
+		for (int s = 0; s < this.lastBatchSize; s++) {
+			System.arraycopy(outputLayer.batchOutputs[s], 0, outputs, s * outputLayer.size, outputLayer.size);
+		}
+	}
+
+
+	/**
+	 * Back-propagates the errors of every sample of the last minibatch. With a single
+	 * training thread, the weight deltas end up the same as if each sample had been
+	 * back-propagated on its own, in order.
+	 * <p>
+	 * With more threads, the minibatch is split into contiguous chunks of samples.
+	 * Each chunk is back-propagated into its own delta buffers, starting from zero,
+	 * and the buffers are then merged into the deltas in chunk order, as
+	 * {@code delta = deltaDecay^chunkSize * delta + chunkDelta}. The result is
+	 * mathematically the same, and for a given batch size and number of threads it is
+	 * always rounded the same way.
+	 */
+	private void backPropagateLastBatch(final double[] correctOutputs, final double[] sampleWeights,
+			final double deltaDecay, final double gradientScale) {
+		final int batchSize = this.lastBatchSize;
+		final int nChunks = this.getNumBatchChunks(batchSize);
+		if (nChunks == 1) {
+			this.backPropagateSamples(correctOutputs, sampleWeights, 0, batchSize, -1, deltaDecay, gradientScale);
+			return;
+		}
+
+		for (int i = 1; i < this.layers.size(); i++) {
+			this.layers.get(i).ensureWorkerDeltaCapacity(nChunks);
 		}
-		for (int i = this.layers.size() - 2; 0 < i; i--) {
-			for (int j = 0; j < this.layers.get(i).size(); j++) {
-				this.layers.get(i).get(j).recalcErrorTerm();
-				this.layers.get(i).get(j).backPropagate(this.MOMENTUM_GAMMA);
+		final double[] chunkDecays = new double[nChunks];
+		this.runOnChunks(nChunks, batchSize, new RangeTask() {
+			@Override
+			public void run(int chunkNum, int start, int end) {
+				chunkDecays[chunkNum] = Math.pow(deltaDecay, end - start);
+				backPropagateSamples(correctOutputs, sampleWeights, start, end, chunkNum, deltaDecay, gradientScale);
 			}
+		});
+
+		// Merge the chunks' deltas, splitting the work by neurons
+		for (int i = 1; i < this.layers.size(); i++) {
+			final Layer layer = this.layers.get(i);
+			this.runOnChunks(Math.min(nChunks, layer.size), layer.size, new RangeTask() {
+				@Override
+				public void run(int chunkNum, int start, int end) {
+					layer.mergeWorkerDeltas(chunkDecays, start, end);
+				}
+			});
 		}
-		for (int i = 0; i < this.layers.size(); i++) {
-			for (int j = 0; j < this.layers.get(i).size(); j++) {
-				this.layers.get(i).get(j).resetBackPropagationTerms();
+	}
+
+
+	/**
+	 * Back-propagates the samples in [start, end) of the last minibatch
+	 *
+	 * @param worker
+	 *                the worker whose delta buffers should be used, or -1 to use
+	 *                the network's deltas
+	 */
+	private void backPropagateSamples(double[] correctOutputs, double[] sampleWeights, int start, int end, int worker,
+			double deltaDecay, double gradientScale) {
+		Layer outputLayer = this.getLastLayer();
+		outputLayer.calcOutputErrorTermsBatch(correctOutputs, sampleWeights, start, end);
+		for (int i = this.layers.size() - 1; 0 < i; i--) {
+			Layer layer = this.layers.get(i);
+			if (i < this.layers.size() - 1) {
+				layer.calcHiddenErrorTermsBatch(start, end);
 			}
+			// The input layer has no use for error sums
+			Layer prevLayer = this.layers.get(i - 1);
+			layer.backPropagateBatch(prevLayer.batchOutputs, (1 < i ? prevLayer.batchWeightedErrorSums : null), start, end,
+					(worker < 0 ? layer.deltaWeights : layer.workerDeltaWeights[worker]), deltaDecay, gradientScale);
 		}
 	}
 
 
-	public void backPropagateFromLastSample_RMSProp(double[] correctOutputs) {
-		this.samplesInBatch++;
-		double[] realOutputs = this.getOutputs();
-		List<Neuron> outputNeurons = this.layers.get(this.layers.size() - 1);
-		for (int i = 0; i < outputNeurons.size(); i++) {
-			outputNeurons.get(i).setErrorTerm(-(correctOutputs[i] - realOutputs[i])
-					* outputNeurons.get(i).activeFunc.activationDerivative(outputNeurons.get(i).getWeightedSumOfInputs()));
-			outputNeurons.get(i).backPropagate_RMSProp();
+	/**
+	 * Gets the number of chunks a minibatch of the given size is split into for the
+	 * training threads
+	 */
+	private int getNumBatchChunks(int batchSize) {
+		return Math.max(1, Math.min(this.trainingThreads, batchSize));
+	}
+
+
+	/**
+	 * Splits [0, total) into the given number of contiguous chunks and runs the task
+	 * on each of them in the training thread pool, waiting for all of them to finish
+	 */
+	private void runOnChunks(int nChunks, int total, final RangeTask task) {
+		ForkJoinPool pool = getTrainingPool(this.trainingThreads);
+		List<Callable<Void>> tasks = new ArrayList<>(nChunks);
+		for (int c = 0; c < nChunks; c++) {
+			final int chunkNum = c;
+			final int start = (int) ((long) total * c / nChunks);
+			final int end = (int) ((long) total * (c + 1) / nChunks);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					task.run(chunkNum, start, end);
+					return null;
+				}
+			});
 		}
-		for (int i = this.layers.size() - 2; 0 < i; i--) {
-			for (int j = 0; j < this.layers.get(i).size(); j++) {
-				this.layers.get(i).get(j).recalcErrorTerm();
-				this.layers.get(i).get(j).backPropagate_RMSProp();
+
+		for (Future<Void> result : pool.invokeAll(tasks)) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
 			}
 		}
-		for (int i = 0; i < this.layers.size(); i++) {
-			for (int j = 0; j < this.layers.get(i).size(); j++) {
-				this.layers.get(i).get(j).resetBackPropagationTerms();
-			}
+	}
+
+
+	private static synchronized ForkJoinPool getTrainingPool(int nThreads) {
+		ForkJoinPool pool = trainingPools.get(nThreads);
+		if (pool == null) {
+			pool = new ForkJoinPool(nThreads);
+			trainingPools.put(nThreads, pool);
 		}
+		return pool;
+	}
+
+
+	/**
+	 * Back-propagates every sample of the last minibatch for momentum training
+	 *
+	 * @param correctOutputs
+	 *                the correct outputs, with one row per sample
+	 */
+	public void backPropagateLastBatch_Momentum(double[] correctOutputs) {
+		this.backPropagateLastBatch_Momentum(correctOutputs, null);
+	}
+
+
+	/**
+	 * Back-propagates every sample of the last minibatch for momentum training, with
+	 * each sample's gradient scaled by its weight (such as an importance-sampling
+	 * weight from prioritized replay)
+	 *
+	 * @param correctOutputs
+	 *                the correct outputs, with one row per sample
+	 * @param sampleWeights
+	 *                the weight of each sample, or null to weight them all equally
+	 */
+	public void backPropagateLastBatch_Momentum(double[] correctOutputs, double[] sampleWeights) {
+		this.backPropagateLastBatch(correctOutputs, sampleWeights, this.MOMENTUM_GAMMA, this.LEARNING_RATE);
+	}
+
+
+	/**
+	 * Back-propagates every sample of the last minibatch for RMSProp training
+	 *
+	 * @param correctOutputs
+	 *                the correct outputs, with one row per sample
+	 */
+	public void backPropagateLastBatch_RMSProp(double[] correctOutputs) {
+		this.backPropagateLastBatch_RMSProp(correctOutputs, null);
+	}
+
+
+	/**
+	 * Back-propagates every sample of the last minibatch for RMSProp training, with
+	 * each sample's gradient scaled by its weight (such as an importance-sampling
+	 * weight from prioritized replay)
+	 *
+	 * @param correctOutputs
+	 *                the correct outputs, with one row per sample
+	 * @param sampleWeights
+	 *                the weight of each sample, or null to weight them all equally
+	 */
+	public void backPropagateLastBatch_RMSProp(double[] correctOutputs, double[] sampleWeights) {
+		this.samplesInBatch += this.lastBatchSize;
+		this.backPropagateLastBatch(correctOutputs, sampleWeights, 1.0, 1.0);
 	}
 
 
 	public double[] getOutputs() {
 		// Make an array with the same size as the last layer of the
 		// network
-		double[] outputs = new double[this.layers.get(this.layers.size() - 1).size()];
-
-		for (int i = 0; i < outputs.length; i++) {
-			outputs[i] = this.layers.get(this.layers.size() - 1).get(i).getOutputValue();
-		}
-
-		return outputs;
+		return this.getLastLayer().outputs.clone();
 	}
 
 
@@ -387,300 +669,565 @@ public class NeuralNet {
 			return;
 		}
 
-		for (int i = 0; i < this.layers.size(); i++) {
-			for (int j = 0; j < this.layers.get(i).size(); j++) {
-				this.layers.get(i).get(j).applyWeightDeltas_RMSProp();
-			}
+		for (int i = 1; i < this.layers.size(); i++) {
+			this.layers.get(i).applyWeightDeltas_RMSProp(this.samplesInBatch, this.RMS_DECAY_RATE, this.LEARNING_RATE);
 		}
 		this.samplesInBatch = 0;
 	}
 
 
 	public void finishBatch_Momentum() {
-		for (int i = 0; i < this.layers.size(); i++) {
-			for (int j = 0; j < this.layers.get(i).size(); j++) {
-				this.layers.get(i).get(j).applyWeightDeltas();
-			}
+		for (int i = 1; i < this.layers.size(); i++) {
+			this.layers.get(i).applyWeightDeltas();
 		}
 	}
 
 
 	public void learnFromExample(double[] inputs, double[] correctOutputs) {
-
-		for (int i = 0; i < this.layers.size(); i++) {
-			for (int j = 0; j < this.layers.get(i).size(); j++) {
-				this.layers.get(i).get(j).resetBackPropagationTerms();
-			}
-		}
-
 		feedForward(inputs);
 		this.backPropagateFromLastSample_Momentum(correctOutputs);
 	}
 
+	public enum TrainingType {
+		BATCH, MOMENTUM, RMSPROP
+	}
+}
+
 
+/**
+ * One layer of a {@link NeuralNet}. Row {@code j} of the weight, delta and cache
+ * matrices holds the values for the connections from each neuron of the previous layer
+ * to neuron {@code j} of this layer. Each row is its own array, which keeps the loops
+ * over a row simple enough for the JIT to vectorize. Weights for missing connections
+ * are kept at zero and are skipped, and neurons without any inputs (such as bias
+ * neurons) keep whatever output they were given.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+class Layer {
 	/**
-	 * Represents an artificial neuron
-	 * 
-	 * @author Mike D'Arcy
-	 *
+	 * The number of samples worked on together in a minibatch pass, so that each row
+	 * of weights is reused while it is still in cache
 	 */
-	class Neuron {
-		List<Neuron> inputNeurons = new ArrayList<>();
-		List<EditableDouble> inputWeights = new ArrayList<>();
-		double[] deltaWeights = new double[0];
-		double[] rmsprop_cache = new double[0];
-		long nSamples = 0;
-		int idInLayer;
-		ActivationFunction activeFunc;
-		/**
-		 * The weighted sum of inputs to this neuron.
-		 */
-		double weightedInputSum = 0.0;
-		/**
-		 * The output of this neuron
-		 */
-		double outputValue = 0.0;
-		/**
-		 * The error in the output (used for back-propagation)
-		 */
-		double errorTerm = 0.0;
-		/**
-		 * The weighted sum of error terms of the neurons in the next layer (used
-		 * for back-propagation)
-		 */
-		double weightedErrorSum = 0.0;
-
-
-		public Neuron(int idInLayer, ActivationFunction activeFunc) {
-			this.idInLayer = idInLayer;
-			this.activeFunc = activeFunc;
-		}
+	private static final int BATCH_BLOCK_SIZE = 32;
+
+	final int size;
+	final int nInputs;
+	final double[][] weights;
+	final boolean[][] connected;
+	final boolean[] hasInputs;
+	final double[][] deltaWeights;
+	final double[][] rmsprop_cache;
+	ActivationFunction activeFunc;
+	/**
+	 * The weighted sum of inputs to each neuron
+	 */
+	final double[] weightedInputSums;
+	/**
+	 * The output of each neuron
+	 */
+	final double[] outputs;
+	/**
+	 * The error in the output of each neuron (used for back-propagation)
+	 */
+	final double[] errorTerms;
+	/**
+	 * The weighted sum of error terms of the neurons in the next layer (used for
+	 * back-propagation)
+	 */
+	final double[] weightedErrorSums;
+	/**
+	 * The per-sample versions of the arrays above, for minibatches, with one row of
+	 * {@code size} values per sample.
+	 */
+	double[][] batchWeightedInputSums = new double[0][];
+	double[][] batchOutputs = new double[0][];
+	double[][] batchErrorTerms = new double[0][];
+	double[][] batchWeightedErrorSums = new double[0][];
+	/**
+	 * Weight deltas for each training thread, which are merged into
+	 * {@link #deltaWeights} when a minibatch is finished
+	 */
+	double[][][] workerDeltaWeights = new double[0][][];
+	private int nConnections = 0;
+	private int nNeuronsWithInputs = 0;
 
 
-		public void addInput(Neuron n) {
-			this.addInput(n, NeuralNet.randgen.nextGaussian());
-		}
+	/**
+	 * Creates a layer of neurons with no connections
+	 *
+	 * @param size
+	 *                the number of neurons in the layer
+	 * @param nInputs
+	 *                the number of neurons in the previous layer
+	 * @param activeFunc
+	 *                the activation function of the layer
+	 */
+	public Layer(int size, int nInputs, ActivationFunction activeFunc) {
+		this.size = size;
+		this.nInputs = nInputs;
+		this.activeFunc = activeFunc;
+		this.weights = new double[size][nInputs];
+		this.connected = new boolean[size][nInputs];
+		this.hasInputs = new boolean[size];
+		this.deltaWeights = new double[size][nInputs];
+		this.rmsprop_cache = new double[size][nInputs];
+		this.weightedInputSums = new double[size];
+		this.outputs = new double[size];
+		this.errorTerms = new double[size];
+		this.weightedErrorSums = new double[size];
+	}
 
 
-		public void addInput(Neuron n, double weight) {
-			this.inputNeurons.add(n);
-			this.inputWeights.add(new EditableDouble(weight));
-			this.deltaWeights = new double[this.inputWeights.size()];
-			this.rmsprop_cache = new double[this.inputWeights.size()];
+	/**
+	 * Connects neuron {@code j} of this layer to neuron {@code k} of the previous
+	 * layer. If they are already connected (as when a convolutional field reaches
+	 * the bias neuron), the weights are added together.
+	 */
+	public void connect(int j, int k, double weight) {
+		if (this.connected[j][k]) {
+			this.weights[j][k] += weight;
+			return;
 		}
-
-
-		public void normalizeWeights() {
-			double inverseInputSizeSqrt = 1.0 / Math.sqrt(this.inputWeights.size());
-			for (int i = 0; i < this.inputWeights.size(); i++) {
-				this.inputWeights.get(i).value = inverseInputSizeSqrt * (2 * NeuralNet.randgen.nextDouble() - 1);
-			}
+		this.connected[j][k] = true;
+		this.weights[j][k] = weight;
+		this.nConnections++;
+		if (!this.hasInputs[j]) {
+			this.hasInputs[j] = true;
+			this.nNeuronsWithInputs++;
 		}
+	}
 
 
-		public void setActivation(ActivationFunction activation) {
-			this.activeFunc = activation;
-		}
+	/**
+	 * Checks whether every neuron that has inputs is connected to the whole previous
+	 * layer, so the connection flags can be ignored
+	 */
+	public boolean isFullyConnected() {
+		return this.nConnections == this.nNeuronsWithInputs * this.nInputs;
+	}
 
 
-		public void applyWeightDeltas() {
-			for (int i = 0; i < this.deltaWeights.length; i++) {
-				double oldWeight = this.inputWeights.get(i).value;
-				double newWeight = oldWeight - this.deltaWeights[i];
-				this.inputWeights.get(i).value = newWeight;
-				this.deltaWeights[i] = 0.0;
-				if (Double.isNaN(this.inputWeights.get(i).value)) {
-					this.inputWeights.get(i).value = randgen.nextDouble() / this.inputWeights.size();
-					System.out.println("ERROR: Weight is NaN. Aborting...");
-					System.exit(1);
+	/**
+	 * Creates a copy of this layer with one neuron and/or one input removed
+	 *
+	 * @param removedNeuron
+	 *                the neuron to remove, or -1 to keep all neurons
+	 * @param removedInput
+	 *                the neuron of the previous layer to remove, or -1 to keep all
+	 *                inputs
+	 * @return the new layer
+	 */
+	public Layer copyWithout(int removedNeuron, int removedInput) {
+		Layer copy = new Layer(this.size - (removedNeuron < 0 ? 0 : 1), this.nInputs - (removedInput < 0 ? 0 : 1),
+				this.activeFunc);
+		int newJ = 0;
+		for (int j = 0; j < this.size; j++) {
+			if (j == removedNeuron) {
+				continue;
+			}
+			copy.weightedInputSums[newJ] = this.weightedInputSums[j];
+			copy.outputs[newJ] = this.outputs[j];
+			int newK = 0;
+			for (int k = 0; k < this.nInputs; k++) {
+				if (k == removedInput) {
+					continue;
+				}
+				if (this.connected[j][k]) {
+					copy.connect(newJ, newK, this.weights[j][k]);
 				}
+				copy.deltaWeights[newJ][newK] = this.deltaWeights[j][k];
+				copy.rmsprop_cache[newJ][newK] = this.rmsprop_cache[j][k];
+				newK++;
 			}
-			this.nSamples = 0;
+			newJ++;
 		}
+		return copy;
+	}
 
 
-		public void applyWeightDeltas_RMSProp() {
-			for (int i = 0; i < this.deltaWeights.length; i++) {
-				double avgDelta = this.deltaWeights[i] / NeuralNet.this.samplesInBatch;
-				double oldWeight = this.inputWeights.get(i).value;
-				this.rmsprop_cache[i] = NeuralNet.this.RMS_DECAY_RATE * this.rmsprop_cache[i]
-						+ (1 - NeuralNet.this.RMS_DECAY_RATE) * (avgDelta * avgDelta);
-				double newWeight = oldWeight - NeuralNet.this.LEARNING_RATE * avgDelta / (Math.sqrt(this.rmsprop_cache[i]) + 1e-3);
-				this.inputWeights.get(i).value = newWeight;
-				this.deltaWeights[i] = 0.0;
-				if (Double.isNaN(this.inputWeights.get(i).value)) {
-					this.inputWeights.get(i).value = randgen.nextDouble() / this.inputWeights.size();
-					System.out.println("ERROR: Weight is NaN. Aborting...");
-					System.exit(1);
-				}
+	/**
+	 * Recalculates the outputs of every neuron from the given outputs of the previous
+	 * layer
+	 */
+	public void feedForward(double[] inputs) {
+		final boolean fullyConnected = this.isFullyConnected();
+		for (int j = 0; j < this.size; j++) {
+			// If there are no inputs, output shouldn't change
+			if (!this.hasInputs[j]) {
+				continue;
 			}
-			this.nSamples = 0;
-		}
-
 
-		public void applyWeightDeltasWithoutMomentum() {
-			for (int i = 0; i < this.deltaWeights.length; i++) {
-				double oldWeight = this.inputWeights.get(i).value;
-				double newWeight = oldWeight - NeuralNet.this.LEARNING_RATE * (this.deltaWeights[i] / this.nSamples);
-				this.inputWeights.get(i).value = newWeight;
-				this.deltaWeights[i] = 0.0;
-				if (Double.isNaN(this.inputWeights.get(i).value)) {
-					this.inputWeights.get(i).value = randgen.nextDouble() / this.inputWeights.size();
-					System.out.println("ERROR: Weight is NaN. Aborting...");
-					System.exit(1);
+			double[] weights = this.weights[j];
+			double sum = 0.0;
+			if (fullyConnected) {
+				for (int k = 0; k < weights.length; k++) {
+					sum += inputs[k] * weights[k];
+				}
+			} else {
+				boolean[] connected = this.connected[j];
+				for (int k = 0; k < weights.length; k++) {
+					if (connected[k]) {
+						sum += inputs[k] * weights[k];
+					}
 				}
 			}
-			this.nSamples = 0;
+			this.weightedInputSums[j] = sum;
+			this.outputs[j] = this.activeFunc.activationValue(sum);
 		}
+	}
 
 
-		/**
-		 * Propagates the error term from this neuron backward to other connected
-		 * neurons.
-		 */
-		public void backPropagate() {
-			for (int i = 0; i < this.inputNeurons.size(); i++) {
-				Neuron n = this.inputNeurons.get(i);
-				n.setWeightedErrorSum(n.getWeightedErrorSum() + (this.errorTerm * this.inputWeights.get(i).value));
-
-
-				double newWeight = this.inputWeights.get(i).value;
-				newWeight -= NeuralNet.this.LEARNING_RATE * (+0.000 * newWeight);
-				this.deltaWeights[i] += this.errorTerm * n.getOutputValue();
-			}
-			this.nSamples++;
+	public void calcOutputErrorTerms(double[] correctOutputs) {
+		for (int j = 0; j < this.size; j++) {
+			this.errorTerms[j] = -(correctOutputs[j] - this.outputs[j])
+					* this.activeFunc.activationDerivative(this.weightedInputSums[j]);
 		}
+	}
 
 
-		public void backPropagate(double gamma) {
-			for (int i = 0; i < this.inputNeurons.size(); i++) {
-				Neuron n = this.inputNeurons.get(i);
-				n.setWeightedErrorSum(n.getWeightedErrorSum() + (this.errorTerm * this.inputWeights.get(i).value));
-
-				this.deltaWeights[i] = gamma * this.deltaWeights[i]
-						+ NeuralNet.this.LEARNING_RATE * (this.errorTerm * n.getOutputValue());
-			}
-			this.nSamples++;
+	public void calcHiddenErrorTerms() {
+		for (int j = 0; j < this.size; j++) {
+			this.errorTerms[j] = this.weightedErrorSums[j] * this.activeFunc.activationDerivative(this.weightedInputSums[j]);
 		}
+	}
 
 
-		public void backPropagate_RMSProp() {
-			for (int i = 0; i < this.inputNeurons.size(); i++) {
-				Neuron n = this.inputNeurons.get(i);
-				n.setWeightedErrorSum(n.getWeightedErrorSum() + (this.errorTerm * this.inputWeights.get(i).value));
+	/**
+	 * Propagates the error terms of this layer backward to the previous layer, and
+	 * accumulates the gradient of each weight into its delta.
+	 *
+	 * @param inputs
+	 *                the outputs of the previous layer
+	 * @param inputErrorSums
+	 *                the weighted error sums of the previous layer, which are
+	 *                overwritten, or null if they aren't needed
+	 * @param deltaDecay
+	 *                the factor applied to each delta before the gradient is added
+	 * @param gradientScale
+	 *                the factor applied to each gradient before it is added
+	 */
+	public void backPropagate(double[] inputs, double[] inputErrorSums, double deltaDecay, double gradientScale) {
+		final boolean fullyConnected = this.isFullyConnected();
+		if (inputErrorSums != null) {
+			Arrays.fill(inputErrorSums, 0.0);
+		}
 
-				double gradient = this.errorTerm * n.getOutputValue();
-				this.deltaWeights[i] += gradient;
+		for (int j = 0; j < this.size; j++) {
+			if (!this.hasInputs[j]) {
+				continue;
 			}
-			this.nSamples++;
+			if (inputErrorSums != null) {
+				addScaledRow(inputErrorSums, this.errorTerms[j], this.weights[j], this.connected[j], fullyConnected);
+			}
+			addGradient(this.deltaWeights[j], this.errorTerms[j], inputs, this.connected[j], fullyConnected, deltaDecay,
+					gradientScale);
 		}
+	}
 
 
-		public double getErrorTerm() {
-			return this.errorTerm;
+	/**
+	 * Makes sure the minibatch arrays can hold the given number of samples
+	 */
+	public void ensureBatchCapacity(int batchSize) {
+		if (batchSize <= this.batchOutputs.length) {
+			return;
 		}
+		this.batchWeightedInputSums = new double[batchSize][this.size];
+		this.batchOutputs = new double[batchSize][this.size];
+		this.batchErrorTerms = new double[batchSize][this.size];
+		this.batchWeightedErrorSums = new double[batchSize][this.size];
+	}
 
 
-		/**
-		 * Returns the output value of this neuron. The output value is no
-		 * recalculated when calling this function. To recalculate the output, see
-		 * {@code recalcOutput}.
-		 * 
-		 * @see #recalcOutput
-		 */
-		public double getOutputValue() {
-			return this.outputValue;
+	/**
+	 * Makes sure there are delta buffers for the given number of training threads.
+	 * New buffers start at zero, and are zeroed again whenever they are merged.
+	 */
+	public void ensureWorkerDeltaCapacity(int nWorkers) {
+		if (nWorkers <= this.workerDeltaWeights.length) {
+			return;
 		}
+		this.workerDeltaWeights = new double[nWorkers][this.size][this.nInputs];
+	}
 
 
-		private double getWeightedErrorSum() {
-			return this.weightedErrorSum;
+	/**
+	 * Merges the training threads' deltas of the neurons in [start, end) into the
+	 * layer's deltas, in worker order, and zeroes them
+	 *
+	 * @param workerDecays
+	 *                the factor applied to the layer's deltas before each worker's
+	 *                deltas are added
+	 */
+	public void mergeWorkerDeltas(double[] workerDecays, int start, int end) {
+		for (int j = start; j < end; j++) {
+			double[] deltas = this.deltaWeights[j];
+			for (int w = 0; w < workerDecays.length; w++) {
+				double decay = workerDecays[w];
+				double[] workerDeltas = this.workerDeltaWeights[w][j];
+				for (int k = 0; k < deltas.length; k++) {
+					deltas[k] = decay * deltas[k] + workerDeltas[k];
+					workerDeltas[k] = 0.0;
+				}
+			}
 		}
+	}
+
 
+	/**
+	 * Recalculates the outputs of every neuron for the samples in [start, end) of a
+	 * minibatch, from the given per-sample outputs of the previous layer
+	 */
+	public void feedForwardBatch(double[][] inputs, int start, int end) {
+		final boolean fullyConnected = this.isFullyConnected();
+		for (int blockStart = start; blockStart < end; blockStart += BATCH_BLOCK_SIZE) {
+			int blockEnd = Math.min(end, blockStart + BATCH_BLOCK_SIZE);
+			for (int j = 0; j < this.size; j++) {
+				// Neurons without inputs give the same output for every sample
+				if (!this.hasInputs[j]) {
+					for (int s = blockStart; s < blockEnd; s++) {
+						this.batchOutputs[s][j] = this.outputs[j];
+					}
+					continue;
+				}
 
-		public double getWeightedSumOfInputs() {
-			return this.weightedInputSum;
+				double[] weights = this.weights[j];
+				int s = blockStart;
+				if (fullyConnected) {
+					// Four samples at a time, so each weight is loaded once for
+					// all of them and their sums don't wait on each other
+					for (; s + 3 < blockEnd; s += 4) {
+						double[] inputs0 = inputs[s];
+						double[] inputs1 = inputs[s + 1];
+						double[] inputs2 = inputs[s + 2];
+						double[] inputs3 = inputs[s + 3];
+						double sum0 = 0.0;
+						double sum1 = 0.0;
+						double sum2 = 0.0;
+						double sum3 = 0.0;
+						for (int k = 0; k < weights.length; k++) {
+							double weight = weights[k];
+							sum0 += inputs0[k] * weight;
+							sum1 += inputs1[k] * weight;
+							sum2 += inputs2[k] * weight;
+							sum3 += inputs3[k] * weight;
+						}
+						this.setBatchWeightedInputSum(s, j, sum0);
+						this.setBatchWeightedInputSum(s + 1, j, sum1);
+						this.setBatchWeightedInputSum(s + 2, j, sum2);
+						this.setBatchWeightedInputSum(s + 3, j, sum3);
+					}
+				}
+				for (; s < blockEnd; s++) {
+					double[] sampleInputs = inputs[s];
+					double sum = 0.0;
+					if (fullyConnected) {
+						for (int k = 0; k < weights.length; k++) {
+							sum += sampleInputs[k] * weights[k];
+						}
+					} else {
+						boolean[] connected = this.connected[j];
+						for (int k = 0; k < weights.length; k++) {
+							if (connected[k]) {
+								sum += sampleInputs[k] * weights[k];
+							}
+						}
+					}
+					this.setBatchWeightedInputSum(s, j, sum);
+				}
+			}
 		}
+	}
 
 
-		public void recalcErrorTerm() {
-			this.errorTerm = this.weightedErrorSum * this.activeFunc.activationDerivative(this.weightedInputSum);
-		}
+	private void setBatchWeightedInputSum(int sampleNum, int neuronNum, double sum) {
+		this.batchWeightedInputSums[sampleNum][neuronNum] = sum;
+		this.batchOutputs[sampleNum][neuronNum] = this.activeFunc.activationValue(sum);
+	}
 
 
-		/**
-		 * Recalculates this neuron's internally stored output value based on its
-		 * input weights and input neurons
-		 */
-		public void recalcOutput() {
-			// If there are no inputs, output shouldn't change
-			if (this.inputNeurons.size() == 0) {
-				return;
+	/**
+	 * Calculates the error terms of an output layer for the samples in [start, end).
+	 * Every gradient of a sample is proportional to its output error terms, so
+	 * scaling them by the sample's weight scales the sample's whole gradient.
+	 *
+	 * @param sampleWeights
+	 *                the weight of each sample, or null to weight them all equally
+	 */
+	public void calcOutputErrorTermsBatch(double[] correctOutputs, double[] sampleWeights, int start, int end) {
+		for (int s = start; s < end; s++) {
+			for (int j = 0; j < this.size; j++) {
+				this.batchErrorTerms[s][j] = -(correctOutputs[s * this.size + j] - this.batchOutputs[s][j])
+						* this.activeFunc.activationDerivative(this.batchWeightedInputSums[s][j]);
+			}
+			if (sampleWeights != null) {
+				for (int j = 0; j < this.size; j++) {
+					this.batchErrorTerms[s][j] *= sampleWeights[s];
+				}
 			}
-
-			this.recalcWeightedSumOfInputs();
-			this.outputValue = this.activeFunc.activationValue(this.getWeightedSumOfInputs());
 		}
+	}
 
 
-		public void recalcWeightedSumOfInputs() {
-			this.weightedInputSum = 0.0;
-			for (int i = 0; i < this.inputNeurons.size(); i++) {
-				this.weightedInputSum += this.inputNeurons.get(i).getOutputValue() * this.inputWeights.get(i).value;
+	public void calcHiddenErrorTermsBatch(int start, int end) {
+		for (int s = start; s < end; s++) {
+			for (int j = 0; j < this.size; j++) {
+				this.batchErrorTerms[s][j] = this.batchWeightedErrorSums[s][j]
+						* this.activeFunc.activationDerivative(this.batchWeightedInputSums[s][j]);
 			}
 		}
+	}
 
 
-		public void resetBackPropagationTerms() {
-			this.errorTerm = 0.0;
-			this.weightedErrorSum = 0.0;
+	/**
+	 * The minibatch version of {@link #backPropagate}, for the samples in [start, end).
+	 * Gradients are added to each delta in sample order, so the deltas are the same
+	 * as if the samples had been back-propagated one at a time.
+	 *
+	 * @param inputs
+	 *                the per-sample outputs of the previous layer
+	 * @param inputErrorSums
+	 *                the per-sample weighted error sums of the previous layer, which
+	 *                are overwritten, or null if they aren't needed
+	 * @param start
+	 *                the first sample
+	 * @param end
+	 *                one past the last sample
+	 * @param deltaWeights
+	 *                the deltas to accumulate the gradients into, with the same
+	 *                shape as the weights
+	 * @param deltaDecay
+	 *                the factor applied to each delta before a gradient is added
+	 * @param gradientScale
+	 *                the factor applied to each gradient before it is added
+	 */
+	public void backPropagateBatch(double[][] inputs, double[][] inputErrorSums, int start, int end,
+			double[][] deltaWeights, double deltaDecay, double gradientScale) {
+		final boolean fullyConnected = this.isFullyConnected();
+
+		// Each row of weights is used for a block of samples before moving on
+		if (inputErrorSums != null) {
+			for (int blockStart = start; blockStart < end; blockStart += BATCH_BLOCK_SIZE) {
+				int blockEnd = Math.min(end, blockStart + BATCH_BLOCK_SIZE);
+				for (int s = blockStart; s < blockEnd; s++) {
+					Arrays.fill(inputErrorSums[s], 0.0);
+				}
+				for (int j = 0; j < this.size; j++) {
+					if (!this.hasInputs[j]) {
+						continue;
+					}
+					for (int s = blockStart; s < blockEnd; s++) {
+						addScaledRow(inputErrorSums[s], this.batchErrorTerms[s][j], this.weights[j], this.connected[j],
+								fullyConnected);
+					}
+				}
+			}
 		}
 
-
-		/**
-		 * Manually set the output of this neuron, rather than calculating it from
-		 * inputs.
-		 * 
-		 * @param value
-		 *                the value to set
-		 */
-		public void setOutputValue(double value) {
-			this.outputValue = value;
+		// Each row of deltas stays in cache while the gradients of every sample
+		// are added to it
+		for (int j = 0; j < this.size; j++) {
+			if (!this.hasInputs[j]) {
+				continue;
+			}
+			for (int s = start; s < end; s++) {
+				addGradient(deltaWeights[j], this.batchErrorTerms[s][j], inputs[s], this.connected[j], fullyConnected,
+						deltaDecay, gradientScale);
+			}
 		}
+	}
 
 
-		public void setErrorTerm(double errorTerm) {
-			this.errorTerm = errorTerm;
+	/**
+	 * Adds a scaled row of weights onto a row of error sums, skipping missing
+	 * connections unless the layer is fully connected
+	 */
+	private static void addScaledRow(double[] sums, double scale, double[] weights, boolean[] connected,
+			boolean fullyConnected) {
+		if (fullyConnected) {
+			for (int k = 0; k < weights.length; k++) {
+				sums[k] += scale * weights[k];
+			}
+		} else {
+			for (int k = 0; k < weights.length; k++) {
+				if (connected[k]) {
+					sums[k] += scale * weights[k];
+				}
+			}
 		}
+	}
 
 
-		private void setWeightedErrorSum(double weightedErrorSum) {
-			this.weightedErrorSum = weightedErrorSum;
+	/**
+	 * Accumulates the gradient of one neuron's weights for one sample into its
+	 * deltas, as {@code delta = deltaDecay * delta + gradientScale * gradient}. Plain
+	 * sums (as for RMSProp) skip the multiplications by one, which doesn't change the
+	 * results.
+	 */
+	private static void addGradient(double[] deltas, double errorTerm, double[] inputs, boolean[] connected,
+			boolean fullyConnected, double deltaDecay, double gradientScale) {
+		if (fullyConnected && deltaDecay == 1.0 && gradientScale == 1.0) {
+			for (int k = 0; k < deltas.length; k++) {
+				deltas[k] += errorTerm * inputs[k];
+			}
+		} else if (fullyConnected) {
+			for (int k = 0; k < deltas.length; k++) {
+				deltas[k] = deltaDecay * deltas[k] + gradientScale * (errorTerm * inputs[k]);
+			}
+		} else {
+			for (int k = 0; k < deltas.length; k++) {
+				if (connected[k]) {
+					deltas[k] = deltaDecay * deltas[k] + gradientScale * (errorTerm * inputs[k]);
+				}
+			}
 		}
 	}
 
-	public enum TrainingType {
-		BATCH, MOMENTUM, RMSPROP
-	}
-}
-
-
-class EditableDouble {
-	public double value = 0.0;
-
-
-	public EditableDouble() {
 
+	public void applyWeightDeltas() {
+		for (int j = 0; j < this.size; j++) {
+			double[] weights = this.weights[j];
+			double[] deltaWeights = this.deltaWeights[j];
+			for (int k = 0; k < weights.length; k++) {
+				weights[k] -= deltaWeights[k];
+				deltaWeights[k] = 0.0;
+				if (Double.isNaN(weights[k])) {
+					System.out.println("ERROR: Weight is NaN. Aborting...");
+					System.exit(1);
+				}
+			}
+		}
 	}
 
 
-	public EditableDouble(double value) {
-		this.value = value;
+	public void applyWeightDeltas_RMSProp(int samplesInBatch, double decayRate, double learningRate) {
+		for (int j = 0; j < this.size; j++) {
+			double[] weights = this.weights[j];
+			double[] deltaWeights = this.deltaWeights[j];
+			double[] cache = this.rmsprop_cache[j];
+			for (int k = 0; k < weights.length; k++) {
+				double avgDelta = deltaWeights[k] / samplesInBatch;
+				cache[k] = decayRate * cache[k] + (1 - decayRate) * (avgDelta * avgDelta);
+				weights[k] -= learningRate * avgDelta / (Math.sqrt(cache[k]) + 1e-3);
+				deltaWeights[k] = 0.0;
+				if (Double.isNaN(weights[k])) {
+					System.out.println("ERROR: Weight is NaN. Aborting...");
+					System.exit(1);
+				}
+			}
+		}
 	}
+}
 
 
-	@Override
-	public String toString() {
-		return String.format("%f", this.value);
-	}
+/**
+ * Work done on one contiguous chunk of a range, such as the samples of a minibatch
+ *
+ * @author Mike D'Arcy
+ *
+ */
+interface RangeTask {
+	public void run(int chunkNum, int start, int end);
 }
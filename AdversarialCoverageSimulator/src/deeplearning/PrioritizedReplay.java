@@ -0,0 +1,203 @@
+package deeplearning;
+
+import java.util.Random;
+
+/**
+ * Prioritized experience replay, which samples transitions in proportion to how badly
+ * they were predicted instead of uniformly, so that rare but important transitions
+ * (such as deaths) are trained on more often. Transitions are stored in another
+ * {@link ExperienceReplay}, and this keeps a {@link SumTree} of their priorities.
+ * <p>
+ * A transition with TD error {@code d} has priority {@code (|d| + epsilon)^alpha}, and
+ * new transitions get the highest priority seen so far, so that each is sampled at
+ * least once. To correct for the bias that prioritized sampling adds, each sample has
+ * an importance-sampling weight of {@code (N * P(i))^-beta}, scaled so the largest
+ * weight in the minibatch is 1. Beta is annealed linearly up to 1 over a given number
+ * of minibatches.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class PrioritizedReplay implements ExperienceReplay {
+	private final ExperienceReplay store;
+	private final SumTree priorities;
+	private final double alpha;
+	private final double betaStart;
+	private final long betaAnnealingBatches;
+	private final double epsilon;
+	private double maxPriority = 1.0;
+	private long nBatchesSampled = 0;
+	/**
+	 * The number of the oldest transition that has a priority in the tree
+	 */
+	private long oldestPrioritized;
+
+	private int[] lastSampleSlots = new int[0];
+	private double[] lastSampleWeights = new double[0];
+	private int lastBatchSize = 0;
+
+
+	/**
+	 * Adds priorities to a replay store. Any transitions already in the store are
+	 * given the same priority.
+	 *
+	 * @param store
+	 *                the store to keep the transitions in
+	 * @param alpha
+	 *                how much the priorities matter, from 0 (uniform sampling) to 1
+	 * @param betaStart
+	 *                the starting strength of the importance-sampling correction,
+	 *                from 0 (none) to 1 (full)
+	 * @param betaAnnealingBatches
+	 *                the number of minibatches after which the correction is at full
+	 *                strength
+	 * @param epsilon
+	 *                added to the size of each TD error, so no transition has a
+	 *                priority of zero
+	 */
+	public PrioritizedReplay(ExperienceReplay store, double alpha, double betaStart, long betaAnnealingBatches,
+			double epsilon) {
+		this.store = store;
+		this.priorities = new SumTree(store.getCapacity());
+		this.alpha = alpha;
+		this.betaStart = betaStart;
+		this.betaAnnealingBatches = Math.max(1, betaAnnealingBatches);
+		this.epsilon = epsilon;
+
+		long count = store.getTransitionCount();
+		this.oldestPrioritized = count - store.size();
+		for (long n = this.oldestPrioritized; n < count; n++) {
+			this.priorities.set(this.slotOf(n), this.maxPriority);
+		}
+	}
+
+
+	@Override
+	public void add(double[] state, int action, double reward, boolean isTerminal, double[] nextState) {
+		this.store.add(state, action, reward, isTerminal, nextState);
+
+		// Transitions the store dropped can't be sampled any more. This is done
+		// before the new priority is set, in case it reused the slot of one of them.
+		long count = this.store.getTransitionCount();
+		for (; this.oldestPrioritized < count - this.store.size(); this.oldestPrioritized++) {
+			this.priorities.set(this.slotOf(this.oldestPrioritized), 0.0);
+		}
+		this.priorities.set(this.slotOf(count - 1), this.maxPriority);
+	}
+
+
+	/**
+	 * Samples transitions in proportion to their priorities. The minibatch is split
+	 * into equal ranges of the total priority, with one sample drawn from each, which
+	 * spreads the samples out more evenly than independent draws. The slots and
+	 * importance-sampling weights of the samples are kept until the next minibatch.
+	 */
+	@Override
+	public void sample(Random randgen, int batchSize, double[] states, double[] nextStates, int[] actions,
+			double[] rewards, boolean[] terminals) {
+		if (this.lastSampleSlots.length < batchSize) {
+			this.lastSampleSlots = new int[batchSize];
+			this.lastSampleWeights = new double[batchSize];
+		}
+
+		double beta = Math.min(1.0,
+				this.betaStart + (1.0 - this.betaStart) * ((double) this.nBatchesSampled / this.betaAnnealingBatches));
+		double total = this.priorities.getTotal();
+		double rangeSize = total / batchSize;
+		int size = this.store.size();
+		double maxWeight = 0.0;
+		for (int i = 0; i < batchSize; i++) {
+			int slot = this.priorities.find(rangeSize * (i + randgen.nextDouble()));
+			this.store.read(slot, i, states, nextStates, actions, rewards, terminals);
+			this.lastSampleSlots[i] = slot;
+
+			double probability = this.priorities.get(slot) / total;
+			this.lastSampleWeights[i] = Math.pow(size * probability, -beta);
+			maxWeight = Math.max(maxWeight, this.lastSampleWeights[i]);
+		}
+		for (int i = 0; i < batchSize; i++) {
+			this.lastSampleWeights[i] /= maxWeight;
+		}
+
+		this.lastBatchSize = batchSize;
+		this.nBatchesSampled++;
+	}
+
+
+	/**
+	 * Copies the importance-sampling weights of the last minibatch into the given
+	 * buffer
+	 */
+	public void getSampleWeights(double[] weights) {
+		System.arraycopy(this.lastSampleWeights, 0, weights, 0, this.lastBatchSize);
+	}
+
+
+	/**
+	 * Updates the priorities of the transitions in the last minibatch
+	 *
+	 * @param tdErrors
+	 *                the new TD error of each sample
+	 */
+	public void updateSamplePriorities(double[] tdErrors) {
+		for (int i = 0; i < this.lastBatchSize; i++) {
+			this.setPriority(this.lastSampleSlots[i], tdErrors[i]);
+		}
+	}
+
+
+	/**
+	 * Updates the priority of the most recently added transition, for when its TD
+	 * error is already known
+	 */
+	public void updateNewestPriority(double tdError) {
+		this.setPriority(this.slotOf(this.store.getTransitionCount() - 1), tdError);
+	}
+
+
+	private void setPriority(int slot, double tdError) {
+		// Slots that aren't in use keep a priority of zero
+		if (this.priorities.get(slot) == 0.0) {
+			return;
+		}
+		double priority = Math.pow(Math.abs(tdError) + this.epsilon, this.alpha);
+		this.priorities.set(slot, priority);
+		this.maxPriority = Math.max(this.maxPriority, priority);
+	}
+
+
+	private int slotOf(long transitionNum) {
+		return (int) (transitionNum % this.store.getCapacity());
+	}
+
+
+	@Override
+	public void read(int slot, int sampleNum, double[] states, double[] nextStates, int[] actions, double[] rewards,
+			boolean[] terminals) {
+		this.store.read(slot, sampleNum, states, nextStates, actions, rewards, terminals);
+	}
+
+
+	@Override
+	public int size() {
+		return this.store.size();
+	}
+
+
+	@Override
+	public int getCapacity() {
+		return this.store.getCapacity();
+	}
+
+
+	@Override
+	public long getTransitionCount() {
+		return this.store.getTransitionCount();
+	}
+
+
+	@Override
+	public int getStateSize() {
+		return this.store.getStateSize();
+	}
+}
@@ -0,0 +1,282 @@
+package deeplearning;
+
+import java.util.Random;
+
+/**
+ * Experience replay memory for deep Q-learning, holding the most recent transitions in
+ * a ring buffer. States are packed into one large primitive array (of floats, if
+ * requested, to halve the space they take), and the action, reward, and terminal flag
+ * of each transition are kept in parallel arrays, so storing and sampling transitions
+ * allocates nothing.
+ * <p>
+ * Each state is stored only once where possible: when the start state of a transition
+ * is the same as the next state of the one before it (as it is for consecutive steps of
+ * the same episode), the transition refers to the stored copy instead of adding another.
+ * States are stored in a ring of "frames" with a little more room than the number of
+ * transitions, to make up for the states that can't be shared. If the frame ring fills
+ * up first, the oldest transitions are dropped along with their frames.
+ * <p>
+ * The arrays grow as transitions are added, so a large capacity costs nothing until it
+ * is used.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class ReplayMemory implements ExperienceReplay {
+	private final int stateSize;
+	private final int capacity;
+	private final int frameCapacity;
+	private final boolean useFloatStorage;
+
+	/**
+	 * The stored states, one frame of {@code stateSize} values after another. Only
+	 * one of these is used, depending on {@link #useFloatStorage}.
+	 */
+	private double[] doubleFrames = new double[0];
+	private float[] floatFrames = new float[0];
+	private int allocatedFrames = 0;
+
+	/**
+	 * The per-transition arrays, indexed by transition number modulo the capacity.
+	 * States are referred to by frame number, which keeps counting up as frames are
+	 * reused.
+	 */
+	private long[] stateFrames = new long[0];
+	private long[] nextStateFrames = new long[0];
+	private int[] actions = new int[0];
+	private double[] rewards = new double[0];
+	private boolean[] terminals = new boolean[0];
+	private int allocatedTransitions = 0;
+
+	private long frameCount = 0;
+	private long transitionCount = 0;
+	private long oldestTransition = 0;
+	private long lastNextStateFrame = -1;
+
+
+	/**
+	 * Creates an empty replay memory
+	 *
+	 * @param stateSize
+	 *                the length of each state
+	 * @param capacity
+	 *                the maximum number of transitions to remember
+	 * @param extraFramesFraction
+	 *                the number of frames to allow for states that can't be shared,
+	 *                as a fraction of the capacity
+	 * @param useFloatStorage
+	 *                whether to store states as floats instead of doubles
+	 */
+	public ReplayMemory(int stateSize, int capacity, double extraFramesFraction, boolean useFloatStorage) {
+		this.stateSize = stateSize;
+		this.capacity = Math.max(1, capacity);
+		this.useFloatStorage = useFloatStorage;
+
+		// Every transition needs at least its two states
+		long frames = this.capacity + 1 + (long) (this.capacity * Math.max(0.0, extraFramesFraction));
+		long maxFrames = Integer.MAX_VALUE / Math.max(1, stateSize);
+		if (maxFrames < frames) {
+			System.err.printf("Replay memory can only hold %d states of size %d. Transitions will be dropped sooner.\n",
+					maxFrames, stateSize);
+			frames = Math.max(2, maxFrames);
+		}
+		this.frameCapacity = (int) frames;
+	}
+
+
+	@Override
+	public void add(double[] state, int action, double reward, boolean isTerminal, double[] nextState) {
+		long stateFrame;
+		if (0 <= this.lastNextStateFrame && this.isFrameLive(this.lastNextStateFrame)
+				&& this.frameEquals(this.lastNextStateFrame, state)) {
+			stateFrame = this.lastNextStateFrame;
+		} else {
+			stateFrame = this.writeFrame(state);
+		}
+
+		// The next state of a terminal transition is never used for training, so it
+		// isn't stored
+		long nextStateFrame = isTerminal ? stateFrame : this.writeFrame(nextState);
+
+		if (this.transitionCount - this.oldestTransition == this.capacity) {
+			this.oldestTransition++;
+		}
+		this.ensureTransitionCapacity(this.transitionCount + 1);
+		int index = (int) (this.transitionCount % this.capacity);
+		this.stateFrames[index] = stateFrame;
+		this.nextStateFrames[index] = nextStateFrame;
+		this.actions[index] = action;
+		this.rewards[index] = reward;
+		this.terminals[index] = isTerminal;
+		this.transitionCount++;
+
+		this.lastNextStateFrame = isTerminal ? -1 : nextStateFrame;
+	}
+
+
+	@Override
+	public void sample(Random randgen, int batchSize, double[] states, double[] nextStates, int[] actions,
+			double[] rewards, boolean[] terminals) {
+		int size = this.size();
+		for (int i = 0; i < batchSize; i++) {
+			int slot = (int) ((this.oldestTransition + randgen.nextInt(size)) % this.capacity);
+			this.read(slot, i, states, nextStates, actions, rewards, terminals);
+		}
+	}
+
+
+	@Override
+	public void read(int slot, int sampleNum, double[] states, double[] nextStates, int[] actions, double[] rewards,
+			boolean[] terminals) {
+		this.readFrame(this.stateFrames[slot], states, sampleNum * this.stateSize);
+		this.readFrame(this.nextStateFrames[slot], nextStates, sampleNum * this.stateSize);
+		actions[sampleNum] = this.actions[slot];
+		rewards[sampleNum] = this.rewards[slot];
+		terminals[sampleNum] = this.terminals[slot];
+	}
+
+
+	@Override
+	public int size() {
+		return (int) (this.transitionCount - this.oldestTransition);
+	}
+
+
+	@Override
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+
+	@Override
+	public long getTransitionCount() {
+		return this.transitionCount;
+	}
+
+
+	@Override
+	public int getStateSize() {
+		return this.stateSize;
+	}
+
+
+	/**
+	 * Copies a state into the next frame, dropping any transitions that still refer to
+	 * the frame being overwritten
+	 *
+	 * @return the number of the frame the state was written to
+	 */
+	private long writeFrame(double[] state) {
+		long frame = this.frameCount;
+		this.ensureFrameCapacity(frame + 1);
+		this.frameCount++;
+
+		// Transitions are added in frame order, so the ones using the overwritten
+		// frame are always the oldest
+		long oldestLiveFrame = this.frameCount - this.frameCapacity;
+		while (this.oldestTransition < this.transitionCount
+				&& this.stateFrames[(int) (this.oldestTransition % this.capacity)] < oldestLiveFrame) {
+			this.oldestTransition++;
+		}
+
+		int offset = (int) (frame % this.frameCapacity) * this.stateSize;
+		if (this.useFloatStorage) {
+			for (int i = 0; i < this.stateSize; i++) {
+				this.floatFrames[offset + i] = (float) state[i];
+			}
+		} else {
+			System.arraycopy(state, 0, this.doubleFrames, offset, this.stateSize);
+		}
+		return frame;
+	}
+
+
+	private void readFrame(long frame, double[] dest, int destOffset) {
+		int offset = (int) (frame % this.frameCapacity) * this.stateSize;
+		if (this.useFloatStorage) {
+			for (int i = 0; i < this.stateSize; i++) {
+				dest[destOffset + i] = this.floatFrames[offset + i];
+			}
+		} else {
+			System.arraycopy(this.doubleFrames, offset, dest, destOffset, this.stateSize);
+		}
+	}
+
+
+	/**
+	 * Checks whether a stored frame holds the given state, as it would be stored
+	 */
+	private boolean frameEquals(long frame, double[] state) {
+		int offset = (int) (frame % this.frameCapacity) * this.stateSize;
+		if (this.useFloatStorage) {
+			for (int i = 0; i < this.stateSize; i++) {
+				if (this.floatFrames[offset + i] != (float) state[i]) {
+					return false;
+				}
+			}
+		} else {
+			for (int i = 0; i < this.stateSize; i++) {
+				if (this.doubleFrames[offset + i] != state[i]) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+
+	private boolean isFrameLive(long frame) {
+		return this.frameCount - this.frameCapacity <= frame;
+	}
+
+
+	/**
+	 * Grows the frame array, if needed, so that it can hold the given number of frames
+	 * (up to the frame capacity). Frames don't wrap around until the array is at full
+	 * size, so the existing frames can be copied as they are.
+	 */
+	private void ensureFrameCapacity(long nFrames) {
+		if (nFrames <= this.allocatedFrames || this.allocatedFrames == this.frameCapacity) {
+			return;
+		}
+		int newSize = (int) Math.min(this.frameCapacity, Math.max(nFrames, 2L * this.allocatedFrames));
+		if (this.useFloatStorage) {
+			float[] newFrames = new float[newSize * this.stateSize];
+			System.arraycopy(this.floatFrames, 0, newFrames, 0, this.floatFrames.length);
+			this.floatFrames = newFrames;
+		} else {
+			double[] newFrames = new double[newSize * this.stateSize];
+			System.arraycopy(this.doubleFrames, 0, newFrames, 0, this.doubleFrames.length);
+			this.doubleFrames = newFrames;
+		}
+		this.allocatedFrames = newSize;
+	}
+
+
+	/**
+	 * Grows the per-transition arrays in the same way as
+	 * {@link #ensureFrameCapacity(long)}
+	 */
+	private void ensureTransitionCapacity(long nTransitions) {
+		if (nTransitions <= this.allocatedTransitions || this.allocatedTransitions == this.capacity) {
+			return;
+		}
+		int newSize = (int) Math.min(this.capacity, Math.max(nTransitions, 2L * this.allocatedTransitions));
+		long[] newStateFrames = new long[newSize];
+		long[] newNextStateFrames = new long[newSize];
+		int[] newActions = new int[newSize];
+		double[] newRewards = new double[newSize];
+		boolean[] newTerminals = new boolean[newSize];
+		System.arraycopy(this.stateFrames, 0, newStateFrames, 0, this.allocatedTransitions);
+		System.arraycopy(this.nextStateFrames, 0, newNextStateFrames, 0, this.allocatedTransitions);
+		System.arraycopy(this.actions, 0, newActions, 0, this.allocatedTransitions);
+		System.arraycopy(this.rewards, 0, newRewards, 0, this.allocatedTransitions);
+		System.arraycopy(this.terminals, 0, newTerminals, 0, this.allocatedTransitions);
+		this.stateFrames = newStateFrames;
+		this.nextStateFrames = newNextStateFrames;
+		this.actions = newActions;
+		this.rewards = newRewards;
+		this.terminals = newTerminals;
+		this.allocatedTransitions = newSize;
+	}
+}
@@ -0,0 +1,238 @@
+package deeplearning;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends the frames of {@link BinaryNNChannel} through a memory-mapped file instead of a
+ * pipe, so a message costs no system calls and is copied only once, straight into the
+ * shared memory, where the external program can read it in place. On Linux, the file
+ * should be in {@code /dev/shm} so it never touches the disk.
+ * <p>
+ * The file has three regions:
+ *
+ * <pre>
+ * control  (CONTROL_SIZE bytes)  the header and counters, each counter on its own cache line
+ * requests (requestSize bytes)   a ring of request frames
+ * response (RESPONSE_SIZE bytes) the latest reply frame
+ * </pre>
+ *
+ * The request positions count bytes from the start of the session and never wrap; the
+ * position in the ring is the count modulo the ring size. Frames are padded to a
+ * multiple of 8 bytes, and a frame never wraps around the end of the ring: if it doesn't
+ * fit, a frame length of {@link #WRAP_MARKER} is written instead and the frame starts
+ * at the beginning of the ring. The sender advances the write position after each
+ * frame, and the receiver advances the read position once it's done with a frame.
+ * Replies are written into the response region, and announced by incrementing the
+ * response count.
+ * <p>
+ * All numbers are little-endian. Both sides wait for each other by spinning briefly,
+ * then yielding, then parking, so that a quick reply is seen within microseconds
+ * without burning a core while the other side is idle.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+class SharedMemoryNNChannel extends BinaryNNChannel {
+	static final int MAGIC = 0x4144534D;
+	static final int VERSION = 1;
+	static final int CONTROL_SIZE = 4096;
+	static final int RESPONSE_SIZE = 65536;
+	static final int WRAP_MARKER = -1;
+
+	static final int MAGIC_OFFSET = 0;
+	static final int VERSION_OFFSET = 4;
+	static final int REQUEST_SIZE_OFFSET = 8;
+	static final int FLOAT32_OFFSET = 12;
+	static final int WRITE_POS_OFFSET = 64;
+	static final int READ_POS_OFFSET = 128;
+	static final int RESPONSE_COUNT_OFFSET = 192;
+
+	private static final int SPIN_TRIES = 100;
+	private static final int YIELD_TRIES = 1000;
+	private static final long PARK_NANOS = 20000;
+
+	/**
+	 * Written and read by {@link #fullFence()}
+	 */
+	private static volatile int fenceVar = 0;
+
+	private final MappedByteBuffer control;
+	private final MappedByteBuffer requests;
+	private final MappedByteBuffer response;
+	private final int requestSize;
+	private long writePos = 0;
+	private long responsesRead = 0;
+	private int frameSize = 0;
+
+
+	/**
+	 * Creates the shared file (replacing any earlier session in it) and maps it. The
+	 * external program can map the file once this returns.
+	 *
+	 * @param file
+	 *                the file to share
+	 * @param requestSize
+	 *                the size of the request ring in bytes, which is rounded up to a
+	 *                multiple of 8
+	 * @param useFloat32
+	 *                whether to send real values as float32 instead of float64
+	 */
+	public SharedMemoryNNChannel(File file, int requestSize, boolean useFloat32) throws IOException {
+		super(null, null, useFloat32);
+		this.requestSize = alignFrameSize(Math.max(64, requestSize));
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(CONTROL_SIZE + (long) this.requestSize + RESPONSE_SIZE);
+			FileChannel channel = raf.getChannel();
+			this.control = mapRegion(channel, 0, CONTROL_SIZE);
+			this.requests = mapRegion(channel, CONTROL_SIZE, this.requestSize);
+			this.response = mapRegion(channel, CONTROL_SIZE + (long) this.requestSize, RESPONSE_SIZE);
+		} finally {
+			// The mappings stay valid after the file is closed
+			raf.close();
+		}
+
+		// The magic number is written last, so a receiver that sees it also sees a
+		// fresh session
+		this.control.putInt(MAGIC_OFFSET, 0);
+		fullFence();
+		this.control.putInt(VERSION_OFFSET, VERSION);
+		this.control.putInt(REQUEST_SIZE_OFFSET, this.requestSize);
+		this.control.putInt(FLOAT32_OFFSET, useFloat32 ? 1 : 0);
+		this.control.putLong(WRITE_POS_OFFSET, 0);
+		this.control.putLong(READ_POS_OFFSET, 0);
+		this.control.putLong(RESPONSE_COUNT_OFFSET, 0);
+		fullFence();
+		this.control.putInt(MAGIC_OFFSET, MAGIC);
+	}
+
+
+	static MappedByteBuffer mapRegion(FileChannel channel, long offset, int size) throws IOException {
+		MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+		region.order(ByteOrder.LITTLE_ENDIAN);
+		return region;
+	}
+
+
+	static int alignFrameSize(int size) {
+		return (size + 7) & ~7;
+	}
+
+
+	/**
+	 * Keeps the reads and writes of mapped memory before this from being reordered
+	 * with the ones after it. Mapped buffers have no ordered accessors before Java 9,
+	 * but the JIT can't move memory accesses across a volatile write followed by a
+	 * volatile read, and both are fences on the hardware.
+	 */
+	static void fullFence() {
+		fenceVar = 0;
+		if (fenceVar != 0) {
+			fenceVar = 0;
+		}
+	}
+
+
+	/**
+	 * Waits until the counter at the given offset of the control region reaches the
+	 * target
+	 */
+	static void waitForCounter(ByteBuffer control, int offset, long target) {
+		for (int tries = 0; control.getLong(offset) < target; tries++) {
+			if (tries < SPIN_TRIES) {
+				continue;
+			} else if (tries < SPIN_TRIES + YIELD_TRIES) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+		}
+		fullFence();
+	}
+
+
+	/**
+	 * Waits like {@link #waitForCounter(ByteBuffer, int, long)}, but gives up if the
+	 * thread is interrupted, for waits that may last indefinitely
+	 *
+	 * @throws InterruptedException
+	 *                 if the thread is interrupted before the counter reaches the
+	 *                 target
+	 */
+	static void waitForCounterInterruptibly(ByteBuffer control, int offset, long target) throws InterruptedException {
+		for (int tries = 0; control.getLong(offset) < target; tries++) {
+			if (tries < SPIN_TRIES) {
+				continue;
+			} else if (Thread.interrupted()) {
+				throw new InterruptedException();
+			} else if (tries < SPIN_TRIES + YIELD_TRIES) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+		}
+		fullFence();
+	}
+
+
+	@Override
+	protected ByteBuffer startFrame(int frameSize) {
+		int paddedSize = alignFrameSize(frameSize);
+		if (this.requestSize < paddedSize) {
+			throw new IllegalArgumentException(
+					"Frame of " + frameSize + " bytes is larger than the shared request ring (" + this.requestSize + " bytes)");
+		}
+
+		// The limit is still set to the end of the last frame
+		this.requests.clear();
+		int ringPos = (int) (this.writePos % this.requestSize);
+		if (this.requestSize < ringPos + paddedSize) {
+			// Skip the rest of the ring, once the receiver is done with it
+			waitForCounter(this.control, READ_POS_OFFSET, this.writePos - ringPos);
+			this.requests.putInt(ringPos, WRAP_MARKER);
+			this.writePos += this.requestSize - ringPos;
+			ringPos = 0;
+		}
+		waitForCounter(this.control, READ_POS_OFFSET, this.writePos + paddedSize - this.requestSize);
+
+		this.frameSize = paddedSize;
+		this.requests.limit(ringPos + frameSize);
+		this.requests.position(ringPos);
+		return this.requests;
+	}
+
+
+	@Override
+	protected void finishFrame(ByteBuffer frameBuf) {
+		this.writePos += this.frameSize;
+		fullFence();
+		this.control.putLong(WRITE_POS_OFFSET, this.writePos);
+	}
+
+
+	@Override
+	public void flush() {
+		// Frames are always published as soon as they are finished, since that costs
+		// no system calls
+	}
+
+
+	@Override
+	protected ByteBuffer readReplyFrame() {
+		this.responsesRead++;
+		waitForCounter(this.control, RESPONSE_COUNT_OFFSET, this.responsesRead);
+		this.response.clear();
+		int frameLength = this.response.getInt(0);
+		this.response.limit(4 + frameLength);
+		this.response.position(4);
+		return this.response;
+	}
+}
@@ -0,0 +1,239 @@
+package deeplearning;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A stand-in for the external learner on the other end of a
+ * {@link SharedMemoryNNChannel}, for testing without Torch. It answers every feed
+ * forward (or batch of them) with the outputs of a native {@link NeuralNet} (or with zeros, if it has
+ * none), trains the network on back-propagation messages, and reads and drops
+ * everything else. States are read straight out of the shared memory.
+ * <p>
+ * It can be run in its own process with
+ * {@code java deeplearning.SharedMemoryNNStandIn <file> [nOutputs]}, or in a thread of
+ * the simulator.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class SharedMemoryNNStandIn implements Runnable {
+	private final MappedByteBuffer control;
+	private final MappedByteBuffer requests;
+	private final MappedByteBuffer response;
+	private final int requestSize;
+	private final boolean useFloat32;
+	private final NeuralNet nn;
+	private final double[] zeroOutputs;
+	private long readPos = 0;
+	private long responseCount = 0;
+	private long nFramesRead = 0;
+	private double[] values = new double[0];
+
+
+	/**
+	 * Connects to a shared file, waiting for the simulator to create it if needed
+	 *
+	 * @param file
+	 *                the shared file
+	 * @param nn
+	 *                the network to answer with, or null to answer with zeros
+	 * @param nOutputs
+	 *                the number of outputs to answer with, if there is no network
+	 */
+	public SharedMemoryNNStandIn(File file, NeuralNet nn, int nOutputs) throws IOException, InterruptedException {
+		this.nn = nn;
+		this.zeroOutputs = new double[nOutputs];
+
+		while (!file.exists() || file.length() < SharedMemoryNNChannel.CONTROL_SIZE) {
+			Thread.sleep(100);
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			this.control = SharedMemoryNNChannel.mapRegion(channel, 0, SharedMemoryNNChannel.CONTROL_SIZE);
+			while (this.control.getInt(SharedMemoryNNChannel.MAGIC_OFFSET) != SharedMemoryNNChannel.MAGIC) {
+				Thread.sleep(100);
+			}
+			SharedMemoryNNChannel.fullFence();
+			if (this.control.getInt(SharedMemoryNNChannel.VERSION_OFFSET) != SharedMemoryNNChannel.VERSION) {
+				throw new IOException("Shared file " + file + " has an unknown version");
+			}
+			this.requestSize = this.control.getInt(SharedMemoryNNChannel.REQUEST_SIZE_OFFSET);
+			this.useFloat32 = this.control.getInt(SharedMemoryNNChannel.FLOAT32_OFFSET) != 0;
+			this.requests = SharedMemoryNNChannel.mapRegion(channel, SharedMemoryNNChannel.CONTROL_SIZE, this.requestSize);
+			this.response = SharedMemoryNNChannel.mapRegion(channel,
+					SharedMemoryNNChannel.CONTROL_SIZE + (long) this.requestSize, SharedMemoryNNChannel.RESPONSE_SIZE);
+		} finally {
+			raf.close();
+		}
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: SharedMemoryNNStandIn <file> [nOutputs]");
+			System.exit(1);
+		}
+		int nOutputs = (2 <= args.length ? Integer.parseInt(args[1]) : 5);
+		SharedMemoryNNStandIn standIn = new SharedMemoryNNStandIn(new File(args[0]), null, nOutputs);
+		System.out.printf("Serving %s\n", args[0]);
+		standIn.run();
+	}
+
+
+	/**
+	 * Serves requests until the thread is interrupted
+	 */
+	@Override
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				this.serveNextFrame();
+			}
+		} catch (InterruptedException e) {
+			// Leave the flag set for whoever stopped the thread
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * Waits for the next request frame and handles it
+	 *
+	 * @throws InterruptedException
+	 *                 if the thread is interrupted while waiting for a frame
+	 */
+	public void serveNextFrame() throws InterruptedException {
+		SharedMemoryNNChannel.waitForCounterInterruptibly(this.control, SharedMemoryNNChannel.WRITE_POS_OFFSET,
+				this.readPos + 1);
+
+		int ringPos = (int) (this.readPos % this.requestSize);
+		int frameLength = this.requests.getInt(ringPos);
+		if (frameLength == SharedMemoryNNChannel.WRAP_MARKER) {
+			this.finishFrame(this.requestSize - ringPos);
+			return;
+		}
+
+		byte opcode = this.requests.get(ringPos + 4);
+		int payloadPos = ringPos + 5;
+		if (opcode == BinaryNNChannel.OP_FEED_FORWARD) {
+			int nInputs = this.readValues(payloadPos);
+			if (this.nn != null) {
+				this.nn.feedForward(nInputs == this.values.length ? this.values : Arrays.copyOf(this.values, nInputs));
+			}
+			this.sendOutputs();
+		} else if (opcode == BinaryNNChannel.OP_FEED_FORWARD_BATCH) {
+			int nStates = this.requests.getInt(payloadPos);
+			int nValues = this.readValues(payloadPos + 4);
+			this.sendBatchOutputs(nStates, nValues / Math.max(1, nStates));
+		} else if (opcode == BinaryNNChannel.OP_FEED_FORWARD_NOSTATE) {
+			// The network still holds the last state
+			this.sendOutputs();
+		} else if (opcode == BinaryNNChannel.OP_BACKPROPAGATE && this.nn != null) {
+			int nValues = this.readValues(payloadPos);
+			this.nn.backPropagateFromLastSample_RMSProp(Arrays.copyOf(this.values, nValues));
+			this.nn.finishBatch_RMSProp();
+		}
+
+		this.finishFrame(SharedMemoryNNChannel.alignFrameSize(4 + frameLength));
+	}
+
+
+	/**
+	 * Gets the number of request frames handled so far
+	 */
+	public long getNumFramesRead() {
+		return this.nFramesRead;
+	}
+
+
+	/**
+	 * Releases the space used by a frame back to the sender
+	 */
+	private void finishFrame(int size) {
+		this.readPos += size;
+		this.nFramesRead++;
+		SharedMemoryNNChannel.fullFence();
+		this.control.putLong(SharedMemoryNNChannel.READ_POS_OFFSET, this.readPos);
+	}
+
+
+	/**
+	 * Reads an array of values into {@link #values}
+	 *
+	 * @return the number of values read
+	 */
+	private int readValues(int pos) {
+		int nValues = this.requests.getInt(pos);
+		if (this.values.length < nValues) {
+			this.values = new double[nValues];
+		}
+		pos += 4;
+		for (int i = 0; i < nValues; i++) {
+			if (this.useFloat32) {
+				this.values[i] = this.requests.getFloat(pos + 4 * i);
+			} else {
+				this.values[i] = this.requests.getDouble(pos + 8 * i);
+			}
+		}
+		return nValues;
+	}
+
+
+	private void sendOutputs() {
+		double[] outputs = (this.nn != null ? this.nn.getOutputs() : this.zeroOutputs);
+		this.putOutputs(0, outputs);
+		this.publishResponse(outputs.length);
+	}
+
+
+	/**
+	 * Feeds each state of a batch (in {@link #values}) forward, and sends all of the
+	 * outputs in one reply
+	 */
+	private void sendBatchOutputs(int nStates, int stateSize) {
+		int nOutputs = 0;
+		double[] state = new double[stateSize];
+		for (int i = 0; i < nStates; i++) {
+			double[] outputs = this.zeroOutputs;
+			if (this.nn != null) {
+				System.arraycopy(this.values, i * stateSize, state, 0, stateSize);
+				this.nn.feedForward(state);
+				outputs = this.nn.getOutputs();
+			}
+			this.putOutputs(nOutputs, outputs);
+			nOutputs += outputs.length;
+		}
+		this.publishResponse(nOutputs);
+	}
+
+
+	/**
+	 * Writes outputs into the response, starting at the given value number
+	 */
+	private void putOutputs(int firstValue, double[] outputs) {
+		for (int i = 0; i < outputs.length; i++) {
+			if (this.useFloat32) {
+				this.response.putFloat(8 + 4 * (firstValue + i), (float) outputs[i]);
+			} else {
+				this.response.putDouble(8 + 8 * (firstValue + i), outputs[i]);
+			}
+		}
+	}
+
+
+	private void publishResponse(int nValues) {
+		int valueSize = (this.useFloat32 ? 4 : 8);
+		this.response.putInt(0, 4 + nValues * valueSize);
+		this.response.putInt(4, nValues);
+
+		this.responseCount++;
+		SharedMemoryNNChannel.fullFence();
+		this.control.putLong(SharedMemoryNNChannel.RESPONSE_COUNT_OFFSET, this.responseCount);
+	}
+}
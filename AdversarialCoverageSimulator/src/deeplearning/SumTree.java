@@ -0,0 +1,80 @@
+package deeplearning;
+
+/**
+ * A binary tree of non-negative priorities where each node holds the sum of its
+ * children, stored in a flat array with the root at index 1 and the children of node
+ * {@code i} at {@code 2i} and {@code 2i + 1}. Priorities can be changed, and picked in
+ * proportion to their size, in O(log n) time.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class SumTree {
+	private final int capacity;
+	private final int firstLeaf;
+	private final double[] nodes;
+
+
+	/**
+	 * Creates a tree with every priority set to zero
+	 *
+	 * @param capacity
+	 *                the number of priorities
+	 */
+	public SumTree(int capacity) {
+		this.capacity = capacity;
+		int leaves = 1;
+		while (leaves < capacity) {
+			leaves *= 2;
+		}
+		this.firstLeaf = leaves;
+		this.nodes = new double[2 * leaves];
+	}
+
+
+	public void set(int index, double priority) {
+		int node = this.firstLeaf + index;
+		this.nodes[node] = priority;
+		// Sums are recalculated instead of adjusted by the difference, so rounding
+		// errors don't build up
+		for (node /= 2; 1 <= node; node /= 2) {
+			this.nodes[node] = this.nodes[2 * node] + this.nodes[2 * node + 1];
+		}
+	}
+
+
+	public double get(int index) {
+		return this.nodes[this.firstLeaf + index];
+	}
+
+
+	public double getTotal() {
+		return this.nodes[1];
+	}
+
+
+	/**
+	 * Finds the priority that contains the given point when all of the priorities are
+	 * laid end to end. Picking the point uniformly from [0, total) picks each priority
+	 * with probability proportional to its size.
+	 *
+	 * @param point
+	 *                a value in [0, total)
+	 * @return the index of the priority
+	 */
+	public int find(double point) {
+		int node = 1;
+		while (node < this.firstLeaf) {
+			int left = 2 * node;
+			// Rounding can leave the point past the last non-zero priority, which
+			// should never be picked over it
+			if (point < this.nodes[left] || this.nodes[left + 1] == 0.0) {
+				node = left;
+			} else {
+				point -= this.nodes[left];
+				node = left + 1;
+			}
+		}
+		return Math.min(this.capacity - 1, node - this.firstLeaf);
+	}
+}
@@ -0,0 +1,183 @@
+package deeplearning;
+
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.util.InputMismatchException;
+import java.util.Scanner;
+
+/**
+ * The original line-based text protocol, with each message as a code on its own line
+ * followed by lines of space-separated hex floats
+ *
+ * @author Mike D'Arcy
+ *
+ */
+class TextNNChannel implements ExternalNNChannel {
+	private final PrintWriter outWriter;
+	private final BufferedReader br;
+	private final StringBuilder outMsg = new StringBuilder("");
+	private boolean autoFlush = true;
+
+
+	public TextNNChannel(PrintWriter outWriter, BufferedReader br) {
+		this.outWriter = outWriter;
+		this.br = br;
+	}
+
+
+	@Override
+	public void sendFeedForward(double[] inputs) {
+		this.outMsg.append("f\n");
+		this.appendValues(inputs);
+		this.sendMessage();
+	}
+
+
+	@Override
+	public void sendFeedForwardBatch(double[] inputs, int nStates, int stateSize) {
+		this.outMsg.append(String.format("f_batch\n%d\n", nStates));
+		for (int i = 0; i < nStates; i++) {
+			this.appendValues(inputs, i * stateSize, stateSize);
+		}
+		this.sendMessage();
+	}
+
+
+	@Override
+	public void sendFeedForwardNoState() {
+		this.outWriter.print("f_nostate\n");
+		this.finishMessage();
+	}
+
+
+	@Override
+	public void sendBackPropagate(double[] correctOutputs) {
+		this.outMsg.append("b\n");
+		this.appendValues(correctOutputs);
+		this.sendMessage();
+	}
+
+
+	@Override
+	public void sendTransition(double[] startState, int action, double reward, boolean isTerminal,
+			double[] nextState) {
+		if (startState == null) {
+			this.outMsg.append("t_nostartstate\n");
+		} else {
+			this.outMsg.append("t\n");
+			this.appendValues(startState);
+		}
+
+		// Output the transition info
+		this.outMsg.append(String.format("%d %a %d \n", action, reward, isTerminal ? 1 : 0));
+
+		if (!isTerminal) {
+			this.appendValues(nextState);
+		}
+
+		this.sendMessage();
+	}
+
+
+	@Override
+	public void sendCode(String code) {
+		this.outWriter.printf("%s\n", code);
+		this.finishMessage();
+	}
+
+
+	@Override
+	public void sendForget() {
+		this.outWriter.println("forget");
+		this.finishMessage();
+	}
+
+
+	@Override
+	public double[] readOutputs() {
+		double[] outputs = new double[5];
+		Scanner s = null;
+		String str = "";
+		try {
+			str = this.br.readLine();
+			if (str != null) {
+				s = new Scanner(str);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		if (s == null) {
+			return null;
+		}
+
+		try {
+			for (int i = 0; i < outputs.length; i++) {
+				outputs[i] = s.nextDouble();
+			}
+		} catch (InputMismatchException e) {
+			System.err.printf("Input mismatch when attempting to retreive NN outputs!\n");
+			System.err.printf("The offending input was encountered in this string: %s\n", str);
+			try {
+				Thread.sleep(500);
+			} catch (InterruptedException e1) {
+				System.err.println("Sleeping Thread was interrupted.");
+			}
+		}
+
+		return outputs;
+	}
+
+
+	@Override
+	public double[][] readOutputsBatch(int nStates) {
+		// The outputs for each state are on their own line
+		double[][] outputs = new double[nStates][];
+		for (int i = 0; i < nStates; i++) {
+			outputs[i] = this.readOutputs();
+			if (outputs[i] == null) {
+				return null;
+			}
+		}
+		return outputs;
+	}
+
+
+	private void appendValues(double[] values) {
+		this.appendValues(values, 0, values.length);
+	}
+
+
+	private void appendValues(double[] values, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			this.outMsg.append(String.format("%a ", values[i]));
+		}
+		this.outMsg.append('\n');
+	}
+
+
+	private void sendMessage() {
+		this.outWriter.print(this.outMsg.toString());
+		this.finishMessage();
+		this.outMsg.setLength(0);
+	}
+
+
+	@Override
+	public void setAutoFlush(boolean autoFlush) {
+		this.autoFlush = autoFlush;
+	}
+
+
+	@Override
+	public void flush() {
+		this.outWriter.flush();
+	}
+
+
+	private void finishMessage() {
+		if (this.autoFlush) {
+			this.outWriter.flush();
+		}
+	}
+}
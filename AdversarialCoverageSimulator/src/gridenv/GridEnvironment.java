@@ -3,37 +3,85 @@ package gridenv;
 import java.awt.Dimension;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-import adsim.ConsoleController;
 import adsim.Robot;
 import adsim.SettingsReloadable;
-import adsim.SimulatorMain;
+import adsim.Simulation;
+import adsim.SimulationContext;
 import adsim.TerminalCommand;
+import adsim.TwoPhaseAlgorithm;
 
 public class GridEnvironment implements SettingsReloadable {
+	/**
+	 * The threads that robots prepare their steps on, by number of threads. They are
+	 * shared by every environment, so that simulations created for each run don't
+	 * leave threads behind.
+	 */
+	private static final Map<Integer, ForkJoinPool> preparePools = new HashMap<>();
+
+	/**
+	 * Views onto the cells of {@link #gridStore}, kept for code that works with
+	 * individual nodes
+	 */
 	public GridNode[][] grid;
+	private GridStore gridStore;
+	/**
+	 * The number of robots in each cell, and the id of one of them (or -1 if there are
+	 * none), indexed the same way as {@link #gridStore}. Kept up to date by
+	 * {@link GridRobot#setLocation(int, int)}.
+	 */
+	private int[] robotCounts;
+	private int[] robotIds;
 	public Dimension gridSize = new Dimension();
 	public List<GridRobot> robots;
 	private int stepCount = 0;
-
-	private boolean RANDOMIZE_ROBOT_LOCATION_ON_INIT = SimulatorMain.settings.getBoolean("autorun.randomize_robot_start");
-	private boolean CLEAR_ADJACENT_CELLS_ON_INIT = SimulatorMain.settings.getBoolean("env.clear_adjacent_cells_on_init");
+	/**
+	 * The simulation that owns this environment, notified when the environment is
+	 * initialized
+	 */
+	private Simulation simulation = null;
+	private final SimulationContext context;
+
+	private boolean RANDOMIZE_ROBOT_LOCATION_ON_INIT;
+	private boolean CLEAR_ADJACENT_CELLS_ON_INIT;
+	private boolean TWO_PHASE_ROBOT_STEPS;
+	private int TWO_PHASE_THREADS;
+	private boolean ROBOTS_ARE_OBSTACLES;
+	/**
+	 * The robots stepped in two phases during the current step, reused from step to
+	 * step
+	 */
+	private final List<GridRobot> preparedRobots = new ArrayList<>();
 
 
-	public GridEnvironment(Dimension gridSize) {
+	/**
+	 * Creates an environment with an empty grid of the given size
+	 * 
+	 * @param gridSize
+	 *                the size of the grid
+	 * @param context
+	 *                the context of the simulation that the environment belongs to
+	 */
+	public GridEnvironment(Dimension gridSize, SimulationContext context) {
+		this.context = context;
+		this.loadSettings();
 		this.gridSize.width = gridSize.width;
 		this.gridSize.height = gridSize.height;
 
 		// Set up the robot list
 		this.robots = new ArrayList<>();
 
-		this.grid = new GridNode[gridSize.width][gridSize.height];
-		for (int x = 0; x < gridSize.width; x++) {
-			for (int y = 0; y < gridSize.height; y++) {
-				this.grid[x][y] = new GridNode(x, y, NodeType.FREE);
-			}
-		}
+		this.gridStore = new GridStore(gridSize.width, gridSize.height);
+		this.grid = createNodeViews(this.gridStore);
+		this.rebuildOccupancy();
 
 		registerCustomCommands();
 
@@ -45,6 +93,8 @@ public class GridEnvironment implements SettingsReloadable {
 	 */
 	public void addRobot(GridRobot robot) {
 		this.robots.add(robot);
+		robot.setEnvironment(this);
+		this.addOccupant(robot);
 	}
 
 
@@ -54,8 +104,9 @@ public class GridEnvironment implements SettingsReloadable {
 	 * @return true if all robots are borken, false otherwise
 	 */
 	public boolean allRobotsBroken() {
-		for (Robot r : this.robots) {
-			if (!r.isBroken()) {
+		// Checked for every cell a robot covers, so this doesn't create an iterator
+		for (int i = 0; i < this.robots.size(); i++) {
+			if (!this.robots.get(i).isBroken()) {
 				return false;
 			}
 		}
@@ -87,12 +138,22 @@ public class GridEnvironment implements SettingsReloadable {
 	}
 
 
+	private static GridNode[][] createNodeViews(GridStore store) {
+		GridNode[][] views = new GridNode[store.getWidth()][store.getHeight()];
+		for (int x = 0; x < store.getWidth(); x++) {
+			for (int y = 0; y < store.getHeight(); y++) {
+				views[x][y] = new GridNode(store, x, y);
+			}
+		}
+		return views;
+	}
+
+
 	public String exportToString() {
 		StringBuilder sb = new StringBuilder();
-		for (int x = 0; x < this.getWidth(); x++) {
-			for (int y = 0; y < this.getHeight(); y++) {
-				sb.append(String.format("%f ", this.grid[x][y].getDangerProb()));
-			}
+		final double[] danger = this.gridStore.getDangerArray();
+		for (int i = 0; i < danger.length; i++) {
+			sb.append(String.format("%f ", danger[i]));
 		}
 		return sb.toString();
 	}
@@ -114,6 +175,18 @@ public class GridEnvironment implements SettingsReloadable {
 	}
 
 
+	/**
+	 * Gets the flat storage for the grid's cells. The store is replaced when the grid
+	 * is resized, so it should not be cached across calls to
+	 * {@link #setSize(Dimension)}.
+	 * 
+	 * @return the grid store
+	 */
+	public GridStore getGridStore() {
+		return this.gridStore;
+	}
+
+
 	/**
 	 * Gets the height of the grid
 	 * 
@@ -158,9 +231,12 @@ public class GridEnvironment implements SettingsReloadable {
 	 *                the x coordinate
 	 * @param y
 	 *                the y coordinate
-	 * @return an array of {@code GridRobot}s
+	 * @return an array of {@code GridRobot}s, which must not be modified
 	 */
 	public List<GridRobot> getRobotsByLocation(int x, int y) {
+		if (this.isOnGrid(x, y) && this.getNumRobotsAt(x, y) == 0) {
+			return Collections.emptyList();
+		}
 		List<GridRobot> robolist = new ArrayList<>();
 		for (int i = 0; i < this.robots.size(); i++) {
 			if (this.robots.get(i).getLocation().x == x && this.robots.get(i).getLocation().y == y) {
@@ -171,11 +247,125 @@ public class GridEnvironment implements SettingsReloadable {
 	}
 
 
+	/**
+	 * Gets the number of robots at the given coordinates, which must be on the grid
+	 *
+	 * @param x
+	 *                the x coordinate
+	 * @param y
+	 *                the y coordinate
+	 * @return the number of robots in the cell
+	 */
+	public int getNumRobotsAt(int x, int y) {
+		return this.robotCounts[this.gridStore.indexOf(x, y)];
+	}
+
+
+	/**
+	 * Gets the id of a robot at the given coordinates, which must be on the grid
+	 *
+	 * @param x
+	 *                the x coordinate
+	 * @param y
+	 *                the y coordinate
+	 * @return the id of one of the robots in the cell, or -1 if there are none
+	 */
+	public int getRobotIdAt(int x, int y) {
+		return this.robotIds[this.gridStore.indexOf(x, y)];
+	}
+
+
+	/**
+	 * Moves a robot from its old cell to its new one in the occupancy grid
+	 */
+	void onRobotMoved(GridRobot robot, int oldX, int oldY) {
+		if (this.isOnGrid(oldX, oldY)) {
+			int oldCell = this.gridStore.indexOf(oldX, oldY);
+			this.robotCounts[oldCell]--;
+			if (this.robotIds[oldCell] == robot.getId()) {
+				// Robots only share cells when they aren't obstacles to each other,
+				// so this search is rare
+				this.robotIds[oldCell] = -1;
+				if (0 < this.robotCounts[oldCell]) {
+					for (GridRobot r : this.robots) {
+						if (r.getLocation().x == oldX && r.getLocation().y == oldY) {
+							this.robotIds[oldCell] = r.getId();
+							break;
+						}
+					}
+				}
+			}
+		}
+		this.addOccupant(robot);
+	}
+
+
+	private void addOccupant(GridRobot robot) {
+		Coordinate loc = robot.getLocation();
+		if (this.isOnGrid(loc.x, loc.y)) {
+			int cell = this.gridStore.indexOf(loc.x, loc.y);
+			if (this.robotCounts[cell] == 0) {
+				this.robotIds[cell] = robot.getId();
+			}
+			this.robotCounts[cell]++;
+		}
+	}
+
+
+	private void rebuildOccupancy() {
+		this.robotCounts = new int[this.gridStore.size()];
+		this.robotIds = new int[this.gridStore.size()];
+		Arrays.fill(this.robotIds, -1);
+		for (GridRobot r : this.robots) {
+			this.addOccupant(r);
+		}
+	}
+
+
 	public int getStepCount() {
 		return this.stepCount;
 	}
 
 
+	/**
+	 * Gets the context of the simulation that this environment belongs to
+	 * 
+	 * @return the context
+	 */
+	public SimulationContext getContext() {
+		return this.context;
+	}
+
+
+	/**
+	 * Gets the random number generator used for events in this environment, such as
+	 * robot placement and threats
+	 * 
+	 * @return the random number generator
+	 */
+	public Random getRandom() {
+		return this.context.getRandom();
+	}
+
+
+	public Simulation getSimulation() {
+		return this.simulation;
+	}
+
+
+	/**
+	 * Sets the simulation that owns this environment. The simulation's
+	 * {@link Simulation#onEnvInit()} hook is called whenever the environment is
+	 * initialized.
+	 * 
+	 * @param simulation
+	 *                the owning simulation
+	 */
+	public void setSimulation(Simulation simulation) {
+		this.simulation = simulation;
+	}
+
+
 	/**
 	 * Gets the width of the grid
 	 * 
@@ -196,8 +386,8 @@ public class GridEnvironment implements SettingsReloadable {
 			if (this.RANDOMIZE_ROBOT_LOCATION_ON_INIT) {
 				Coordinate location = new Coordinate(-1, -1);
 				while (location.x == -1 || this.getGridNode(location.x, location.y).getNodeType() == NodeType.OBSTACLE) {
-					location.x = (int) (Math.random() * this.getWidth());
-					location.y = (int) (Math.random() * this.getHeight());
+					location.x = (int) (this.getRandom().nextDouble() * this.getWidth());
+					location.y = (int) (this.getRandom().nextDouble() * this.getHeight());
 				}
 				this.robots.get(robotNum).setLocation(location.x, location.y);
 				if (this.CLEAR_ADJACENT_CELLS_ON_INIT) {
@@ -211,8 +401,10 @@ public class GridEnvironment implements SettingsReloadable {
 
 		}
 
-		SimulatorMain.controller.runCommand_noEcho(SimulatorMain.settings.getString("hooks.env.post_init.cmd"));
-		SimulatorMain.getEngine().getSimulation().onEnvInit();
+		this.context.runCommand_noEcho(this.context.getSettings().getString("hooks.env.post_init.cmd"));
+		if (this.simulation != null) {
+			this.simulation.onEnvInit();
+		}
 	}
 
 
@@ -234,25 +426,17 @@ public class GridEnvironment implements SettingsReloadable {
 	public void printToWriter_onelayer(PrintStream pw) {
 		for (int y = 0; y < this.getHeight(); y++) {
 			for (int x = 0; x < this.getWidth(); x++) {
-				GridNode node = this.grid[x][y];
-				if (node.getNodeType() == NodeType.OBSTACLE) {
+				int cell = this.gridStore.indexOf(x, y);
+				if (this.gridStore.isObstacle(cell)) {
 					pw.printf("%4s", "OBS");
-				} else if (node.getDangerProb() == 0.0) {
+				} else if (this.gridStore.getDanger(cell) == 0.0) {
 					pw.printf("%4s", "FREE");
 				} else {
-					pw.printf("%4.2f", node.getDangerProb());
-				}
-
-				int robotId = -1;
-				for (GridRobot r : this.robots) {
-					if (r.getLocation().x == x && r.getLocation().y == y) {
-						robotId = r.getId();
-						break;
-					}
+					pw.printf("%4.2f", this.gridStore.getDanger(cell));
 				}
 
-				if (robotId == -1) {
-					pw.printf("%c ", node.getCoverCount() <= 0 ? 'N' : 'Y');
+				if (this.robotCounts[cell] == 0) {
+					pw.printf("%c ", this.gridStore.getCoverCount(cell) <= 0 ? 'N' : 'Y');
 				} else {
 					pw.printf("* ");
 				}
@@ -264,8 +448,7 @@ public class GridEnvironment implements SettingsReloadable {
 
 
 	private void registerCustomCommands() {
-		ConsoleController controller = SimulatorMain.controller;
-		controller.registerCommand(":env_printgrid", new TerminalCommand() {
+		this.context.registerCommand(":env_printgrid", new TerminalCommand() {
 			@Override
 			public void execute(String[] args) {
 				String streamname = "stdout";
@@ -283,7 +466,7 @@ public class GridEnvironment implements SettingsReloadable {
 			}
 		});
 
-		controller.registerCommand(":env_set_robot_pos", new TerminalCommand() {
+		this.context.registerCommand(":env_set_robot_pos", new TerminalCommand() {
 			@Override
 			public void execute(String[] args) {
 				if (args.length < 3) {
@@ -308,7 +491,7 @@ public class GridEnvironment implements SettingsReloadable {
 		});
 
 
-		controller.registerCommand(":get_run_step", new TerminalCommand() {
+		this.context.registerCommand(":get_run_step", new TerminalCommand() {
 			@Override
 			public void execute(String[] args) {
 				String toAppend = "";
@@ -326,39 +509,154 @@ public class GridEnvironment implements SettingsReloadable {
 		for (Robot r : this.robots) {
 			r.reloadSettings();
 		}
-		this.RANDOMIZE_ROBOT_LOCATION_ON_INIT = SimulatorMain.settings.getBoolean("autorun.randomize_robot_start");
-		this.CLEAR_ADJACENT_CELLS_ON_INIT = SimulatorMain.settings.getBoolean("env.clear_adjacent_cells_on_init");
+		this.loadSettings();
 	}
 
 
+	private void loadSettings() {
+		this.RANDOMIZE_ROBOT_LOCATION_ON_INIT = this.context.getSettings().getBoolean("autorun.randomize_robot_start");
+		this.CLEAR_ADJACENT_CELLS_ON_INIT = this.context.getSettings().getBoolean("env.clear_adjacent_cells_on_init");
+		this.TWO_PHASE_ROBOT_STEPS = this.context.getSettings().getBoolean("robots.two_phase_steps");
+		this.TWO_PHASE_THREADS = this.context.getSettings().getInt("robots.two_phase_threads");
+		this.ROBOTS_ARE_OBSTACLES = this.context.getSettings().getBoolean("rules.robots.robotsAreObstacles");
+	}
+
+
+	/**
+	 * Resizes the grid, keeping the cells that fit within the new size. Since cell
+	 * indices depend on the grid height, the old store and node views are replaced.
+	 */
 	public synchronized void setSize(Dimension newGridSize) {
-		GridNode[][] newGrid = new GridNode[newGridSize.width][newGridSize.height];
-		for (int x = 0; x < newGridSize.width; x++) {
-			for (int y = 0; y < newGridSize.height; y++) {
-				if (x < this.gridSize.width && y < this.gridSize.height) {
-					newGrid[x][y] = this.grid[x][y];
-				} else {
-					newGrid[x][y] = new GridNode(x, y, NodeType.FREE);
-				}
+		GridStore newStore = this.gridStore.resized(newGridSize.width, newGridSize.height);
+		GridNode[][] newGrid = createNodeViews(newStore);
+		for (int x = 0; x < Math.min(newGridSize.width, this.gridSize.width); x++) {
+			for (int y = 0; y < Math.min(newGridSize.height, this.gridSize.height); y++) {
+				newGrid[x][y].setCost(this.grid[x][y].getCost());
 			}
 		}
 
+		this.gridStore = newStore;
 		this.grid = newGrid;
 
 		this.gridSize.width = newGridSize.width;
 		this.gridSize.height = newGridSize.height;
+		this.rebuildOccupancy();
+	}
+
+
+	/**
+	 * Checks if a robot may move onto the given cell. Cells with obstacles can't be
+	 * entered, and neither can cells with other robots on them if the setting
+	 * {@code rules.robots.robotsAreObstacles} is on. The coordinates must be on the
+	 * grid.
+	 *
+	 * @param x
+	 *                the x coordinate
+	 * @param y
+	 *                the y coordinate
+	 * @return true if the cell can be moved onto, false otherwise
+	 */
+	public boolean isPassable(int x, int y) {
+		if (this.grid[x][y].getNodeType() == NodeType.OBSTACLE) {
+			return false;
+		}
+		return !this.ROBOTS_ARE_OBSTACLES || this.getNumRobotsAt(x, y) == 0;
 	}
 
 
 	/**
 	 * Moves one time step forward. Robots move, etc.
+	 * <p>
+	 * If the setting {@code robots.two_phase_steps} is on, robots whose algorithms are
+	 * {@link TwoPhaseAlgorithm}s all prepare their steps before any of them moves, so
+	 * that they can share work such as network queries. The others step as usual,
+	 * after them.
+	 * <p>
+	 * Since no robot moves while the steps are prepared, the robots can prepare on
+	 * several threads ({@code robots.two_phase_threads}), each with its own part of
+	 * the robot list. The moves are then made one at a time, in the order of the robot
+	 * list, so a robot that moves onto a cell first keeps it from the robots after it.
 	 */
 	public void step() {
 		this.stepCount++;
+		if (this.TWO_PHASE_ROBOT_STEPS && 1 < this.robots.size()) {
+			this.stepInTwoPhases();
+			return;
+		}
 		for (int robotNum = 0; robotNum < this.robots.size(); robotNum++) {
 			if (!this.robots.get(robotNum).isBroken()) {
 				this.robots.get(robotNum).coverAlgo.step();
 			}
 		}
 	}
+
+
+	private void stepInTwoPhases() {
+		this.preparedRobots.clear();
+		for (int robotNum = 0; robotNum < this.robots.size(); robotNum++) {
+			GridRobot robot = this.robots.get(robotNum);
+			if (!robot.isBroken() && robot.coverAlgo instanceof TwoPhaseAlgorithm) {
+				this.preparedRobots.add(robot);
+			}
+		}
+
+		if (this.TWO_PHASE_THREADS <= 1 || this.preparedRobots.size() <= 1) {
+			this.prepareRobots(0, this.preparedRobots.size());
+		} else {
+			this.prepareRobotsInParallel();
+		}
+
+		// A robot can still break during another robot's move
+		for (int i = 0; i < this.preparedRobots.size(); i++) {
+			GridRobot robot = this.preparedRobots.get(i);
+			if (!robot.isBroken()) {
+				((TwoPhaseAlgorithm) robot.coverAlgo).finishStep();
+			}
+		}
+
+		for (int robotNum = 0; robotNum < this.robots.size(); robotNum++) {
+			GridRobot robot = this.robots.get(robotNum);
+			if (!robot.isBroken() && !(robot.coverAlgo instanceof TwoPhaseAlgorithm)) {
+				robot.coverAlgo.step();
+			}
+		}
+	}
+
+
+	private void prepareRobots(int start, int end) {
+		for (int i = start; i < end; i++) {
+			((TwoPhaseAlgorithm) this.preparedRobots.get(i).coverAlgo).prepareStep();
+		}
+	}
+
+
+	private void prepareRobotsInParallel() {
+		ForkJoinPool pool = getPreparePool(this.TWO_PHASE_THREADS);
+		final int nRobots = this.preparedRobots.size();
+		final int nThreads = Math.min(this.TWO_PHASE_THREADS, nRobots);
+		List<ForkJoinTask<?>> tasks = new ArrayList<>(nThreads);
+		for (int t = 0; t < nThreads; t++) {
+			final int start = (int) ((long) nRobots * t / nThreads);
+			final int end = (int) ((long) nRobots * (t + 1) / nThreads);
+			tasks.add(pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					prepareRobots(start, end);
+				}
+			}));
+		}
+		for (ForkJoinTask<?> task : tasks) {
+			task.join();
+		}
+	}
+
+
+	private static synchronized ForkJoinPool getPreparePool(int nThreads) {
+		ForkJoinPool pool = preparePools.get(nThreads);
+		if (pool == null) {
+			pool = new ForkJoinPool(nThreads);
+			preparePools.put(nThreads, pool);
+		}
+		return pool;
+	}
 }
@@ -1,7 +1,10 @@
 package gridenv;
 
 /**
- * Represents a node that is part of a grid.
+ * Represents a node that is part of a grid. The node's cell data (type, danger, cover
+ * count, spreadability, and fuel) lives in a {@link GridStore}; a node is just a view
+ * onto one cell of the store. Nodes that are not attached to a grid (such as clones)
+ * have no store and keep their cell data in their own fields instead.
  * 
  * @author Mike D'Arcy
  *
@@ -17,28 +20,27 @@ public class GridNode extends Node {
 	 */
 	protected double cost = 0.0;
 
-
 	/**
-	 * The number of times this node was covered by a robot
+	 * The store holding this node's cell data, or null if the node is not attached to
+	 * a grid
 	 */
-	protected int coverCount = 0;
-
+	protected final GridStore store;
 
 	/**
-	 * The "spreadability" of danger
+	 * The index of this node's cell in the store
 	 */
-	public double spreadability = 0.0;
+	protected final int index;
 
-
-	/**
-	 * The amount of "fuel" the danger has (think of a fire). If the fuel reaches
-	 * zero, the danger will begin to decrease.
-	 */
-	public double dangerFuel = 0.0;
+	// The cell data of a node that is not attached to a grid
+	private NodeType detachedType;
+	private double detachedDanger = 0.0;
+	private double detachedFuel = 0.0;
+	private double detachedSpreadability = 0.0;
+	private int detachedCoverCount = 0;
 
 
 	/**
-	 * Create a new node
+	 * Create a new node that is not attached to any grid
 	 * 
 	 * @param x
 	 *                the x coordinate of the node
@@ -49,18 +51,38 @@ public class GridNode extends Node {
 	 */
 	public GridNode(int x, int y, NodeType nodeType) {
 		this.location = new Coordinate(x, y);
-		this.nodeType = nodeType;
+		this.store = null;
+		this.index = 0;
+		this.detachedType = nodeType;
 	}
 
 
 	/**
-	 * Create a clone of the node
+	 * Create a view onto the cell at the given location of a grid store
+	 * 
+	 * @param store
+	 *                the store that holds the cell
+	 * @param x
+	 *                the x coordinate of the node
+	 * @param y
+	 *                the y coordinate of the node
+	 */
+	public GridNode(GridStore store, int x, int y) {
+		this.location = new Coordinate(x, y);
+		this.store = store;
+		this.index = store.indexOf(x, y);
+	}
+
+
+	/**
+	 * Create a clone of the node. The clone is not attached to any grid, so it is a
+	 * single object holding a copy of the node's values.
 	 */
 	@Override
 	public GridNode clone() {
-		GridNode clone = new GridNode(this.location.x, this.location.y, this.nodeType);
+		GridNode clone = new GridNode(this.location.x, this.location.y, this.getNodeType());
 		clone.setCost(this.cost);
-		clone.setDangerProb(this.dangerProb);
+		clone.setDangerProb(this.getDangerProb());
 		return clone;
 	}
 
@@ -102,7 +124,89 @@ public class GridNode extends Node {
 	 * @return the number of times this node has been covered
 	 */
 	public int getCoverCount() {
-		return this.coverCount;
+		if (this.store == null) {
+			return this.detachedCoverCount;
+		}
+		return this.store.getCoverCount(this.index);
+	}
+
+
+	@Override
+	public NodeType getNodeType() {
+		if (this.store == null) {
+			return this.detachedType;
+		}
+		return this.store.getNodeType(this.index);
+	}
+
+
+	@Override
+	public void setNodeType(NodeType nodeType) {
+		if (this.store == null) {
+			this.detachedType = nodeType;
+			return;
+		}
+		this.store.setNodeType(this.index, nodeType);
+	}
+
+
+	@Override
+	public double getDangerProb() {
+		if (this.store == null) {
+			return this.detachedDanger;
+		}
+		return this.store.getDanger(this.index);
+	}
+
+
+	@Override
+	public void setDangerProb(double dangerProb) {
+		if (this.store == null) {
+			this.detachedDanger = dangerProb;
+			return;
+		}
+		this.store.setDanger(this.index, dangerProb);
+	}
+
+
+	/**
+	 * Gets the "spreadability" of danger from this node
+	 */
+	public double getSpreadability() {
+		if (this.store == null) {
+			return this.detachedSpreadability;
+		}
+		return this.store.getSpreadability(this.index);
+	}
+
+
+	public void setSpreadability(double spreadability) {
+		if (this.store == null) {
+			this.detachedSpreadability = spreadability;
+			return;
+		}
+		this.store.setSpreadability(this.index, spreadability);
+	}
+
+
+	/**
+	 * Gets the amount of "fuel" the danger has (think of a fire). If the fuel reaches
+	 * zero, the danger will begin to decrease.
+	 */
+	public double getDangerFuel() {
+		if (this.store == null) {
+			return this.detachedFuel;
+		}
+		return this.store.getFuel(this.index);
+	}
+
+
+	public void setDangerFuel(double dangerFuel) {
+		if (this.store == null) {
+			this.detachedFuel = dangerFuel;
+			return;
+		}
+		this.store.setFuel(this.index, dangerFuel);
 	}
 
 
@@ -132,7 +236,11 @@ public class GridNode extends Node {
 	 * Increment the cover count of this node
 	 */
 	public void incrementCoverCount() {
-		this.coverCount++;
+		if (this.store == null) {
+			this.detachedCoverCount++;
+			return;
+		}
+		this.store.incrementCoverCount(this.index);
 	}
 
 
@@ -147,7 +255,11 @@ public class GridNode extends Node {
 	 * @param count
 	 */
 	public void setCoverCount(int count) {
-		this.coverCount = count;
+		if (this.store == null) {
+			this.detachedCoverCount = count;
+			return;
+		}
+		this.store.setCoverCount(this.index, count);
 	}
 }
 
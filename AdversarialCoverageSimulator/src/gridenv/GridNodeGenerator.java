@@ -25,6 +25,18 @@ public class GridNodeGenerator {
 	}
 
 
+	/**
+	 * Constructs a generator whose random maps are reproducible from the given seed
+	 * 
+	 * @param seed
+	 *                the seed for the generator's random numbers
+	 */
+	public GridNodeGenerator(long seed) {
+		reset();
+		this.randgen.setSeed(seed);
+	}
+
+
 	/**
 	 * Resets parameters to default values
 	 */
@@ -255,8 +267,8 @@ class GridNodeTemplate {
 		}
 
 		if (node.getNodeType() != NodeType.OBSTACLE) {
-			node.spreadability = randgen.nextDouble() * (this.spreadabilityMax - this.spreadabilityMin) + this.spreadabilityMin;
-			node.dangerFuel = randgen.nextDouble() * (this.fuelMax - this.fuelMin) + this.fuelMin;
+			node.setSpreadability(randgen.nextDouble() * (this.spreadabilityMax - this.spreadabilityMin) + this.spreadabilityMin);
+			node.setDangerFuel(randgen.nextDouble() * (this.fuelMax - this.fuelMin) + this.fuelMin);
 		}
 
 		node.setCoverCount(this.coverCountStart);
@@ -11,6 +11,10 @@ import adsim.Robot;
  */
 public class GridRobot extends Robot {
 	private Coordinate location;
+	/**
+	 * The environment the robot has been added to, which is told when the robot moves
+	 */
+	private GridEnvironment env = null;
 
 
 	/**
@@ -47,8 +51,18 @@ public class GridRobot extends Robot {
 	 * @param y
 	 */
 	public void setLocation(int x, int y) {
+		int oldX = this.location.x;
+		int oldY = this.location.y;
 		this.location.x = x;
 		this.location.y = y;
+		if (this.env != null) {
+			this.env.onRobotMoved(this, oldX, oldY);
+		}
+	}
+
+
+	void setEnvironment(GridEnvironment env) {
+		this.env = env;
 	}
 
 
@@ -1,6 +1,9 @@
 package gridenv;
 
-import adsim.SimulatorMain;
+import java.util.Arrays;
+import java.util.Random;
+
+import adsim.SimulationContext;
 
 /**
  * A sensor for grids. It can detect the entire grid (including danger level, the number
@@ -28,6 +31,14 @@ public class GridSensor {
 	}
 
 
+	/**
+	 * Gets the unique id of the robot to which this sensor is attached
+	 */
+	public int getRobotId() {
+		return this.robot.getId();
+	}
+
+
 	/**
 	 * Gets the location of the robot to which this sensor is attached
 	 * 
@@ -66,7 +77,11 @@ public class GridSensor {
 	 * @param x
 	 * @param y
 	 * @return a {@code GridNode}
+	 * @deprecated every call copies the node. Use the getters for single values, or
+	 *             {@link #takeSnapshot(GridSnapshot)} and the window copies for many
+	 *             cells.
 	 */
+	@Deprecated
 	public GridNode getNodeAt(int x, int y) {
 		GridNode node = this.env.getGridNode(x, y);
 		if (node != null) {
@@ -84,7 +99,8 @@ public class GridSensor {
 	 * @return
 	 */
 	public double getDangerLevelAt(int x, int y) {
-		return this.env.getGridNode(x, y).getDangerProb();
+		GridStore store = this.env.getGridStore();
+		return store.getDanger(store.indexOf(x, y));
 	}
 
 
@@ -96,7 +112,8 @@ public class GridSensor {
 	 * @return
 	 */
 	public int getCoverCountAt(int x, int y) {
-		return this.env.getGridNode(x, y).getCoverCount();
+		GridStore store = this.env.getGridStore();
+		return store.getCoverCount(store.indexOf(x, y));
 	}
 
 
@@ -137,8 +154,29 @@ public class GridSensor {
 	}
 	
 	
+	/**
+	 * Gets the context of the simulation that the sensor's environment belongs to
+	 * 
+	 * @return the context
+	 */
+	public SimulationContext getContext() {
+		return this.env.getContext();
+	}
+
+
 	public boolean isFinished() {
-		return SimulatorMain.getEngine().getSimulation().isTerminalState();
+		return this.env.getSimulation().isTerminalState();
+	}
+
+
+	/**
+	 * Gets the random number generator of the environment, so that algorithms
+	 * making random choices can be reproduced along with the environment
+	 * 
+	 * @return the random number generator
+	 */
+	public Random getRandom() {
+		return this.env.getRandom();
 	}
 
 
@@ -146,7 +184,10 @@ public class GridSensor {
 	 * Returns the node that the robot is currently at
 	 * 
 	 * @return
+	 * @deprecated every call copies the node. Use the getters with {@link #getX()} and
+	 *             {@link #getY()} instead.
 	 */
+	@Deprecated
 	public GridNode getCurrentNode() {
 		return this.getNodeAt(this.robot.getLocation().x, this.robot.getLocation().y);
 	}
@@ -158,6 +199,112 @@ public class GridSensor {
 
 
 	public boolean isObstacle(int x, int y) {
-		return this.env.getGridNode(x, y).getNodeType() == NodeType.OBSTACLE;
+		GridStore store = this.env.getGridStore();
+		return store.isObstacle(store.indexOf(x, y));
+	}
+
+
+	/**
+	 * Copies the current state of the whole grid into a snapshot
+	 * 
+	 * @param reuse
+	 *                a snapshot to refill, if it is the same size as the grid. May be
+	 *                null.
+	 * @return the refilled snapshot, or a new one if it couldn't be reused
+	 */
+	public GridSnapshot takeSnapshot(GridSnapshot reuse) {
+		GridStore store = this.env.getGridStore();
+		GridSnapshot snapshot = reuse;
+		if (snapshot == null || !snapshot.hasSize(store.getWidth(), store.getHeight())) {
+			snapshot = new GridSnapshot(store.getWidth(), store.getHeight());
+		}
+		snapshot.copyFrom(store);
+		return snapshot;
+	}
+
+
+	/**
+	 * Copies the danger levels of a window of the grid into an array, one column of
+	 * the window after another (so the cell at {@code (x0 + i, y0 + j)} is written to
+	 * {@code dest[offset + i * windowHeight + j]}). The window may extend past the edges
+	 * of the grid, in which case the given value is written for the cells that aren't
+	 * on it.
+	 * 
+	 * @param x0
+	 *                the x coordinate of the first column of the window
+	 * @param y0
+	 *                the y coordinate of the first row of the window
+	 * @param windowWidth
+	 *                the number of columns in the window
+	 * @param windowHeight
+	 *                the number of rows in the window
+	 * @param dest
+	 *                the array to write to
+	 * @param offset
+	 *                the position in the array to write the first cell to
+	 * @param outOfBoundsValue
+	 *                the value for cells that aren't on the grid
+	 */
+	public void copyDangerWindow(int x0, int y0, int windowWidth, int windowHeight, double[] dest, int offset,
+			double outOfBoundsValue) {
+		GridStore store = this.env.getGridStore();
+		int yStart = Math.max(y0, 0);
+		int yEnd = Math.min(y0 + windowHeight, store.getHeight());
+		for (int i = 0; i < windowWidth; i++) {
+			int x = x0 + i;
+			int col = offset + i * windowHeight;
+			if (x < 0 || store.getWidth() <= x || yEnd <= yStart) {
+				Arrays.fill(dest, col, col + windowHeight, outOfBoundsValue);
+				continue;
+			}
+			Arrays.fill(dest, col, col + (yStart - y0), outOfBoundsValue);
+			System.arraycopy(store.danger, store.indexOf(x, yStart), dest, col + (yStart - y0), yEnd - yStart);
+			Arrays.fill(dest, col + (yEnd - y0), col + windowHeight, outOfBoundsValue);
+		}
+	}
+
+
+	/**
+	 * Copies the cover counts of a window of the grid into an array, laid out as in
+	 * {@link #copyDangerWindow(int, int, int, int, double[], int, double)}
+	 */
+	public void copyCoverCountWindow(int x0, int y0, int windowWidth, int windowHeight, int[] dest, int offset,
+			int outOfBoundsValue) {
+		GridStore store = this.env.getGridStore();
+		int yStart = Math.max(y0, 0);
+		int yEnd = Math.min(y0 + windowHeight, store.getHeight());
+		for (int i = 0; i < windowWidth; i++) {
+			int x = x0 + i;
+			int col = offset + i * windowHeight;
+			if (x < 0 || store.getWidth() <= x || yEnd <= yStart) {
+				Arrays.fill(dest, col, col + windowHeight, outOfBoundsValue);
+				continue;
+			}
+			Arrays.fill(dest, col, col + (yStart - y0), outOfBoundsValue);
+			System.arraycopy(store.coverCount, store.indexOf(x, yStart), dest, col + (yStart - y0), yEnd - yStart);
+			Arrays.fill(dest, col + (yEnd - y0), col + windowHeight, outOfBoundsValue);
+		}
+	}
+
+
+	/**
+	 * Copies whether each cell of a window of the grid is an obstacle into an array,
+	 * laid out as in {@link #copyDangerWindow(int, int, int, int, double[], int, double)}
+	 */
+	public void copyObstacleWindow(int x0, int y0, int windowWidth, int windowHeight, boolean[] dest, int offset,
+			boolean outOfBoundsValue) {
+		GridStore store = this.env.getGridStore();
+		for (int i = 0; i < windowWidth; i++) {
+			int x = x0 + i;
+			int col = offset + i * windowHeight;
+			for (int j = 0; j < windowHeight; j++) {
+				int y = y0 + j;
+				if (this.env.isOnGrid(x, y)) {
+					dest[col + j] = store.isObstacle(store.indexOf(x, y));
+				} else {
+					dest[col + j] = outOfBoundsValue;
+				}
+			}
+		}
 	}
 }
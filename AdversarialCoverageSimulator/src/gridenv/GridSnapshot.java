@@ -0,0 +1,96 @@
+package gridenv;
+
+/**
+ * A copy of the danger levels, cover counts, and node types of a grid, as they were when
+ * it was taken. Taking a snapshot copies a few flat arrays rather than creating an
+ * object per cell, and an old snapshot of the same size can be refilled instead of
+ * allocating a new one (see {@link GridSensor#takeSnapshot(GridSnapshot)}). A snapshot
+ * can't be changed in any other way, so it stays the same while the robots move.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class GridSnapshot {
+	private static final NodeType[] NODE_TYPES = NodeType.values();
+	private static final byte OBSTACLE_TYPE = (byte) NodeType.OBSTACLE.ordinal();
+
+	private final int width;
+	private final int height;
+	private final double[] danger;
+	private final int[] coverCount;
+	private final byte[] nodeType;
+
+
+	GridSnapshot(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.danger = new double[width * height];
+		this.coverCount = new int[width * height];
+		this.nodeType = new byte[width * height];
+	}
+
+
+	/**
+	 * Copies the values of the store into this snapshot, which must be the same size
+	 */
+	void copyFrom(GridStore store) {
+		System.arraycopy(store.danger, 0, this.danger, 0, this.danger.length);
+		System.arraycopy(store.coverCount, 0, this.coverCount, 0, this.coverCount.length);
+		System.arraycopy(store.nodeType, 0, this.nodeType, 0, this.nodeType.length);
+	}
+
+
+	boolean hasSize(int width, int height) {
+		return this.width == width && this.height == height;
+	}
+
+
+	public int getWidth() {
+		return this.width;
+	}
+
+
+	public int getHeight() {
+		return this.height;
+	}
+
+
+	public boolean isOnGrid(int x, int y) {
+		return (0 <= x && x < this.width && 0 <= y && y < this.height);
+	}
+
+
+	/**
+	 * Gets the danger level of the cell at the given coordinates, which must be on the
+	 * grid
+	 */
+	public double getDangerLevelAt(int x, int y) {
+		return this.danger[x * this.height + y];
+	}
+
+
+	/**
+	 * Gets the cover count of the cell at the given coordinates, which must be on the
+	 * grid
+	 */
+	public int getCoverCountAt(int x, int y) {
+		return this.coverCount[x * this.height + y];
+	}
+
+
+	/**
+	 * Gets the type of the cell at the given coordinates, which must be on the grid
+	 */
+	public NodeType getNodeTypeAt(int x, int y) {
+		return NODE_TYPES[this.nodeType[x * this.height + y]];
+	}
+
+
+	/**
+	 * Checks if the cell at the given coordinates, which must be on the grid, is an
+	 * obstacle
+	 */
+	public boolean isObstacle(int x, int y) {
+		return this.nodeType[x * this.height + y] == OBSTACLE_TYPE;
+	}
+}
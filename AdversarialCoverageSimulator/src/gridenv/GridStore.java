@@ -0,0 +1,273 @@
+package gridenv;
+
+import java.util.Arrays;
+
+/**
+ * Column-oriented storage for the cells of a grid. Each cell property is kept in its own
+ * flat array indexed by {@code x * height + y}, so loops over the whole grid run over
+ * contiguous memory instead of chasing a pointer per cell. {@link GridNode}s created for
+ * a store are views onto a single index of it.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class GridStore {
+	private static final NodeType[] NODE_TYPES = NodeType.values();
+	private static final byte OBSTACLE_TYPE = (byte) NodeType.OBSTACLE.ordinal();
+	private static final byte FREE_TYPE = (byte) NodeType.FREE.ordinal();
+
+	private final int width;
+	private final int height;
+
+	double[] danger;
+	double[] fuel;
+	double[] spreadability;
+	int[] coverCount;
+	byte[] nodeType;
+
+	private int dangerVersion = 0;
+	private int coverVersion = 0;
+
+
+	/**
+	 * Creates a store for a grid of the given size, with every cell free and all
+	 * values set to zero.
+	 *
+	 * @param width
+	 *                the width of the grid
+	 * @param height
+	 *                the height of the grid
+	 */
+	public GridStore(int width, int height) {
+		this.width = width;
+		this.height = height;
+		int nCells = width * height;
+		this.danger = new double[nCells];
+		this.fuel = new double[nCells];
+		this.spreadability = new double[nCells];
+		this.coverCount = new int[nCells];
+		this.nodeType = new byte[nCells];
+		Arrays.fill(this.nodeType, FREE_TYPE);
+	}
+
+
+	/**
+	 * Creates a new store of the given size that contains the values of this store
+	 * for every cell within both sizes. Cells outside of this store are free and
+	 * zeroed.
+	 *
+	 * @param newWidth
+	 *                the width of the new store
+	 * @param newHeight
+	 *                the height of the new store
+	 * @return the new store
+	 */
+	public GridStore resized(int newWidth, int newHeight) {
+		GridStore newStore = new GridStore(newWidth, newHeight);
+		int copyHeight = Math.min(this.height, newHeight);
+		for (int x = 0; x < Math.min(this.width, newWidth); x++) {
+			int src = x * this.height;
+			int dst = x * newHeight;
+			System.arraycopy(this.danger, src, newStore.danger, dst, copyHeight);
+			System.arraycopy(this.fuel, src, newStore.fuel, dst, copyHeight);
+			System.arraycopy(this.spreadability, src, newStore.spreadability, dst, copyHeight);
+			System.arraycopy(this.coverCount, src, newStore.coverCount, dst, copyHeight);
+			System.arraycopy(this.nodeType, src, newStore.nodeType, dst, copyHeight);
+		}
+		return newStore;
+	}
+
+
+	public int getWidth() {
+		return this.width;
+	}
+
+
+	public int getHeight() {
+		return this.height;
+	}
+
+
+	/**
+	 * Gets the number of cells in the store
+	 */
+	public int size() {
+		return this.nodeType.length;
+	}
+
+
+	/**
+	 * Gets the index of the cell at the given coordinates. The coordinates are not
+	 * checked.
+	 */
+	public int indexOf(int x, int y) {
+		return x * this.height + y;
+	}
+
+
+	public double getDanger(int index) {
+		return this.danger[index];
+	}
+
+
+	public void setDanger(int index, double value) {
+		this.danger[index] = value;
+		this.dangerVersion++;
+	}
+
+
+	/**
+	 * Gets a counter that changes whenever danger levels, fuel, or spreadability are
+	 * set through this store, or the danger array is swapped. Code that caches
+	 * information about how danger spreads can compare it to the value it saw last to
+	 * know if the cache is still valid. Writes made directly to the backing arrays are
+	 * not counted.
+	 */
+	public int getDangerVersion() {
+		return this.dangerVersion;
+	}
+
+
+	public double getFuel(int index) {
+		return this.fuel[index];
+	}
+
+
+	public void setFuel(int index, double value) {
+		this.fuel[index] = value;
+		this.dangerVersion++;
+	}
+
+
+	public double getSpreadability(int index) {
+		return this.spreadability[index];
+	}
+
+
+	public void setSpreadability(int index, double value) {
+		this.spreadability[index] = value;
+		this.dangerVersion++;
+	}
+
+
+	public int getCoverCount(int index) {
+		return this.coverCount[index];
+	}
+
+
+	public void setCoverCount(int index, int count) {
+		this.coverCount[index] = count;
+		this.coverVersion++;
+	}
+
+
+	public void incrementCoverCount(int index) {
+		this.coverCount[index]++;
+		this.coverVersion++;
+	}
+
+
+	/**
+	 * Gets a counter that changes whenever cover counts or node types are changed
+	 * through this store, like {@link #getDangerVersion()} does for danger.
+	 */
+	public int getCoverVersion() {
+		return this.coverVersion;
+	}
+
+
+	public NodeType getNodeType(int index) {
+		return NODE_TYPES[this.nodeType[index]];
+	}
+
+
+	public void setNodeType(int index, NodeType type) {
+		this.nodeType[index] = (byte) type.ordinal();
+		this.coverVersion++;
+	}
+
+
+	public boolean isObstacle(int index) {
+		return this.nodeType[index] == OBSTACLE_TYPE;
+	}
+
+
+	public boolean isFree(int index) {
+		return this.nodeType[index] == FREE_TYPE;
+	}
+
+
+	/**
+	 * Sets the cover count of every cell to the given value
+	 */
+	public void fillCoverCount(int count) {
+		Arrays.fill(this.coverCount, count);
+		this.coverVersion++;
+	}
+
+
+	/**
+	 * Gets the backing danger array. Writes to the array are visible to every view of
+	 * this store.
+	 */
+	public double[] getDangerArray() {
+		return this.danger;
+	}
+
+
+	/**
+	 * Replaces the backing danger array, for code that computes the next danger levels
+	 * into a second buffer instead of updating them in place. Every view of this store
+	 * sees the new values, but arrays returned by earlier calls to
+	 * {@link #getDangerArray()} are no longer part of the store.
+	 * 
+	 * @param newDanger
+	 *                the new danger levels, which must have one entry per cell
+	 * @return the old danger array, which the caller can reuse
+	 */
+	public double[] swapDangerArray(double[] newDanger) {
+		if (newDanger.length != this.danger.length) {
+			throw new IllegalArgumentException("Danger array has the wrong number of cells");
+		}
+		double[] oldDanger = this.danger;
+		this.danger = newDanger;
+		this.dangerVersion++;
+		return oldDanger;
+	}
+
+
+	/**
+	 * Gets the backing fuel array. Writes to the array are visible to every view of
+	 * this store.
+	 */
+	public double[] getFuelArray() {
+		return this.fuel;
+	}
+
+
+	/**
+	 * Gets the backing spreadability array. Writes to the array are visible to every
+	 * view of this store.
+	 */
+	public double[] getSpreadabilityArray() {
+		return this.spreadability;
+	}
+
+
+	/**
+	 * Gets the backing cover count array. Writes to the array are visible to every
+	 * view of this store.
+	 */
+	public int[] getCoverCountArray() {
+		return this.coverCount;
+	}
+
+
+	/**
+	 * Gets the backing node type array, holding the ordinal of each cell's
+	 * {@link NodeType}. Writes to the array are visible to every view of this store.
+	 */
+	public byte[] getNodeTypeArray() {
+		return this.nodeType;
+	}
+}
@@ -1,11 +1,10 @@
 package simulations.coverage;
 
-import adsim.SimulatorMain;
+import adsim.SimulatorSettings;
 import deeplearning.DQLActuator;
-import gridenv.Coordinate;
 import gridenv.GridEnvironment;
 import gridenv.GridRobot;
-import gridenv.NodeType;
+import gridenv.GridStore;
 
 public class CoverageActuator implements DQLActuator {
 	private CoverageSimulation simulation;
@@ -19,11 +18,12 @@ public class CoverageActuator implements DQLActuator {
 	private GridRobot robot;
 	private double lastReward = 0.0;
 	private int lastActionId = -1;
-	private double COVER_UNIQUE_REWARD = SimulatorMain.settings.getDouble("deepql.reward.cover_unique");
-	private double COVER_AGAIN_REWARD = SimulatorMain.settings.getDouble("deepql.reward.cover_again");
-	private double DEATH_REWARD = SimulatorMain.settings.getDouble("deepql.reward.death");
-	private double FULL_COVERAGE_REWARD = SimulatorMain.settings.getDouble("deepql.reward.full_coverage");
-	private boolean ROBOTS_BREAKABLE = SimulatorMain.settings.getBoolean("robots.breakable");
+	private final SimulatorSettings settings;
+	private double COVER_UNIQUE_REWARD;
+	private double COVER_AGAIN_REWARD;
+	private double DEATH_REWARD;
+	private double FULL_COVERAGE_REWARD;
+	private boolean ROBOTS_BREAKABLE;
 
 
 	/**
@@ -38,6 +38,8 @@ public class CoverageActuator implements DQLActuator {
 		this.env = env;
 		this.robot = robot;
 		this.simulation = covSim;
+		this.settings = env.getContext().getSettings();
+		this.reloadSettings();
 	}
 
 
@@ -45,8 +47,7 @@ public class CoverageActuator implements DQLActuator {
 	 * Move the robot 1 cell to the right on the grid
 	 */
 	public void moveRight() {
-		Coordinate newLoc = new Coordinate(this.robot.getLocation().x + 1, this.robot.getLocation().y);
-		moveTo(newLoc);
+		this.moveBy(1, 0);
 		this.lastActionId = 0;
 	}
 
@@ -55,8 +56,7 @@ public class CoverageActuator implements DQLActuator {
 	 * Move the robot 1 cell to the left on the grid
 	 */
 	public void moveLeft() {
-		Coordinate newLoc = new Coordinate(this.robot.getLocation().x - 1, this.robot.getLocation().y);
-		moveTo(newLoc);
+		this.moveBy(-1, 0);
 		this.lastActionId = 2;
 	}
 
@@ -65,8 +65,7 @@ public class CoverageActuator implements DQLActuator {
 	 * Move the robot 1 cell upward (North) on the grid
 	 */
 	public void moveUp() {
-		Coordinate newLoc = new Coordinate(this.robot.getLocation().x, this.robot.getLocation().y + 1);
-		moveTo(newLoc);
+		this.moveBy(0, 1);
 		this.lastActionId = 1;
 	}
 
@@ -75,22 +74,26 @@ public class CoverageActuator implements DQLActuator {
 	 * Move the robot 1 cell downward (South) on the grid
 	 */
 	public void moveDown() {
-		Coordinate newLoc = new Coordinate(this.robot.getLocation().x, this.robot.getLocation().y - 1);
-		moveTo(newLoc);
+		this.moveBy(0, -1);
 		this.lastActionId = 3;
 	}
 
 
-	private void moveTo(Coordinate newLoc) {
+	/**
+	 * Moves the robot by the given offsets, if the cell there can be entered, and
+	 * covers the cell it ends up on
+	 */
+	private void moveBy(int dx, int dy) {
 		this.lastReward = 0.0;
 		if (this.robot.isBroken()) {
 			return;
 		}
 
 		// Move, if possible
-		if (this.env.isOnGrid(newLoc.x, newLoc.y) && this.env.getGridNode(newLoc.x, newLoc.y).getNodeType() != NodeType.OBSTACLE
-				&& this.env.getRobotsByLocation(newLoc.x, newLoc.y).size() == 0) {
-			this.robot.setLocation(newLoc.x, newLoc.y);
+		int newX = this.robot.getLocation().x + dx;
+		int newY = this.robot.getLocation().y + dy;
+		if (this.env.isOnGrid(newX, newY) && this.env.isPassable(newX, newY)) {
+			this.robot.setLocation(newX, newY);
 		}
 
 		this.processCoveringCurrentNode();
@@ -107,17 +110,18 @@ public class CoverageActuator implements DQLActuator {
 
 
 	private void processCoveringCurrentNode() {
-		double rand = Math.random();
-		boolean isThreat = rand < this.env.getGridNode(this.robot.getLocation().x, this.robot.getLocation().y).getDangerProb()
-				&& this.ROBOTS_BREAKABLE;
-		int coverCount = this.env.getGridNode(this.robot.getLocation().x, this.robot.getLocation().y).getCoverCount();
+		final GridStore store = this.env.getGridStore();
+		final int cell = store.indexOf(this.robot.getLocation().x, this.robot.getLocation().y);
+		double rand = this.env.getRandom().nextDouble();
+		boolean isThreat = rand < store.getDanger(cell) && this.ROBOTS_BREAKABLE;
+		int coverCount = store.getCoverCount(cell);
 
 		this.lastReward = this.getCellCoverageReward(coverCount, isThreat);
 
-		SimulatorMain.getStats().updateCellCovered(this.robot);
-		this.env.getGridNode(this.robot.getLocation().x, this.robot.getLocation().y).incrementCoverCount();
+		this.env.getContext().getStats().updateCellCovered(this.robot);
+		store.incrementCoverCount(cell);
 		if (isThreat) {
-			this.env.getRobotById(this.robot.getId()).setBroken(true);
+			this.robot.setBroken(true);
 		}
 	}
 
@@ -184,11 +188,11 @@ public class CoverageActuator implements DQLActuator {
 
 	@Override
 	public void reloadSettings() {
-		this.COVER_UNIQUE_REWARD = SimulatorMain.settings.getDouble("deepql.reward.cover_unique");
-		this.COVER_AGAIN_REWARD = SimulatorMain.settings.getDouble("deepql.reward.cover_again");
-		this.DEATH_REWARD = SimulatorMain.settings.getDouble("deepql.reward.death");
-		this.FULL_COVERAGE_REWARD = SimulatorMain.settings.getDouble("deepql.reward.full_coverage");
-		this.ROBOTS_BREAKABLE = SimulatorMain.settings.getBoolean("robots.breakable");
+		this.COVER_UNIQUE_REWARD = this.settings.getDouble("deepql.reward.cover_unique");
+		this.COVER_AGAIN_REWARD = this.settings.getDouble("deepql.reward.cover_again");
+		this.DEATH_REWARD = this.settings.getDouble("deepql.reward.death");
+		this.FULL_COVERAGE_REWARD = this.settings.getDouble("deepql.reward.full_coverage");
+		this.ROBOTS_BREAKABLE = this.settings.getBoolean("robots.breakable");
 	}
 
 
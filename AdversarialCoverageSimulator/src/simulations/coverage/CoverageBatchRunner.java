@@ -0,0 +1,192 @@
+package simulations.coverage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import adsim.SimulationContext;
+import adsim.SimulatorMain;
+import adsim.SimulatorSettings;
+import adsim.stats.SampledVariableDouble;
+import adsim.stats.SampledVariableLong;
+
+/**
+ * Runs many independent coverage simulations in parallel, without an engine or a
+ * display. Every run gets its own {@link SimulationContext}, with a private copy of the
+ * settings as they were when the batch started and a seeded random number generator.
+ * The per-run seeds are drawn from the batch seed in run order, so a batch gives the
+ * same results no matter how many threads it is run with.
+ * <p>
+ * Setups that send to an external Torch network or keep experience replay in a file
+ * can't be run in a batch, since the connection to the external program and the replay
+ * file would be shared by every run at once.
+ * <p>
+ * Results are printed in run order, in the same format as runs driven by the engine,
+ * with a batch summary every {@code stats.multirun.batch_size} runs.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class CoverageBatchRunner {
+	private final int nRuns;
+	private final int nThreads;
+	private final long seed;
+
+
+	/**
+	 * Creates a batch runner
+	 *
+	 * @param nRuns
+	 *                the number of runs to do
+	 * @param nThreads
+	 *                the number of runs that may execute at the same time
+	 * @param seed
+	 *                the seed from which the seed of each run is generated
+	 */
+	public CoverageBatchRunner(int nRuns, int nThreads, long seed) {
+		this.nRuns = nRuns;
+		this.nThreads = Math.max(1, nThreads);
+		this.seed = seed;
+	}
+
+
+	/**
+	 * Does all of the runs, blocking until they are finished
+	 */
+	public void run() {
+		final SimulatorSettings batchSettings = new SimulatorSettings(SimulatorMain.settings);
+		String unsupportedReason = getUnsupportedReason(batchSettings);
+		if (unsupportedReason != null) {
+			System.err.printf("error: Can't run a batch: %s\n", unsupportedReason);
+			return;
+		}
+		final long statsBatchSize = batchSettings.getInt("stats.multirun.batch_size");
+		final Random seedgen = new Random(this.seed);
+		final ForkJoinPool pool = new ForkJoinPool(this.nThreads);
+
+		try {
+			List<ForkJoinTask<RunResult>> tasks = new ArrayList<>(this.nRuns);
+			for (int i = 0; i < this.nRuns; i++) {
+				final long runSeed = seedgen.nextLong();
+				tasks.add(pool.submit(new Callable<RunResult>() {
+					@Override
+					public RunResult call() {
+						return doRun(SimulationContext.createIsolated(batchSettings, runSeed));
+					}
+				}));
+			}
+
+			final SampledVariableLong stepsPerRunInfo = new SampledVariableLong();
+			final SampledVariableDouble survivabilityInfo = new SampledVariableDouble();
+			final SampledVariableDouble coverageInfo = new SampledVariableDouble();
+			long runsInBatch = 0;
+			for (int i = 0; i < tasks.size(); i++) {
+				RunResult result;
+				try {
+					result = tasks.get(i).join();
+				} catch (RuntimeException e) {
+					System.err.printf("error: Batch run %d failed: %s\n", i, e);
+					continue;
+				}
+
+				System.out.printf(CoverageSimulation.RUN_END_FORMAT, result.nSteps, result.cellsCovered, result.freeCells,
+						result.teamSurvivability, result.survivingRobots, result.nRobots);
+				stepsPerRunInfo.addSample(result.nSteps);
+				survivabilityInfo.addSample(result.teamSurvivability);
+				coverageInfo.addSample(result.fractionCovered * 100.0);
+				runsInBatch++;
+
+				// Unlike engine-driven runs, the last partial batch is also
+				// reported, since no more runs will be added to it
+				if (statsBatchSize <= runsInBatch || i == tasks.size() - 1) {
+					System.out.printf(CoverageSimulation.BATCH_END_FORMAT, runsInBatch, stepsPerRunInfo.mean(),
+							stepsPerRunInfo.stddev(), coverageInfo.mean(), coverageInfo.stddev(), survivabilityInfo.mean(),
+							survivabilityInfo.stddev());
+					stepsPerRunInfo.reset();
+					survivabilityInfo.reset();
+					coverageInfo.reset();
+					runsInBatch = 0;
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+
+	/**
+	 * Does a single run on a new simulation, from a freshly generated grid until a
+	 * terminal state is reached.
+	 */
+	private static RunResult doRun(SimulationContext context) {
+		CoverageSimulation sim = new CoverageSimulation(context);
+		sim.onNewRun();
+		CoverageStats stats = sim.getStats();
+		while (!sim.isTerminalState()) {
+			sim.onStep();
+			stats.updateTimeStep();
+		}
+		return new RunResult(stats);
+	}
+
+
+	/**
+	 * Checks whether the algorithms in the settings can be run in a batch
+	 *
+	 * @return the reason they can't be, or null if they can
+	 */
+	private static String getUnsupportedReason(SimulatorSettings settings) {
+		String algoName = settings.getString("adsim.algorithm_name");
+		String metaAlgoName = "";
+		if (algoName.indexOf('+') != -1) {
+			metaAlgoName = algoName.substring(0, algoName.indexOf('+')).trim();
+			algoName = algoName.substring(algoName.indexOf('+') + 1).trim();
+		}
+
+		if (metaAlgoName.equalsIgnoreCase("ExternalDQL")) {
+			return "ExternalDQL sends to an external Torch network";
+		}
+		// Anything that isn't one of the other algorithms is run as DQL
+		boolean isDQL = !(algoName.equalsIgnoreCase("Random") || algoName.equalsIgnoreCase("GSACGC")
+				|| algoName.equalsIgnoreCase("ExternalAction"));
+		if (isDQL && settings.getString("deepql.nn_setup_mode").equalsIgnoreCase("torch")) {
+			return "DQL is set up with an external Torch network (deepql.nn_setup_mode)";
+		}
+		if (isDQL && !settings.getString("deepql.replay.file").isEmpty()) {
+			return "DQL keeps its replay memory in a file (deepql.replay.file)";
+		}
+		return null;
+	}
+}
+
+
+/**
+ * The results of a single batch run, copied out of its stats so that the simulation can
+ * be discarded as soon as the run is finished.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+class RunResult {
+	final long nSteps;
+	final long cellsCovered;
+	final long freeCells;
+	final double teamSurvivability;
+	final double fractionCovered;
+	final long survivingRobots;
+	final long nRobots;
+
+
+	public RunResult(CoverageStats stats) {
+		this.nSteps = stats.getNumTimeSteps();
+		this.cellsCovered = stats.getTotalCellsCovered();
+		this.freeCells = stats.getTotalFreeCells();
+		this.teamSurvivability = stats.getTeamSurvivability();
+		this.fractionCovered = stats.getFractionCovered();
+		this.survivingRobots = stats.getNumSurvivingRobots();
+		this.nRobots = stats.getNumRobots();
+	}
+}
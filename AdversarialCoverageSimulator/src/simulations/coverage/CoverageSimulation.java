@@ -5,11 +5,12 @@ import java.awt.GraphicsEnvironment;
 import java.util.Random;
 
 import adsim.Algorithm;
-import adsim.ConsoleController;
 import adsim.Display;
 import adsim.Simulation;
+import adsim.SimulationContext;
 import adsim.SimulatorEngine;
 import adsim.SimulatorMain;
+import adsim.SimulatorSettings;
 import adsim.TerminalCommand;
 import adsim.stats.SampledVariableDouble;
 import adsim.stats.SampledVariableLong;
@@ -17,31 +18,55 @@ import gridenv.GridEnvironment;
 import gridenv.GridNodeGenerator;
 import gridenv.GridRobot;
 import gridenv.GridSensor;
+import gridenv.GridStore;
 import gridenv.NodeType;
 import simulations.coverage.algo.GSACGC;
 import simulations.coverage.display.CoverageGUIDisplay;
 import simulations.generic.algo.DQL;
+import simulations.generic.algo.ExternalActionAlgo;
 import simulations.generic.algo.ExternalDQL;
 import simulations.generic.algo.RandomActionAlgo;
 
 public class CoverageSimulation implements Simulation {
+	static final String RUN_END_FORMAT = "Run end: steps=%d, cov=%d/%d, tSv=%.3f, bots=%d/%d\n";
+	static final String BATCH_END_FORMAT = "Batch end (size=%d): steps=%.1f (%.1f), cov=%.1f%% (%.1f), tSv=%.2f (%.1f)\n";
 
 	GridEnvironment env = null;
 	SimulatorEngine engine = null;
 	public int squaresLeft = 0;
-	private Random random = new Random();
-	private GridNodeGenerator nodegen = new GridNodeGenerator();
-	private int MAX_STEPS_PER_RUN = SimulatorMain.settings.getInt("autorun.max_steps_per_run");
-	private boolean VARIABLE_GRID_SIZE = SimulatorMain.settings.getBoolean("env.variable_grid_size");
-	private boolean FORCE_SQUARE = SimulatorMain.settings.getBoolean("env.grid.force_square");
-	private int MAX_HEIGHT = SimulatorMain.settings.getInt("env.grid.maxheight");
-	private int MAX_WIDTH = SimulatorMain.settings.getInt("env.grid.maxwidth");
-	private int MIN_HEIGHT = SimulatorMain.settings.getInt("env.grid.minheight");
-	private int MIN_WIDTH = SimulatorMain.settings.getInt("env.grid.minwidth");
+	private final SimulationContext context;
+	private final Random random;
+	private final GridNodeGenerator nodegen;
+	private int MAX_STEPS_PER_RUN;
+	private boolean VARIABLE_GRID_SIZE;
+	private boolean FORCE_SQUARE;
+	private int MAX_HEIGHT;
+	private int MAX_WIDTH;
+	private int MIN_HEIGHT;
+	private int MIN_WIDTH;
 
 
+	/**
+	 * Constructs a simulation that uses the global settings and console
+	 */
 	public CoverageSimulation() {
+		this(SimulationContext.createDefault());
+	}
 
+
+	/**
+	 * Constructs a simulation with the given context. The simulation's grids, robot
+	 * placements, and threats all come from the context's random number generator,
+	 * so they are reproducible if it is seeded.
+	 * 
+	 * @param context
+	 *                the context for the simulation
+	 */
+	public CoverageSimulation(SimulationContext context) {
+		this.context = context;
+		this.random = context.getRandom();
+		this.nodegen = new GridNodeGenerator(this.random.nextLong());
+		this.loadSettings();
 	}
 
 
@@ -49,7 +74,7 @@ public class CoverageSimulation implements Simulation {
 		GridSensor sensor = new GridSensor(this.env, robot);
 		CoverageActuator actuator = new CoverageActuator(this.env, robot, this);
 
-		String coverageAlgoName = SimulatorMain.settings.getString("adsim.algorithm_name");
+		String coverageAlgoName = this.context.getSettings().getString("adsim.algorithm_name");
 		String metaCoverageAlgoName = "";
 
 		Algorithm algo = null;
@@ -66,6 +91,8 @@ public class CoverageSimulation implements Simulation {
 			algo = new RandomActionAlgo(sensor, actuator);
 		} else if (coverageAlgoName.equalsIgnoreCase("GSACGC")) {
 			algo = new GSACGC(sensor, actuator);
+		} else if (coverageAlgoName.equalsIgnoreCase("ExternalAction")) {
+			algo = new ExternalActionAlgo(sensor, actuator, new CoverageStatePreprocessor(sensor));
 		} else {
 			algo = new DQL(sensor, actuator);
 			((DQL) algo).setStatePreprocessor(new CoverageStatePreprocessor(sensor));
@@ -97,8 +124,7 @@ public class CoverageSimulation implements Simulation {
 
 
 	private void registerConsoleCommands() {
-		final ConsoleController controller = SimulatorMain.controller;
-		controller.registerCommand(":setdisplay", new TerminalCommand() {
+		this.context.registerCommand(":setdisplay", new TerminalCommand() {
 			@Override
 			public void execute(String[] args) {
 				if (args.length < 1) {
@@ -120,7 +146,7 @@ public class CoverageSimulation implements Simulation {
 		});
 
 
-		controller.registerCommand(":restart", new TerminalCommand() {
+		this.context.registerCommand(":restart", new TerminalCommand() {
 			@Override
 			public void execute(String[] args) {
 				CoverageSimulation.this.restartSimulation();
@@ -152,14 +178,14 @@ public class CoverageSimulation implements Simulation {
 		if (this.env == null) {
 			return;
 		}
-		this.squaresLeft = this.env.gridSize.width * this.env.gridSize.height;
-		for (
-
-				int x = 0; x < this.env.gridSize.width; x++) {
-			for (int y = 0; y < this.env.gridSize.height; y++) {
-				if (this.env.getGridNode(x, y).getNodeType() == NodeType.OBSTACLE || 0 < this.env.getGridNode(x, y).getCoverCount()) {
-					this.squaresLeft--;
-				}
+		final GridStore store = this.env.getGridStore();
+		final byte[] nodeTypes = store.getNodeTypeArray();
+		final int[] coverCounts = store.getCoverCountArray();
+		final byte obstacleType = (byte) NodeType.OBSTACLE.ordinal();
+		this.squaresLeft = store.size();
+		for (int i = 0; i < nodeTypes.length; i++) {
+			if (nodeTypes[i] == obstacleType || 0 < coverCounts[i]) {
+				this.squaresLeft--;
 			}
 		}
 	}
@@ -181,37 +207,43 @@ public class CoverageSimulation implements Simulation {
 
 	@Override
 	public void onRunEnd() {
-		long statsBatchSize = SimulatorMain.settings.getInt("stats.multirun.batch_size");
-		CoverageStats stats = SimulatorMain.getStats();
+		long statsBatchSize = this.context.getSettings().getInt("stats.multirun.batch_size");
+		CoverageStats stats = this.context.getStats();
 		if (this.isTerminalState() && stats != null) {
-			System.out.printf("Run end: steps=%d, cov=%d/%d, tSv=%.3f, bots=%d/%d\n", stats.getNumTimeSteps(),
-					stats.getTotalCellsCovered(), stats.getTotalFreeCells(), stats.getTeamSurvivability(),
-					stats.getNumSurvivingRobots(), stats.getNumRobots());
+			System.out.printf(RUN_END_FORMAT, stats.getNumTimeSteps(), stats.getTotalCellsCovered(), stats.getTotalFreeCells(),
+					stats.getTeamSurvivability(), stats.getNumSurvivingRobots(), stats.getNumRobots());
 			if (statsBatchSize <= stats.getRunsInCurrentBatch()) {
 				final SampledVariableLong stepsPerRunInfo = stats.getBatchStepsPerRunInfo();
 				final SampledVariableDouble survivabilityInfo = stats.getBatchSurvivability();
 				final SampledVariableDouble coverageInfo = stats.getBatchCoverage();
-				System.out.printf("Batch end (size=%d): steps=%.1f (%.1f), cov=%.1f%% (%.1f), tSv=%.2f (%.1f)\n",
-						stats.getRunsInCurrentBatch(), stepsPerRunInfo.mean(), stepsPerRunInfo.stddev(), coverageInfo.mean(),
-						coverageInfo.stddev(), survivabilityInfo.mean(), survivabilityInfo.stddev());
+				System.out.printf(BATCH_END_FORMAT, stats.getRunsInCurrentBatch(), stepsPerRunInfo.mean(), stepsPerRunInfo.stddev(),
+						coverageInfo.mean(), coverageInfo.stddev(), survivabilityInfo.mean(), survivabilityInfo.stddev());
 				stats.resetBatchStats();
 			}
 		}
 
-		if (SimulatorMain.settings.getBoolean("autorun.finished.newgrid")) {
-			for (GridRobot r : this.env.getRobotList()) {
-				r.setBroken(false);
-			}
-
-			this.regenerateGrid();
-			this.env.init();
-
+		if (this.context.getSettings().getBoolean("autorun.finished.newgrid")) {
+			this.startNewGrid();
 		} else {
 			this.engine.pauseSimulation();
 		}
 	}
 
 
+	/**
+	 * Repairs the robots and puts them on a newly generated grid, ready for the next
+	 * run
+	 */
+	public void startNewGrid() {
+		for (GridRobot r : this.env.getRobotList()) {
+			r.setBroken(false);
+		}
+
+		this.regenerateGrid();
+		this.env.init();
+	}
+
+
 	private void regenerateGrid() {
 		if (this.VARIABLE_GRID_SIZE) {
 			int newWidth = (int) (this.random.nextDouble() * (this.MAX_WIDTH - this.MIN_WIDTH) + this.MIN_WIDTH);
@@ -223,7 +255,7 @@ public class CoverageSimulation implements Simulation {
 			this.env.setSize(new Dimension(newWidth, newHeight));
 		}
 
-		String dangerValStr = SimulatorMain.settings.getString("env.grid.dangervalues");
+		String dangerValStr = this.context.getSettings().getString("env.grid.dangervalues");
 
 		// To save time, only recompile the generator if the string has changed
 		if (!this.nodegen.getGeneratorString().equals(dangerValStr)) {
@@ -257,11 +289,7 @@ public class CoverageSimulation implements Simulation {
 
 
 	private void reinitializeSimulation() {
-		for (int x = 0; x < this.env.getWidth(); x++) {
-			for (int y = 0; y < this.env.getHeight(); y++) {
-				this.env.getGridNode(x, y).setCoverCount(0);
-			}
-		}
+		this.env.getGridStore().fillCoverCount(0);
 		this.env.init();
 	}
 
@@ -269,13 +297,19 @@ public class CoverageSimulation implements Simulation {
 	@Override
 	public void reloadSettings() {
 		this.env.reloadSettings();
-		this.MAX_STEPS_PER_RUN = SimulatorMain.settings.getInt("autorun.max_steps_per_run");
-		this.VARIABLE_GRID_SIZE = SimulatorMain.settings.getBoolean("env.variable_grid_size");
-		this.FORCE_SQUARE = SimulatorMain.settings.getBoolean("env.grid.force_square");
-		this.MAX_HEIGHT = SimulatorMain.settings.getInt("env.grid.maxheight");
-		this.MAX_WIDTH = SimulatorMain.settings.getInt("env.grid.maxwidth");
-		this.MIN_HEIGHT = SimulatorMain.settings.getInt("env.grid.minheight");
-		this.MIN_WIDTH = SimulatorMain.settings.getInt("env.grid.minwidth");
+		this.loadSettings();
+	}
+
+
+	private void loadSettings() {
+		final SimulatorSettings settings = this.context.getSettings();
+		this.MAX_STEPS_PER_RUN = settings.getInt("autorun.max_steps_per_run");
+		this.VARIABLE_GRID_SIZE = settings.getBoolean("env.variable_grid_size");
+		this.FORCE_SQUARE = settings.getBoolean("env.grid.force_square");
+		this.MAX_HEIGHT = settings.getInt("env.grid.maxheight");
+		this.MAX_WIDTH = settings.getInt("env.grid.maxwidth");
+		this.MIN_HEIGHT = settings.getInt("env.grid.minheight");
+		this.MIN_WIDTH = settings.getInt("env.grid.minwidth");
 	}
 
 
@@ -283,20 +317,22 @@ public class CoverageSimulation implements Simulation {
 	 * Sets up the environment using the settings
 	 */
 	private void resetEnvironment() {
-		this.env = new GridEnvironment(
-				new Dimension(SimulatorMain.settings.getInt("env.grid.width"), SimulatorMain.settings.getInt("env.grid.height")));
+		final SimulatorSettings settings = this.context.getSettings();
+		this.env = new GridEnvironment(new Dimension(settings.getInt("env.grid.width"), settings.getInt("env.grid.height")), this.context);
+		this.env.setSimulation(this);
 
 		// Set up the coverage environment
 		this.regenerateGrid();
 
 		// Set up the robots
-		for (int i = 0; i < SimulatorMain.settings.getInt("robots.count"); i++) {
-			GridRobot robot = new GridRobot(i, (int) (Math.random() * this.env.getWidth()), (int) (Math.random() * this.env.getHeight()));
+		for (int i = 0; i < settings.getInt("robots.count"); i++) {
+			GridRobot robot = new GridRobot(i, (int) (this.random.nextDouble() * this.env.getWidth()),
+					(int) (this.random.nextDouble() * this.env.getHeight()));
 			robot.coverAlgo = this.createNewCoverageAlgoInstance(robot);
 			this.env.addRobot(robot);
 		}
-		SimulatorMain.setStats(new CoverageStats(this.env, this.env.getRobotList()));
-		SimulatorMain.getStats().resetBatchStats();
+		this.context.setStats(new CoverageStats(this.env, this.env.getRobotList()));
+		this.context.getStats().resetBatchStats();
 
 		this.env.init();
 	}
@@ -305,6 +341,7 @@ public class CoverageSimulation implements Simulation {
 	@Override
 	public void setEngine(SimulatorEngine engine) {
 		this.engine = engine;
+		this.context.setEngine(engine);
 	}
 
 
@@ -318,6 +355,17 @@ public class CoverageSimulation implements Simulation {
 	}
 
 
+	public CoverageStats getStats() {
+		return this.context.getStats();
+	}
+
+
+	@Override
+	public SimulationContext getContext() {
+		return this.context;
+	}
+
+
 	@Override
 	public void dispose() {
 		// TODO Auto-generated method stub
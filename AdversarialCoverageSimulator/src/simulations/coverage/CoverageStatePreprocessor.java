@@ -1,26 +1,30 @@
 package simulations.coverage;
 
 import adsim.SettingsReloadable;
-import adsim.SimulatorMain;
+import adsim.SimulatorSettings;
 import deeplearning.DQLStatePreprocessor;
 import gridenv.GridSensor;
 
 public class CoverageStatePreprocessor implements DQLStatePreprocessor, SettingsReloadable {
 
-	private final boolean GIVE_GLOBAL_POS_AND_SIZE = SimulatorMain.settings.getBoolean("neuralnet.give_global_pos_and_size");
-	private final int VISION_SIZE = SimulatorMain.settings.getInt("deepql.nn_input.vision_radius");
-	private boolean NN_INPUT_OBSTACLE_LAYER = SimulatorMain.settings.getBoolean("deepql.nn_input.obstacle_layer");
+	private final SimulatorSettings settings;
+	private final boolean GIVE_GLOBAL_POS_AND_SIZE;
+	private final int VISION_SIZE;
+	private boolean NN_INPUT_OBSTACLE_LAYER;
 	private final int NN_INPUT_SIZE;
-	private boolean ATTEMPT_NORMALIZATION = SimulatorMain.settings.getBoolean("deepql.statepreprocessor.attempt_mormalization");
-	private double OUT_OF_BOUNDS_VALS_DANGER = SimulatorMain.settings.getDouble("deepql.statepreprocessor.out_of_bounds_vals.danger");
-	private double OUT_OF_BOUNDS_VALS_COVER = SimulatorMain.settings.getDouble("deepql.statepreprocessor.out_of_bounds_vals.cover");
-	private double OUT_OF_BOUNDS_VALS_OBSTACLE = SimulatorMain.settings.getDouble("deepql.statepreprocessor.out_of_bounds_vals.obstacle");
+	private boolean ATTEMPT_NORMALIZATION;
+	private double OUT_OF_BOUNDS_VALS_DANGER;
+	private double OUT_OF_BOUNDS_VALS_COVER;
+	private double OUT_OF_BOUNDS_VALS_OBSTACLE;
 	private VisionType visiontype;
 	private GridSensor sensor;
 
 
 	public CoverageStatePreprocessor(GridSensor sensor) {
 		this.sensor = sensor;
+		this.settings = sensor.getContext().getSettings();
+		this.GIVE_GLOBAL_POS_AND_SIZE = this.settings.getBoolean("neuralnet.give_global_pos_and_size");
+		this.VISION_SIZE = this.settings.getInt("deepql.nn_input.vision_radius");
 		this.NN_INPUT_SIZE = calcStateSize();
 	}
 
@@ -93,11 +97,11 @@ public class CoverageStatePreprocessor implements DQLStatePreprocessor, Settings
 			}
 		}
 
-		stateBuf[(2 * layerSize) + ((this.sensor.getLocation().x - xLowBound) * this.VISION_SIZE)
-				+ (this.sensor.getLocation().y - yLowBound)] = 1;
+		stateBuf[(2 * layerSize) + ((this.sensor.getX() - xLowBound) * this.VISION_SIZE)
+				+ (this.sensor.getY() - yLowBound)] = 1;
 		if (this.GIVE_GLOBAL_POS_AND_SIZE) {
-			stateBuf[this.NN_INPUT_SIZE - 4] = this.sensor.getLocation().x;
-			stateBuf[this.NN_INPUT_SIZE - 3] = this.sensor.getLocation().y;
+			stateBuf[this.NN_INPUT_SIZE - 4] = this.sensor.getX();
+			stateBuf[this.NN_INPUT_SIZE - 3] = this.sensor.getY();
 			stateBuf[this.NN_INPUT_SIZE - 2] = this.sensor.getGridWidth();
 			stateBuf[this.NN_INPUT_SIZE - 1] = this.sensor.getGridHeight();
 		}
@@ -160,8 +164,8 @@ public class CoverageStatePreprocessor implements DQLStatePreprocessor, Settings
 		}
 
 		if (this.GIVE_GLOBAL_POS_AND_SIZE) {
-			stateBuf[this.NN_INPUT_SIZE - 4] = this.sensor.getLocation().x;
-			stateBuf[this.NN_INPUT_SIZE - 3] = this.sensor.getLocation().y;
+			stateBuf[this.NN_INPUT_SIZE - 4] = this.sensor.getX();
+			stateBuf[this.NN_INPUT_SIZE - 3] = this.sensor.getY();
 			stateBuf[this.NN_INPUT_SIZE - 2] = this.sensor.getGridWidth();
 			stateBuf[this.NN_INPUT_SIZE - 1] = this.sensor.getGridHeight();
 		}
@@ -214,15 +218,15 @@ public class CoverageStatePreprocessor implements DQLStatePreprocessor, Settings
 	public void reloadSettings() {
 		this.sensor.reloadSettings();
 		try {
-			this.visiontype = VisionType.valueOf(SimulatorMain.settings.getString("deepql.statepreprocessor.vision_type"));
+			this.visiontype = VisionType.valueOf(this.settings.getString("deepql.statepreprocessor.vision_type"));
 		} catch (IllegalArgumentException e) {
 			System.err.println("Could not set vision type. No such enum value exists.");
 		}
-		this.ATTEMPT_NORMALIZATION = SimulatorMain.settings.getBoolean("deepql.statepreprocessor.attempt_mormalization");
-		this.NN_INPUT_OBSTACLE_LAYER = SimulatorMain.settings.getBoolean("deepql.nn_input.obstacle_layer");
-		this.OUT_OF_BOUNDS_VALS_DANGER = SimulatorMain.settings.getDouble("deepql.statepreprocessor.out_of_bounds_vals.danger");
-		this.OUT_OF_BOUNDS_VALS_COVER = SimulatorMain.settings.getDouble("deepql.statepreprocessor.out_of_bounds_vals.cover");
-		this.OUT_OF_BOUNDS_VALS_OBSTACLE = SimulatorMain.settings.getDouble("deepql.statepreprocessor.out_of_bounds_vals.obstacle");
+		this.ATTEMPT_NORMALIZATION = this.settings.getBoolean("deepql.statepreprocessor.attempt_mormalization");
+		this.NN_INPUT_OBSTACLE_LAYER = this.settings.getBoolean("deepql.nn_input.obstacle_layer");
+		this.OUT_OF_BOUNDS_VALS_DANGER = this.settings.getDouble("deepql.statepreprocessor.out_of_bounds_vals.danger");
+		this.OUT_OF_BOUNDS_VALS_COVER = this.settings.getDouble("deepql.statepreprocessor.out_of_bounds_vals.cover");
+		this.OUT_OF_BOUNDS_VALS_OBSTACLE = this.settings.getDouble("deepql.statepreprocessor.out_of_bounds_vals.obstacle");
 	}
 
 
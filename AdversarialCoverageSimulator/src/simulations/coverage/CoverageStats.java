@@ -1,27 +1,50 @@
 package simulations.coverage;
 
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 
 import adsim.*;
 import adsim.stats.SampledVariableDouble;
 import adsim.stats.SampledVariableLong;
 import gridenv.GridEnvironment;
-import gridenv.GridNode;
 import gridenv.GridRobot;
+import gridenv.GridStore;
 import gridenv.NodeType;
 
 
 public class CoverageStats {
+	private static final byte FREE_TYPE = (byte) NodeType.FREE.ordinal();
 	private long nStepsInRun = 0;
 	private SampledVariableLong batch_stepsPerRun = new SampledVariableLong();
 	private long nRunsInBatch = 0;
 	private long totalFreeCells = 0;
 	private long squaresLeft;
-	private Set<RobotStats> robotStats = new HashSet<>();
+	private RobotStats[] robotStats;
+	/**
+	 * The same stats as {@link #robotStats}, indexed by robot id, so a covered cell
+	 * can be counted without looking through every robot
+	 */
+	private RobotStats[] robotStatsById;
 	private GridEnvironment env;
-	private long[][] lastCellVisitTimes;
+	/**
+	 * The step each cell was last visited on, by store index
+	 */
+	private long[] lastCellVisitTimes = null;
+
+	// Aggregates of the cover counts, which are updated as cells are covered instead
+	// of being recomputed for every query. They are valid for the store and cover
+	// version they were last synced with, and are rebuilt with a full scan when the
+	// cover counts or node types are changed any other way.
+	private GridStore aggregateStore = null;
+	private int aggregateCoverVersion = 0;
+	/**
+	 * The number of free cells with each cover count
+	 */
+	private long[] freeCellsByCoverCount = new long[16];
+	private long numFreeCells = 0;
+	private long totalFreeCellCovers = 0;
+	private long minFreeCellCovers = Long.MAX_VALUE;
+	private long maxCellCovers = 0;
 
 	private SampledVariableDouble batch_survivability = new SampledVariableDouble();
 	private SampledVariableDouble batch_coverage = new SampledVariableDouble();
@@ -29,25 +52,25 @@ public class CoverageStats {
 
 	public CoverageStats(GridEnvironment env, List<GridRobot> robots) {
 		this.env = env;
-		this.lastCellVisitTimes = new long[env.getWidth()][env.getHeight()];
-		for (GridRobot r : robots) {
-			this.robotStats.add(new RobotStats(r, env));
+		this.robotStats = new RobotStats[robots.size()];
+		int maxId = -1;
+		for (int i = 0; i < robots.size(); i++) {
+			this.robotStats[i] = new RobotStats(robots.get(i), env);
+			maxId = Math.max(maxId, robots.get(i).getId());
+		}
+		this.robotStatsById = new RobotStats[maxId + 1];
+		for (RobotStats rs : this.robotStats) {
+			if (0 <= rs.robot.getId()) {
+				this.robotStatsById[rs.robot.getId()] = rs;
+			}
 		}
 		this.resetRunStats();
 	}
 
 
 	public double getAvgCoversPerFreeCell() {
-		long totalCovers = 0;
-		for (int x = 0; x < this.env.getWidth(); x++) {
-			for (int y = 0; y < this.env.getHeight(); y++) {
-				if (this.env.getGridNode(x, y).getNodeType() == NodeType.FREE) {
-					totalCovers += this.env.getGridNode(x, y).getCoverCount();
-				}
-			}
-		}
-
-		return ((double) totalCovers) / ((double) this.totalFreeCells);
+		this.syncCoverAggregates();
+		return ((double) this.totalFreeCellCovers) / ((double) this.totalFreeCells);
 	}
 
 
@@ -95,15 +118,8 @@ public class CoverageStats {
 	 * @return
 	 */
 	public long getMaxCellCovers() {
-		long maxCovers = 0;
-		for (int x = 0; x < this.env.getWidth(); x++) {
-			for (int y = 0; y < this.env.getHeight(); y++) {
-				if (maxCovers < this.env.getGridNode(x, y).getCoverCount()) {
-					maxCovers = this.env.getGridNode(x, y).getCoverCount();
-				}
-			}
-		}
-		return maxCovers;
+		this.syncCoverAggregates();
+		return this.maxCellCovers;
 	}
 
 
@@ -145,16 +161,8 @@ public class CoverageStats {
 	 * @return
 	 */
 	public long getMinCellCovers() {
-		long minCovers = Long.MAX_VALUE;
-		for (int x = 0; x < this.env.getWidth(); x++) {
-			for (int y = 0; y < this.env.getHeight(); y++) {
-				if (this.env.getGridNode(x, y).getNodeType() == NodeType.FREE
-						&& this.env.getGridNode(x, y).getCoverCount() < minCovers) {
-					minCovers = this.env.getGridNode(x, y).getCoverCount();
-				}
-			}
-		}
-		return minCovers;
+		this.syncCoverAggregates();
+		return this.minFreeCellCovers;
 	}
 
 
@@ -185,8 +193,14 @@ public class CoverageStats {
 
 
 	public RobotStats getRobotStats(GridRobot r) {
+		int id = r.getId();
+		if (0 <= id && id < this.robotStatsById.length && this.robotStatsById[id] != null && this.robotStatsById[id].robot == r) {
+			return this.robotStatsById[id];
+		}
+
+		// Robots that share an id can't all be in the array
 		for (RobotStats rs : this.robotStats) {
-			if (rs.robot.equals(r)) {
+			if (rs.robot == r) {
 				return rs;
 			}
 		}
@@ -230,15 +244,11 @@ public class CoverageStats {
 
 
 	public long numFreeCellsCoveredNTimes(long n) {
-		long num = 0;
-		for (int x = 0; x < this.env.getWidth(); x++) {
-			for (int y = 0; y < this.env.getHeight(); y++) {
-				if (this.env.getGridNode(x, y).getNodeType() == NodeType.FREE && this.env.getGridNode(x, y).getCoverCount() == n) {
-					num++;
-				}
-			}
+		this.syncCoverAggregates();
+		if (n < 0 || this.freeCellsByCoverCount.length <= n) {
+			return 0;
 		}
-		return num;
+		return this.freeCellsByCoverCount[(int) n];
 	}
 
 
@@ -264,15 +274,14 @@ public class CoverageStats {
 
 	public void resetRunStats() {
 		this.nStepsInRun = 0;
-		this.totalFreeCells = 0;
-		this.lastCellVisitTimes = new long[this.env.getWidth()][this.env.getHeight()];
-		for (int x = 0; x < this.env.getWidth(); x++) {
-			for (int y = 0; y < this.env.getHeight(); y++) {
-				if (this.env.getGridNode(x, y).getNodeType() == NodeType.FREE) {
-					this.totalFreeCells++;
-				}
-			}
+		final int nCells = this.env.getGridStore().size();
+		if (this.lastCellVisitTimes == null || this.lastCellVisitTimes.length != nCells) {
+			this.lastCellVisitTimes = new long[nCells];
+		} else {
+			Arrays.fill(this.lastCellVisitTimes, 0);
 		}
+		this.syncCoverAggregates();
+		this.totalFreeCells = this.numFreeCells;
 		this.squaresLeft = this.totalFreeCells;
 
 		for (RobotStats rs : this.robotStats) {
@@ -295,18 +304,95 @@ public class CoverageStats {
 	}
 
 
+	/**
+	 * Counts the robot covering the cell it is on. This must be called just before the
+	 * cell's cover count is incremented, since the cover count aggregates are updated
+	 * for the increment here.
+	 */
 	public void updateCellCovered(GridRobot r) {
-		for (RobotStats rs : this.robotStats) {
-			if (rs.robot.equals(r)) {
-				rs.updateCellCovered();
-			}
+		RobotStats stats = this.getRobotStats(r);
+		if (stats != null) {
+			stats.updateCellCovered();
 		}
 
-		this.lastCellVisitTimes[r.getLocation().x][r.getLocation().y] = this.nStepsInRun;
+		final GridStore store = this.env.getGridStore();
+		final int index = store.indexOf(r.getLocation().x, r.getLocation().y);
+		this.lastCellVisitTimes[index] = this.nStepsInRun;
 
-		if (this.env.getGridNode(r.getLocation().x, r.getLocation().y).getCoverCount() == 0) {
+		final int coverCount = store.getCoverCount(index);
+		if (coverCount == 0) {
 			this.squaresLeft--;
 		}
+
+		this.syncCoverAggregates();
+		if (coverCount < 0) {
+			// Not kept in the histogram, so just rebuild everything next time
+			this.aggregateStore = null;
+			return;
+		}
+		if (store.isFree(index)) {
+			this.freeCellsByCoverCount[coverCount]--;
+			this.addFreeCellCoverCount(coverCount + 1);
+			this.totalFreeCellCovers++;
+			if (coverCount == this.minFreeCellCovers && this.freeCellsByCoverCount[coverCount] == 0) {
+				this.minFreeCellCovers = coverCount + 1;
+			}
+		}
+		if (this.maxCellCovers < coverCount + 1) {
+			this.maxCellCovers = coverCount + 1;
+		}
+		this.aggregateCoverVersion = store.getCoverVersion() + 1;
+	}
+
+
+	/**
+	 * Rebuilds the cover count aggregates if the cover counts or node types have been
+	 * changed by anything other than the covering of a cell
+	 */
+	private void syncCoverAggregates() {
+		final GridStore store = this.env.getGridStore();
+		if (store == this.aggregateStore && store.getCoverVersion() == this.aggregateCoverVersion) {
+			return;
+		}
+
+		final byte[] nodeTypes = store.getNodeTypeArray();
+		final int[] coverCounts = store.getCoverCountArray();
+		Arrays.fill(this.freeCellsByCoverCount, 0);
+		this.numFreeCells = 0;
+		this.totalFreeCellCovers = 0;
+		this.minFreeCellCovers = Long.MAX_VALUE;
+		this.maxCellCovers = 0;
+		for (int i = 0; i < nodeTypes.length; i++) {
+			final int coverCount = coverCounts[i];
+			if (this.maxCellCovers < coverCount) {
+				this.maxCellCovers = coverCount;
+			}
+			if (nodeTypes[i] == FREE_TYPE) {
+				this.numFreeCells++;
+				this.totalFreeCellCovers += coverCount;
+				if (coverCount < this.minFreeCellCovers) {
+					this.minFreeCellCovers = coverCount;
+				}
+				if (0 <= coverCount) {
+					this.addFreeCellCoverCount(coverCount);
+				}
+			}
+		}
+
+		this.aggregateStore = store;
+		this.aggregateCoverVersion = store.getCoverVersion();
+	}
+
+
+	private void addFreeCellCoverCount(int coverCount) {
+		if (this.freeCellsByCoverCount.length <= coverCount) {
+			int newLength = this.freeCellsByCoverCount.length;
+			while (newLength <= coverCount) {
+				newLength *= 2;
+			}
+			this.freeCellsByCoverCount = Arrays.copyOf(this.freeCellsByCoverCount, newLength);
+		}
+		this.freeCellsByCoverCount[coverCount]++;
 	}
 
 
@@ -340,14 +426,13 @@ class RobotStats {
 
 
 	public void updateCellCovered() {
-		int x = this.robot.getLocation().x;
-		int y = this.robot.getLocation().y;
-		GridNode node = this.env.getGridNode(x, y);
+		GridStore store = this.env.getGridStore();
+		int index = store.indexOf(this.robot.getLocation().x, this.robot.getLocation().y);
 
-		if (node.getCoverCount() < 1) {
+		if (store.getCoverCount(index) < 1) {
 			this.survivability += this.coverageProb;
 		}
-		this.coverageProb *= (1.0 - node.getDangerProb());
+		this.coverageProb *= (1.0 - store.getDanger(index));
 
 		this.pathLength++;
 	}
@@ -1,18 +1,10 @@
 package simulations.coverage.algo;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.Arrays;
 
 import adsim.Algorithm;
-import gridenv.Coordinate;
-import gridenv.GridNode;
 import gridenv.GridSensor;
-import gridenv.NodeType;
+import gridenv.GridSnapshot;
 import simulations.coverage.CoverageActuator;
 
 /**
@@ -27,8 +19,16 @@ public class GSACGC implements Algorithm {
 	GridSensor sensor;
 	CoverageActuator actuator;
 
-	private List<GridNode> coveragePath;
+	/**
+	 * The coverage path, as a sequence of cell indices ({@code x * pathGridHeight + y})
+	 */
+	private int[] coveragePath;
+	private int pathGridHeight = 1;
 	private int stepNum = 0;
+	/**
+	 * The grid the path was last planned on, kept to be refilled for the next run
+	 */
+	private GridSnapshot snapshot = null;
 
 
 	public GSACGC(GridSensor sensor, CoverageActuator actuator) {
@@ -40,26 +40,26 @@ public class GSACGC implements Algorithm {
 	@Override
 	public void init() {
 		this.stepNum = 0;
-		this.coveragePath = createGSACCoveragePath(createGraph(), this.sensor.getCurrentNode());
+		this.pathGridHeight = this.sensor.getGridHeight();
+		this.coveragePath = createGSACCoveragePath(createGraph(), this.sensor.getX(), this.sensor.getY());
 	}
 
 
 	@Override
 	public void step() {
 		// Just follow the coverage path
-		Coordinate curLoc = this.sensor.getLocation();
 		int nextX;
 		int nextY;
-		if (this.stepNum < this.coveragePath.size()) {
-			nextX = this.coveragePath.get(this.stepNum).getX();
-			nextY = this.coveragePath.get(this.stepNum).getY();
+		if (this.stepNum < this.coveragePath.length) {
+			nextX = this.coveragePath[this.stepNum] / this.pathGridHeight;
+			nextY = this.coveragePath[this.stepNum] % this.pathGridHeight;
 			this.stepNum++;
 		} else {
 			this.actuator.coverCurrentNode();
 			return;
 		}
-		int xdir = (int) Math.signum(nextX - curLoc.x);
-		int ydir = (int) Math.signum(nextY - curLoc.y);
+		int xdir = (int) Math.signum(nextX - this.sensor.getX());
+		int ydir = (int) Math.signum(nextY - this.sensor.getY());
 
 		if (xdir == 1 && ydir == 0) {
 			this.actuator.moveRight();
@@ -75,119 +75,92 @@ public class GSACGC implements Algorithm {
 	}
 
 
-	private List<GridNode> createGSACCoveragePath(GridNodeGraph graph, GridNode tmpStartNode) {
-		GridNode startNode = tmpStartNode;
-		for (GridNode node : graph.getAllNodes()) {
-			if (node.getX() == startNode.getX() && node.getY() == startNode.getY()) {
-				startNode = node;
-			}
-		}
-		List<GridNode> path = new ArrayList<>();
+	private int[] createGSACCoveragePath(GridShortestPaths paths, int startX, int startY) {
+		final int height = paths.getHeight();
+		final int nCells = paths.getNumNodes();
+		final int startNode = startX * height + startY;
+
+		PathBuilder path = new PathBuilder(nCells);
 		path.add(startNode);
-		Set<GridNode> unvisited = new HashSet<>();
-		unvisited.addAll(graph.getAllNodes());
-		Iterator<GridNode> iter = unvisited.iterator();
-		while (iter.hasNext()) {
-			GridNode node = iter.next();
-			if (node.getNodeType() == NodeType.OBSTACLE || (node.getX() == startNode.getX() && node.getY() == startNode.getY())) {
-				iter.remove();
+
+		boolean[] unvisited = new boolean[nCells];
+		int nUnvisited = 0;
+		for (int i = 0; i < nCells; i++) {
+			if (paths.isTraversable(i) && i != startNode) {
+				unvisited[i] = true;
+				nUnvisited++;
 			}
 		}
-		unvisited.remove(startNode);
-		GridNode curNode = startNode;
-
-		while (!unvisited.isEmpty()) {
-			// Find lowest-cost node
-			DijkstraGraph dj = new DijkstraGraph(graph, curNode);
-			double minCost = Double.POSITIVE_INFINITY;
-			GridNode minCostNode = null;
-			iter = unvisited.iterator();
-			while (iter.hasNext()) {
-				GridNode node = iter.next();
-				double costToNode = dj.getCostToNode(node);
-				if (costToNode < minCost || (costToNode == minCost && checkTiebreaker(node, minCostNode))) {
-					minCost = costToNode;
-					minCostNode = node;
-				} else if (costToNode == Double.POSITIVE_INFINITY) {
-					// Node is unreachable
-					iter.remove();
-				}
-			}
-			if (minCostNode == null) {
-				continue;
+
+		int curNode = startNode;
+		while (0 < nUnvisited) {
+			// Find lowest-cost node. If none can be reached, the rest of the
+			// unvisited nodes are cut off from the robot.
+			int minCostNode = paths.findNearestTarget(curNode, unvisited);
+			if (minCostNode == -1) {
+				break;
 			}
-			List<GridNode> curPath = dj.getPathToNode(minCostNode);
-			unvisited.removeAll(curPath);
+
 			// Don't include the start node, or else it will be
 			// added twice
-			path.addAll(curPath);
-
-			curNode = path.get(path.size() - 1);
-
+			int legStart = path.size();
+			paths.appendPathToNode(minCostNode, path);
+			for (int i = legStart; i < path.size(); i++) {
+				if (unvisited[path.get(i)]) {
+					unvisited[path.get(i)] = false;
+					nUnvisited--;
+				}
+			}
 
+			curNode = minCostNode;
 		}
 
-		return path;
+		return path.toArray();
 	}
 
 
-	private GridNodeGraph createGraph() {
-		GridNodeGraph graph = new GridNodeGraph();
-		// Create a temporary grid to avoid duplicating nodes
-		GridNode[][] grid = new GridNode[this.sensor.getGridWidth()][this.sensor.getGridHeight()];
-		for (int x = 0; x < this.sensor.getGridWidth(); x++) {
-			for (int y = 0; y < this.sensor.getGridHeight(); y++) {
-				grid[x][y] = this.sensor.getNodeAt(x, y);
-				if (0.0 < grid[x][y].getDangerProb()) {
-					grid[x][y].setCost((this.sensor.getGridWidth() * this.sensor.getGridHeight()) * grid[x][y].getDangerProb());
+	/**
+	 * Builds the shortest path engine for the current grid. The cost of moving into
+	 * a cell is proportional to its danger, dangerless cells have a tiny positive
+	 * cost so that shorter paths are still preferred, and obstacles cannot be
+	 * entered at all.
+	 */
+	private GridShortestPaths createGraph() {
+		final int width = this.sensor.getGridWidth();
+		final int height = this.sensor.getGridHeight();
+		final double nCells = width * height;
+		GridShortestPaths paths = new GridShortestPaths(width, height);
+		this.snapshot = this.sensor.takeSnapshot(this.snapshot);
+		final GridSnapshot grid = this.snapshot;
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				double cost;
+				if (grid.isObstacle(x, y)) {
+					cost = Double.POSITIVE_INFINITY;
+				} else if (0.0 < grid.getDangerLevelAt(x, y)) {
+					cost = nCells * grid.getDangerLevelAt(x, y);
 				} else {
-					grid[x][y].setCost(1.0 / (this.sensor.getGridWidth() * this.sensor.getGridHeight()));
-				}
-				if (grid[x][y].getNodeType() == NodeType.OBSTACLE) {
-					grid[x][y].setCost(Double.POSITIVE_INFINITY);
-				}
-			}
-		}
-
-
-		for (int x = 0; x < grid.length; x++) {
-			for (int y = 0; y < grid[0].length; y++) {
-				graph.addNode(grid[x][y]);
-				GridNode adjNode;
-				if (this.sensor.isOnGrid(x - 1, y)) {
-					adjNode = grid[x - 1][y];
-					graph.addEdge(grid[x][y], adjNode);
-				}
-
-				if (this.sensor.isOnGrid(x + 1, y)) {
-					adjNode = grid[x + 1][y];
-					graph.addEdge(grid[x][y], adjNode);
-				}
-
-				if (this.sensor.isOnGrid(x, y - 1)) {
-					adjNode = grid[x][y - 1];
-					graph.addEdge(grid[x][y], adjNode);
+					cost = 1.0 / nCells;
 				}
-
-				if (this.sensor.isOnGrid(x, y + 1)) {
-					adjNode = grid[x][y + 1];
-					graph.addEdge(grid[x][y], adjNode);
-				}
-
+				paths.setNodeCost(x, y, cost);
 			}
 		}
-		return graph;
+		return paths;
 	}
 
 
-	private boolean checkTiebreaker(GridNode node, GridNode minDistNode) {
-		int nodeSum = node.getX() + node.getY();
-		int minDistNodeSum = minDistNode.getX() + minDistNode.getY();
+	static boolean checkTiebreaker(int node, int minDistNode, int height) {
+		int nodeX = node / height;
+		int nodeY = node % height;
+		int minDistNodeX = minDistNode / height;
+		int minDistNodeY = minDistNode % height;
+		int nodeSum = nodeX + nodeY;
+		int minDistNodeSum = minDistNodeX + minDistNodeY;
 
 		if (nodeSum < minDistNodeSum) {
 			return true;
 		} else if (nodeSum == minDistNodeSum) {
-			return node.getY() < minDistNode.getY();
+			return nodeY < minDistNodeY;
 		}
 		return false;
 	}
@@ -203,133 +176,334 @@ public class GSACGC implements Algorithm {
 }
 
 
-class DijkstraGraph {
-	Map<GridNode, GridNode> prevNodes = new HashMap<>();
-	Map<GridNode, Double> costs = new HashMap<>();
-	private Set<GridNode> unvisited = new HashSet<>();
-	GridNode start;
-	GridNode target = null;
-	GridNodeGraph graph;
+/**
+ * Nearest-target shortest path searches over a 4-connected grid. Node costs, path costs
+ * and predecessors are stored in flat arrays indexed by {@code x * height + y}, and the
+ * frontier is kept in an indexed binary heap, so a search is at worst O(V log V) without
+ * any boxing or hashing. The cost of a path is the sum of the costs of the nodes entered
+ * along it (the start node is free).
+ * <p>
+ * The buffers are reused between searches: each search gets a new generation number,
+ * and a node's cost and predecessor are only valid if its stamp matches the current
+ * generation, so nothing has to be cleared when a new search starts.
+ * 
+ * @author Mike D'Arcy
+ *
+ */
+class GridShortestPaths {
+	private final int width;
+	private final int height;
+	private final double[] nodeCosts;
+	private final double[] costs;
+	private final int[] prevNodes;
+	private final int[] reachedStamps;
+	private final int[] settledStamps;
+	private final IndexedMinHeap heap;
+	private int generation = 0;
+
+
+	public GridShortestPaths(int width, int height) {
+		this.width = width;
+		this.height = height;
+		int nNodes = width * height;
+		this.nodeCosts = new double[nNodes];
+		this.costs = new double[nNodes];
+		this.prevNodes = new int[nNodes];
+		this.reachedStamps = new int[nNodes];
+		this.settledStamps = new int[nNodes];
+		this.heap = new IndexedMinHeap(nNodes);
+	}
+
+
+	public int getHeight() {
+		return this.height;
+	}
+
+
+	public int getNumNodes() {
+		return this.nodeCosts.length;
+	}
+
+
+	public void setNodeCost(int x, int y, double cost) {
+		this.nodeCosts[x * this.height + y] = cost;
+	}
+
+
+	/**
+	 * Checks whether the node can ever be entered (i.e., it is not an obstacle)
+	 */
+	public boolean isTraversable(int node) {
+		return this.nodeCosts[node] != Double.POSITIVE_INFINITY;
+	}
+
+
+	/**
+	 * Runs Dijkstra's algorithm from the given start node, but stops as soon as the
+	 * cheapest target has been settled. If several targets share the lowest cost,
+	 * the one preferred by {@link GSACGC#checkTiebreaker} is chosen; all of them are
+	 * guaranteed to be settled before any node with a higher cost.
+	 * 
+	 * @param start
+	 *                the index of the start node
+	 * @param isTarget
+	 *                flags for the nodes that may be returned
+	 * @return the index of the cheapest reachable target, or -1 if no target can be
+	 *         reached
+	 */
+	public int findNearestTarget(int start, boolean[] isTarget) {
+		beginSearch(start);
+		int bestNode = -1;
+		double bestCost = Double.POSITIVE_INFINITY;
+		while (!this.heap.isEmpty()) {
+			if (bestNode != -1 && bestCost < this.heap.peekKey()) {
+				break;
+			}
+			int curNode = this.heap.poll();
+			double curCost = this.costs[curNode];
+			if (isTarget[curNode]
+					&& (bestNode == -1 || curCost < bestCost || GSACGC.checkTiebreaker(curNode, bestNode, this.height))) {
+				bestCost = curCost;
+				bestNode = curNode;
+			}
+			settleAndExpand(curNode);
+		}
+		return bestNode;
+	}
 
 
-	public DijkstraGraph(GridNodeGraph graph, GridNode start) {
-		this(graph, start, null);
+	private void beginSearch(int start) {
+		this.generation++;
+		this.heap.clear();
+		this.reachedStamps[start] = this.generation;
+		this.costs[start] = 0.0;
+		this.prevNodes[start] = -1;
+		this.heap.insert(start, 0.0);
 	}
 
 
-	public DijkstraGraph(GridNodeGraph graph, GridNode start, GridNode target) {
-		this.graph = graph;
-		this.unvisited.addAll(graph.getAllNodes());
-		this.start = start;
-		this.target = target;
-		runDijkstra();
+	private void settleAndExpand(int curNode) {
+		this.settledStamps[curNode] = this.generation;
+		int x = curNode / this.height;
+		int y = curNode % this.height;
+		if (0 < x) {
+			relax(curNode, curNode - this.height);
+		}
+		if ((x + 1) < this.width) {
+			relax(curNode, curNode + this.height);
+		}
+		if (0 < y) {
+			relax(curNode, curNode - 1);
+		}
+		if ((y + 1) < this.height) {
+			relax(curNode, curNode + 1);
+		}
 	}
 
 
-	public List<GridNode> getPathToNode(GridNode target) {
-		List<GridNode> path = new ArrayList<>();
+	private void relax(int fromNode, int toNode) {
+		if (this.settledStamps[toNode] == this.generation) {
+			return;
+		}
+		double tmpCost = this.costs[fromNode] + this.nodeCosts[toNode];
+		if (this.reachedStamps[toNode] != this.generation) {
+			if (tmpCost == Double.POSITIVE_INFINITY) {
+				return;
+			}
+			this.reachedStamps[toNode] = this.generation;
+			this.costs[toNode] = tmpCost;
+			this.prevNodes[toNode] = fromNode;
+			this.heap.insert(toNode, tmpCost);
+		} else if (tmpCost < this.costs[toNode]) {
+			this.costs[toNode] = tmpCost;
+			this.prevNodes[toNode] = fromNode;
+			this.heap.insertOrDecrease(toNode, tmpCost);
+		}
+	}
+
 
-		for (GridNode curNode = target; this.prevNodes.get(curNode) != null; curNode = this.prevNodes.get(curNode)) {
+	/**
+	 * Appends the path from the start of the last search to the given target onto the
+	 * given path. The start node itself is not included.
+	 */
+	public void appendPathToNode(int target, PathBuilder path) {
+		int legStart = path.size();
+		for (int curNode = target; this.prevNodes[curNode] != -1; curNode = this.prevNodes[curNode]) {
 			path.add(curNode);
 		}
+		path.reverse(legStart, path.size());
+	}
+}
+
+
+/**
+ * A binary min-heap of node indices in [0, capacity), keyed by double priorities. The
+ * position of every node in the heap is tracked so that priorities can be decreased in
+ * O(log n).
+ * 
+ * @author Mike D'Arcy
+ *
+ */
+class IndexedMinHeap {
+	private final int[] nodes;
+	private final double[] keys;
+	private final int[] positions;
+	private int size = 0;
+
+
+	public IndexedMinHeap(int capacity) {
+		this.nodes = new int[capacity];
+		this.keys = new double[capacity];
+		this.positions = new int[capacity];
+		Arrays.fill(this.positions, -1);
+	}
+
+
+	public void clear() {
+		for (int i = 0; i < this.size; i++) {
+			this.positions[this.nodes[i]] = -1;
+		}
+		this.size = 0;
+	}
+
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
 
-		java.util.Collections.reverse(path);
-		return path;
+
+	public double peekKey() {
+		return this.keys[0];
 	}
 
 
-	public double getCostToNode(GridNode target) {
-		return this.costs.get(target).doubleValue();
+	public void insert(int node, double key) {
+		int pos = this.size++;
+		this.nodes[pos] = node;
+		this.keys[pos] = key;
+		this.positions[node] = pos;
+		siftUp(pos);
 	}
 
 
-	private void initNodes() {
-		for (GridNode node : this.unvisited) {
-			this.prevNodes.put(node, null);
-			this.costs.put(node, new Double(Double.POSITIVE_INFINITY));
+	public void insertOrDecrease(int node, double key) {
+		int pos = this.positions[node];
+		if (pos == -1) {
+			insert(node, key);
+		} else if (key < this.keys[pos]) {
+			this.keys[pos] = key;
+			siftUp(pos);
 		}
-		this.costs.put(this.start, new Double(0.0));
 	}
 
 
-	private void runDijkstra() {
-		initNodes();
-		GridNode curNode;
-		while (!this.unvisited.isEmpty()) {
+	/**
+	 * Removes and returns the node with the smallest key
+	 */
+	public int poll() {
+		int top = this.nodes[0];
+		this.positions[top] = -1;
+		this.size--;
+		if (0 < this.size) {
+			this.nodes[0] = this.nodes[this.size];
+			this.keys[0] = this.keys[this.size];
+			this.positions[this.nodes[0]] = 0;
+			siftDown(0);
+		}
+		return top;
+	}
 
-			curNode = getMinCostNodeFromUnvisitedSet();
-			if (curNode == this.target) {
-				return;
-			}
-			this.unvisited.remove(curNode);
-			double curCost = this.costs.get(curNode).doubleValue();
-			for (GridNode node : this.graph.getAdjacentNodes(curNode)) {
-				double nodeCost = node.getCost();
-				double tmpCost = curCost + nodeCost;
-				if (tmpCost < this.costs.get(node).doubleValue()) {
-					this.costs.put(node, new Double(tmpCost));
-					this.prevNodes.put(node, curNode);
-				}
+
+	private void siftUp(int pos) {
+		int node = this.nodes[pos];
+		double key = this.keys[pos];
+		while (0 < pos) {
+			int parent = (pos - 1) >>> 1;
+			if (this.keys[parent] <= key) {
+				break;
 			}
+			this.nodes[pos] = this.nodes[parent];
+			this.keys[pos] = this.keys[parent];
+			this.positions[this.nodes[pos]] = pos;
+			pos = parent;
 		}
+		this.nodes[pos] = node;
+		this.keys[pos] = key;
+		this.positions[node] = pos;
 	}
 
 
-	private GridNode getMinCostNodeFromUnvisitedSet() {
-		double minDist = Double.POSITIVE_INFINITY;
-		GridNode minDistNode = null;
-		for (GridNode node : this.unvisited) {
-			double dist = this.costs.get(node).doubleValue();
-			if (dist < minDist || minDistNode == null) {
-				minDist = dist;
-				minDistNode = node;
+	private void siftDown(int pos) {
+		int node = this.nodes[pos];
+		double key = this.keys[pos];
+		int half = this.size >>> 1;
+		while (pos < half) {
+			int child = 2 * pos + 1;
+			if ((child + 1) < this.size && this.keys[child + 1] < this.keys[child]) {
+				child++;
+			}
+			if (key <= this.keys[child]) {
+				break;
 			}
+			this.nodes[pos] = this.nodes[child];
+			this.keys[pos] = this.keys[child];
+			this.positions[this.nodes[pos]] = pos;
+			pos = child;
 		}
-		return minDistNode;
+		this.nodes[pos] = node;
+		this.keys[pos] = key;
+		this.positions[node] = pos;
 	}
 }
 
 
 /**
- * A graph whoose nodes are grid nodes. This type of graph is generally used to represent
- * a grid.
+ * A growable list of primitive ints, used to build coverage paths.
  * 
  * @author Mike D'Arcy
  *
  */
-class GridNodeGraph {
-	Map<GridNode, Set<GridNode>> adjacencyMap = new HashMap<>();
-
+class PathBuilder {
+	private int[] data;
+	private int size = 0;
 
-	public GridNodeGraph() {
 
+	public PathBuilder(int initialCapacity) {
+		this.data = new int[Math.max(1, initialCapacity)];
 	}
 
 
-	public void addNode(GridNode node) {
-		if (!this.hasNode(node)) {
-			this.adjacencyMap.put(node, new HashSet<GridNode>());
+	public void add(int value) {
+		if (this.size == this.data.length) {
+			this.data = Arrays.copyOf(this.data, this.data.length * 2);
 		}
+		this.data[this.size++] = value;
 	}
 
 
-	public void addEdge(GridNode node1, GridNode node2) {
-		this.adjacencyMap.get(node1).add(node2);
+	public int get(int i) {
+		return this.data[i];
 	}
 
 
-	public Set<GridNode> getAdjacentNodes(GridNode node) {
-		return this.adjacencyMap.get(node);
+	public int size() {
+		return this.size;
 	}
 
 
-	public Set<GridNode> getAllNodes() {
-		return this.adjacencyMap.keySet();
+	/**
+	 * Reverses the elements in [from, to)
+	 */
+	public void reverse(int from, int to) {
+		for (int i = from, j = to - 1; i < j; i++, j--) {
+			int tmp = this.data[i];
+			this.data[i] = this.data[j];
+			this.data[j] = tmp;
+		}
 	}
 
 
-	public boolean hasNode(GridNode node) {
-		return this.adjacencyMap.containsKey(node);
+	public int[] toArray() {
+		return Arrays.copyOf(this.data, this.size);
 	}
-
 }
@@ -1,6 +1,7 @@
 package simulations.generic;
 
 import adsim.Simulation;
+import adsim.SimulationContext;
 import adsim.SimulatorEngine;
 import gridenv.GridEnvironment;
 
@@ -14,6 +15,7 @@ public class GenericSimulation implements Simulation {
 
 	GridEnvironment env = null;
 	SimulatorEngine engine = null;
+	private final SimulationContext context = SimulationContext.createDefault();
 
 
 	public GenericSimulation() {
@@ -63,9 +65,16 @@ public class GenericSimulation implements Simulation {
 	}
 
 
+	@Override
+	public SimulationContext getContext() {
+		return this.context;
+	}
+
+
 	@Override
 	public void setEngine(SimulatorEngine engine) {
 		this.engine = engine;
+		this.context.setEngine(engine);
 	}
 
 
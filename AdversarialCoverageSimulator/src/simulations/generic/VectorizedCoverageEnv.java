@@ -0,0 +1,309 @@
+package simulations.generic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import adsim.Simulation;
+import adsim.SimulationContext;
+import adsim.SimulatorSettings;
+import gridenv.GridEnvironment;
+import gridenv.GridRobot;
+import simulations.coverage.CoverageSimulation;
+import simulations.coverage.CoverageStats;
+import simulations.generic.algo.ExternalActionAlgo;
+import simulations.pathplan.PathplanSimulation;
+
+/**
+ * Steps many independent simulations in lockstep for a learner running in the same
+ * JVM, so it gets a batch of states for every call instead of a single one. Each
+ * simulation has its own {@link SimulationContext} (as with
+ * {@link simulations.coverage.CoverageBatchRunner}), and its robots are controlled with
+ * {@link ExternalActionAlgo}.
+ * <p>
+ * Every robot of every simulation is an agent, numbered in simulation order. The
+ * actions, states, rewards, and end flags of the agents are passed in arrays that are
+ * packed in that order; the state of agent {@code i} is stored starting at
+ * {@code i * getStateSize()} of {@link #getObservations()}. The arrays returned by the
+ * getters are reused for every step.
+ * <p>
+ * A robot that breaks stays broken until its simulation starts a new run, and its
+ * actions are ignored until then. Its reward is zero for every step after the one it
+ * broke in, and {@link #getAgentDones()} tells which agents are in that state.
+ * <p>
+ * When a simulation reaches a terminal state, it is moved to a new grid before
+ * {@link #step(int[])} returns, so the state given for its agents is the first state of
+ * the next run. Runs aren't reported on the console, but are still counted in the stats
+ * of each simulation.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class VectorizedCoverageEnv {
+	private final Simulation[] sims;
+	private final GridEnvironment[] envs;
+	private final ExternalActionAlgo[] agents;
+	private final GridRobot[] robots;
+	/**
+	 * The first agent of each simulation, with an extra entry at the end for the
+	 * total number of agents
+	 */
+	private final int[] firstAgents;
+	private final int stateSize;
+	private final int nThreads;
+	private final ForkJoinPool pool;
+
+	private final double[] observations;
+	private final double[] rewards;
+	private final boolean[] dones;
+	private final boolean[] agentDones;
+	/**
+	 * Whether each agent's robot was broken before the current step
+	 */
+	private final boolean[] brokenBeforeStep;
+
+
+	/**
+	 * Creates the simulations and starts their first runs
+	 *
+	 * @param settings
+	 *                the settings to copy for each simulation. The algorithm is always
+	 *                set to {@code ExternalAction}.
+	 * @param simulationType
+	 *                the type of simulation, either {@code coverage} or
+	 *                {@code pathplanning}
+	 * @param nEnvs
+	 *                the number of simulations
+	 * @param nThreads
+	 *                the number of threads to step the simulations with
+	 * @param seed
+	 *                the seed from which the seed of each simulation is generated
+	 */
+	public VectorizedCoverageEnv(SimulatorSettings settings, String simulationType, int nEnvs, int nThreads, long seed) {
+		final SimulatorSettings envSettings = new SimulatorSettings(settings);
+		envSettings.setString("adsim.algorithm_name", "ExternalAction");
+		final Random seedgen = new Random(seed);
+
+		this.sims = new Simulation[nEnvs];
+		this.envs = new GridEnvironment[nEnvs];
+		this.firstAgents = new int[nEnvs + 1];
+		List<ExternalActionAlgo> agentList = new ArrayList<>();
+		List<GridRobot> robotList = new ArrayList<>();
+		for (int i = 0; i < nEnvs; i++) {
+			SimulationContext context = SimulationContext.createIsolated(envSettings, seedgen.nextLong());
+			if (simulationType.equalsIgnoreCase("pathplanning")) {
+				PathplanSimulation sim = new PathplanSimulation(context);
+				sim.onNewRun();
+				this.sims[i] = sim;
+				this.envs[i] = sim.getEnv();
+			} else {
+				if (!simulationType.equalsIgnoreCase("coverage")) {
+					System.err.printf("error: Invalid simulation type name %s. Using coverage instead.\n", simulationType);
+				}
+				CoverageSimulation sim = new CoverageSimulation(context);
+				sim.onNewRun();
+				this.sims[i] = sim;
+				this.envs[i] = sim.getEnv();
+			}
+
+			this.firstAgents[i] = agentList.size();
+			for (GridRobot r : this.envs[i].getRobotList()) {
+				agentList.add((ExternalActionAlgo) r.coverAlgo);
+				robotList.add(r);
+			}
+		}
+		this.firstAgents[nEnvs] = agentList.size();
+		this.agents = agentList.toArray(new ExternalActionAlgo[agentList.size()]);
+		this.robots = robotList.toArray(new GridRobot[robotList.size()]);
+
+		this.stateSize = (this.agents.length == 0 ? 0 : this.agents[0].getStateSize());
+		this.observations = new double[this.agents.length * this.stateSize];
+		this.rewards = new double[this.agents.length];
+		this.dones = new boolean[this.agents.length];
+		this.agentDones = new boolean[this.agents.length];
+		this.brokenBeforeStep = new boolean[this.agents.length];
+
+		this.nThreads = Math.max(1, Math.min(nThreads, nEnvs));
+		this.pool = (1 < this.nThreads ? new ForkJoinPool(this.nThreads) : null);
+
+		for (int i = 0; i < nEnvs; i++) {
+			this.writeObservations(i);
+		}
+	}
+
+
+	/**
+	 * Moves every simulation to a new grid, without counting the runs that were in
+	 * progress, and gets the starting states
+	 *
+	 * @return the states of all the agents
+	 */
+	public double[] reset() {
+		for (int i = 0; i < this.sims.length; i++) {
+			this.startNewGrid(i);
+			this.sims[i].getContext().getStats().resetRunStats();
+			this.writeObservations(i);
+		}
+		Arrays.fill(this.rewards, 0.0);
+		Arrays.fill(this.dones, false);
+		Arrays.fill(this.agentDones, false);
+		return this.observations;
+	}
+
+
+	/**
+	 * Has every agent take an action, then steps every simulation once, starting a new
+	 * run in the ones that finished
+	 *
+	 * @param actions
+	 *                the id of the action for each agent
+	 * @return the new states of all the agents
+	 */
+	public double[] step(final int[] actions) {
+		if (actions.length != this.agents.length) {
+			throw new IllegalArgumentException(
+					String.format("Expected %d actions but got %d", this.agents.length, actions.length));
+		}
+
+		if (this.pool == null) {
+			this.stepEnvs(actions, 0, this.sims.length);
+			return this.observations;
+		}
+
+		// Each thread gets a contiguous range of simulations, so threads never write
+		// to the same part of the output arrays
+		List<ForkJoinTask<Void>> tasks = new ArrayList<>(this.nThreads);
+		for (int t = 0; t < this.nThreads; t++) {
+			final int start = (int) ((long) this.sims.length * t / this.nThreads);
+			final int end = (int) ((long) this.sims.length * (t + 1) / this.nThreads);
+			tasks.add(this.pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					stepEnvs(actions, start, end);
+					return null;
+				}
+			}));
+		}
+		for (ForkJoinTask<Void> task : tasks) {
+			task.join();
+		}
+		return this.observations;
+	}
+
+
+	private void stepEnvs(int[] actions, int start, int end) {
+		for (int i = start; i < end; i++) {
+			int firstAgent = this.firstAgents[i];
+			int endAgent = this.firstAgents[i + 1];
+			for (int a = firstAgent; a < endAgent; a++) {
+				this.agents[a].setNextAction(actions[a]);
+				this.brokenBeforeStep[a] = this.robots[a].isBroken();
+			}
+
+			Simulation sim = this.sims[i];
+			sim.onStep();
+			CoverageStats stats = sim.getContext().getStats();
+			stats.updateTimeStep();
+
+			boolean done = sim.isTerminalState();
+			for (int a = firstAgent; a < endAgent; a++) {
+				// Broken robots don't act, so the last reward of a robot that was
+				// already broken is left over from the step it broke in
+				this.rewards[a] = (this.brokenBeforeStep[a] ? 0.0 : this.agents[a].getLastReward());
+				this.dones[a] = done;
+				this.agentDones[a] = done || this.robots[a].isBroken();
+			}
+
+			if (done) {
+				// Same order as the engine, since the run stats are sized to the grid
+				this.startNewGrid(i);
+				stats.startNewRun();
+			}
+			this.writeObservations(i);
+		}
+	}
+
+
+	private void startNewGrid(int envNum) {
+		Simulation sim = this.sims[envNum];
+		if (sim instanceof PathplanSimulation) {
+			((PathplanSimulation) sim).startNewGrid();
+		} else {
+			((CoverageSimulation) sim).startNewGrid();
+		}
+	}
+
+
+	private void writeObservations(int envNum) {
+		for (int a = this.firstAgents[envNum]; a < this.firstAgents[envNum + 1]; a++) {
+			this.agents[a].writeState(this.observations, a * this.stateSize);
+		}
+	}
+
+
+	/**
+	 * Stops the threads used to step the simulations
+	 */
+	public void dispose() {
+		if (this.pool != null) {
+			this.pool.shutdown();
+		}
+	}
+
+
+	public double[] getObservations() {
+		return this.observations;
+	}
+
+
+	public double[] getRewards() {
+		return this.rewards;
+	}
+
+
+	/**
+	 * Gets whether each agent's simulation finished its run in the last step
+	 */
+	public boolean[] getDones() {
+		return this.dones;
+	}
+
+
+	/**
+	 * Gets whether each agent is done for the rest of its simulation's run, because
+	 * its robot is broken or the run has finished. The actions of an agent that is
+	 * done are ignored until its simulation starts a new run.
+	 */
+	public boolean[] getAgentDones() {
+		return this.agentDones;
+	}
+
+
+	public int getNumEnvs() {
+		return this.sims.length;
+	}
+
+
+	public int getNumAgents() {
+		return this.agents.length;
+	}
+
+
+	public int getStateSize() {
+		return this.stateSize;
+	}
+
+
+	public int getNumActions() {
+		return (this.agents.length == 0 ? 0 : this.agents[0].getNumActions());
+	}
+
+
+	public GridEnvironment getEnv(int envNum) {
+		return this.envs[envNum];
+	}
+}
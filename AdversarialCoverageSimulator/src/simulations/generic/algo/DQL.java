@@ -2,16 +2,21 @@ package simulations.generic.algo;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.Scanner;
 
-import adsim.Algorithm;
-import adsim.SimulatorMain;
+import adsim.SimulationContext;
 import adsim.SimulatorSettings;
 import adsim.TerminalCommand;
+import adsim.TwoPhaseAlgorithm;
 import adsim.stats.SampledVariableDouble;
+import deeplearning.ExperienceReplay;
+import deeplearning.MappedReplayMemory;
 import deeplearning.NeuralNet;
+import deeplearning.PrioritizedReplay;
+import deeplearning.ReplayMemory;
 import deeplearning.StateTransition;
 import deeplearning.NeuralNet.TrainingType;
 import deeplearning.DQLActuator;
@@ -29,17 +34,23 @@ import deeplearning.ExternalTorchNN;
  * @author Mike D'Arcy
  *
  */
-public class DQL implements Algorithm {
+public class DQL implements TwoPhaseAlgorithm {
 	private boolean PRINT_Q_VALUES;
 	private boolean USING_EXTERNAL_QLEARNER;
 	private boolean EXTERNALNN_ALLOW_PARTIAL_TRANSITIONS;
 	private boolean EXTERNALNN_USE_FAST_FORWARDS;
 	private boolean ALWAYS_FORWARD_NNINPUT;
-	private double greedyEpsilon = SimulatorMain.settings.getDouble("deepql.greedy_epsilon_start");
+	private boolean REPLAY_FLOAT_STORAGE;
+	private boolean REPLAY_PRIORITIZED;
+	private double greedyEpsilon;
 	private double DISCOUNT_FACTOR;
 	private double GREEDY_EPSILON_DECREMENT;
 	private double GREEDY_EPSILON_MINIMUM;
 	private double LEARNING_RATE_DECAY_FACTOR;
+	private double REPLAY_EXTRA_FRAMES_FRACTION;
+	private double REPLAY_PRIORITY_ALPHA;
+	private double REPLAY_PRIORITY_BETA_START;
+	private double REPLAY_PRIORITY_EPSILON;
 	private int EXTERNAL_RNN_NUM_CODES_PER_MINIBATCH;
 	private int HIDDEN_LAYER_SIZE;
 	private int HISTORY_MAX;
@@ -48,32 +59,73 @@ public class DQL implements Algorithm {
 	private int MINIBATCH_INTERVAL;
 	private int MINIBATCH_SIZE;
 	private int NUM_HIDDEN_LAYERS;
+	private int REPLAY_PRIORITY_BETA_BATCHES;
+	private int TRAINING_THREADS;
 	private long lastTerminalStep = -1;
-	private long stateHistorySize = 0;
 	private long stepNum = 0;
 	private DQLActuator actuator;
 	private GridSensor sensor;
+	private final SimulationContext context;
 	private MinibatchSeqType MINIBATCH_SEQ_TYPE = MinibatchSeqType.MANUAL;
 	private NeuralNet nn = null;
-	private Random randgen = new Random();
+	private final Random randgen;
 	private SampledVariableDouble trainingLoss = new SampledVariableDouble();
 	private SampledVariableDouble trainingAbsLoss = new SampledVariableDouble();
 	private DQLStatePreprocessor preprocessor;
-	private StateTransition[] lastStates;
+	private ExperienceReplay replayMemory = null;
+	/**
+	 * The replay memory, if prioritized replay is used, or null otherwise
+	 */
+	private PrioritizedReplay prioritizedReplay = null;
+	private String REPLAY_FILE;
 	private TrainingType NN_TRAINING_TYPE = TrainingType.RMSPROP;
 
 	private double[] nnOutput = null;
+	/**
+	 * Whether a random action is taken in the current step
+	 */
+	private boolean exploring = false;
+	/**
+	 * The position of the current state in the external network's batch, or -1 if it
+	 * wasn't queued
+	 */
+	private int batchIndex = -1;
+	/**
+	 * Reused for every step, since the replay memory keeps its own copies of the
+	 * states
+	 */
+	private final StateTransition transition = new StateTransition();
+	private double[] stateBuffer = null;
+	private double[] nextStateBuffer = null;
+	/**
+	 * Buffers for minibatch training with the native network, each holding one row per
+	 * sample
+	 */
+	private double[] minibatchInputs = new double[0];
+	private double[] minibatchNextInputs = new double[0];
+	private double[] minibatchOutputs = new double[0];
+	private double[] minibatchNextQVals = new double[0];
+	private int[] minibatchActions = new int[0];
+	private double[] minibatchRewards = new double[0];
+	private boolean[] minibatchTerminals = new boolean[0];
+	private double[] minibatchWeights = new double[0];
+	private double[] minibatchTDErrors = new double[0];
+	private double[] sampleInput = null;
+	private double[] sampleNextInput = null;
 
 
 	public DQL(GridSensor sensor, DQLActuator actuator) {
 		this.sensor = sensor;
 		this.actuator = actuator;
+		this.context = sensor.getContext();
+		// Each robot has its own generator, so that runs are still reproducible when
+		// robots prepare their steps on separate threads
+		this.randgen = new Random(this.context.getRandom().nextLong());
+		this.greedyEpsilon = this.context.getSettings().getDouble("deepql.greedy_epsilon_start");
 		this.preprocessor = new CoverageStatePreprocessor(this.sensor);
 
 		this.reloadSettings();
 
-		this.lastStates = new StateTransition[this.HISTORY_MAX];
-
 		this.registerCustomCommands();
 	}
 
@@ -83,12 +135,31 @@ public class DQL implements Algorithm {
 		if (this.nn == null) {
 			this.reloadSettings();
 			this.initNeuralNet();
+			this.initReplayMemory();
 		}
 	}
 
 
 	@Override
 	public void step() {
+		this.prepareStep(false);
+		this.finishStep();
+	}
+
+
+	/**
+	 * Prepares the step, queueing the current state to be fed forward along with the
+	 * other robots' states if the external network will be needed. A native network is
+	 * fed forward right away, since robots may prepare their steps on separate threads
+	 * and each robot has a network of its own.
+	 */
+	@Override
+	public void prepareStep() {
+		this.prepareStep(true);
+	}
+
+
+	private void prepareStep(boolean twoPhase) {
 		if (this.stepNum % 25000 == 0) {
 			this.nn.LEARNING_RATE *= this.LEARNING_RATE_DECAY_FACTOR;
 			System.out.println(this.nn.exportToString());
@@ -97,10 +168,33 @@ public class DQL implements Algorithm {
 			System.out.println("Learning rate=" + this.nn.LEARNING_RATE);
 		}
 
-		double[] nnInput = this.preprocessor.getPreprocessedState();
+		double[] nnInput = this.preprocessor.getPreprocessedState(this.stateBuffer);
+		this.transition.nnInput = nnInput;
+		this.exploring = this.randgen.nextDouble() < this.greedyEpsilon;
+
+		if (twoPhase && this.nnOutput == null && (this.ALWAYS_FORWARD_NNINPUT || !this.exploring)) {
+			if (this.nn instanceof ExternalTorchNN) {
+				this.batchIndex = ((ExternalTorchNN) this.nn).queueFeedForward(nnInput);
+			} else {
+				this.nnOutput = ensureNNOutput(nnInput);
+			}
+		}
+	}
+
 
-		StateTransition transition = new StateTransition();
-		transition.nnInput = nnInput;
+	@Override
+	public void finishStep() {
+		StateTransition transition = this.transition;
+		double[] nnInput = transition.nnInput;
+
+		if (0 <= this.batchIndex) {
+			this.nnOutput = ((ExternalTorchNN) this.nn).getQueuedOutputs(this.batchIndex);
+			this.batchIndex = -1;
+			if (this.nnOutput == null) {
+				System.err.println("Null nn output for batched state.");
+				this.nnOutput = new double[5];
+			}
+		}
 
 		if (this.nnOutput == null && this.ALWAYS_FORWARD_NNINPUT) {
 			this.nnOutput = ensureNNOutput(nnInput);
@@ -110,11 +204,12 @@ public class DQL implements Algorithm {
 		this.actuator.takeActionById(transition.action);
 
 		transition.reward = this.actuator.getLastReward();
-		transition.nextInput = this.preprocessor.getPreprocessedState();
+		transition.nextInput = this.preprocessor.getPreprocessedState(this.nextStateBuffer);
 		transition.isTerminal = this.sensor.isFinished();
 
+		double loss = Double.NaN;
 		if ((this.LOSS_SAMPLING_INTERVAL != 0) && (this.stepNum % this.LOSS_SAMPLING_INTERVAL == 0)) {
-			double loss = calcLoss(transition);
+			loss = calcLoss(transition);
 			this.trainingLoss.addSample(loss);
 			this.trainingAbsLoss.addSample(Math.abs(loss));
 		} else {
@@ -132,6 +227,9 @@ public class DQL implements Algorithm {
 		}
 
 		this.storeTranstion(transition);
+		if (this.prioritizedReplay != null && !Double.isNaN(loss)) {
+			this.prioritizedReplay.updateNewestPriority(loss);
+		}
 
 		if (this.MINIBATCH_SEQ_TYPE == MinibatchSeqType.MANUAL) {
 			if (this.stepNum % this.MINIBATCH_INTERVAL == 0) {
@@ -196,7 +294,7 @@ public class DQL implements Algorithm {
 
 
 	private void decideTransitionAction(StateTransition transition, double[] nnInput) {
-		if (this.randgen.nextDouble() < this.greedyEpsilon) {
+		if (this.exploring) {
 			transition.action = this.randgen.nextInt(5);
 		} else {
 			if (this.nnOutput == null) {
@@ -221,8 +319,8 @@ public class DQL implements Algorithm {
 
 	private void storeTranstion(StateTransition transition) {
 		if (!this.USING_EXTERNAL_QLEARNER) {
-			this.lastStates[(int) (this.stepNum % this.HISTORY_MAX)] = transition;
-			this.stateHistorySize = Math.min(this.HISTORY_MAX, this.stepNum);
+			this.replayMemory.add(transition.nnInput, transition.action, transition.reward, transition.isTerminal,
+					transition.nextInput);
 		} else if (this.nn instanceof ExternalTorchNN) {
 			((ExternalTorchNN) this.nn).sendTransition(transition, this.EXTERNALNN_ALLOW_PARTIAL_TRANSITIONS);
 		}
@@ -259,13 +357,14 @@ public class DQL implements Algorithm {
 			if (this.MINIBATCH_SEQ_TYPE == MinibatchSeqType.MANUAL) {
 				numCodesToSend = this.EXTERNAL_RNN_NUM_CODES_PER_MINIBATCH;
 			} else if (this.MINIBATCH_SEQ_TYPE == MinibatchSeqType.FULL_EPISODE) {
-				int nCodesFixed = SimulatorMain.settings.getInt("deepql.minibatch_seq.fullep.numCodes");
+				int nCodesFixed = this.context.getSettings().getInt("deepql.minibatch_seq.fullep.numCodes");
 				numCodesToSend = nCodesFixed < 0 ? (this.stepNum - this.lastTerminalStep) : nCodesFixed;
 			}
 			for (int i = 0; i < numCodesToSend; i++) {
 				((ExternalTorchNN) this.nn).runTorchMinibatch();
 			}
-		} else if (this.MINIBATCH_SIZE < this.stepNum) {
+		} else if (this.MINIBATCH_SIZE < this.stepNum || this.MINIBATCH_SIZE < this.replayMemory.size()) {
+			// Transitions resumed from a replay file can be trained on right away
 			trainMinibatchFromHistory(this.MINIBATCH_SIZE);
 		}
 	}
@@ -278,20 +377,79 @@ public class DQL implements Algorithm {
 
 
 	private void trainMinibatchFromHistory(int batchSize) {
+		if (this.nn instanceof ExternalTorchNN) {
+			trainMinibatchFromHistory_perSample(batchSize);
+			return;
+		}
+
+		this.sampleMinibatch(batchSize);
+
+		// The weights don't change until the batch is finished, so the Q-values of
+		// every next state can be found in one pass, followed by one pass for the
+		// initial states. Their outputs become the correct outputs, with the
+		// Q-value of the action taken replaced.
+		this.nn.feedForwardBatch(this.minibatchNextInputs, batchSize);
+		this.nn.getBatchOutputs(this.minibatchOutputs);
+		for (int i = 0; i < batchSize; i++) {
+			this.minibatchNextQVals[i] = fastMax_DoubleArr5(this.minibatchOutputs, i * 5);
+		}
+
+		this.nn.feedForwardBatch(this.minibatchInputs, batchSize);
+		this.nn.getBatchOutputs(this.minibatchOutputs);
+		for (int i = 0; i < batchSize; i++) {
+			int outputNum = i * 5 + this.minibatchActions[i];
+			double correctQVal = (this.minibatchRewards[i]
+					+ (this.minibatchTerminals[i] ? 0.0 : (this.DISCOUNT_FACTOR * this.minibatchNextQVals[i])));
+			this.minibatchTDErrors[i] = correctQVal - this.minibatchOutputs[outputNum];
+			this.minibatchOutputs[outputNum] = correctQVal;
+		}
+
+		double[] sampleWeights = (this.prioritizedReplay != null ? this.minibatchWeights : null);
+		if (this.nn.trainingType == TrainingType.RMSPROP) {
+			this.nn.backPropagateLastBatch_RMSProp(this.minibatchOutputs, sampleWeights);
+			this.nn.finishBatch_RMSProp();
+		} else {
+			this.nn.backPropagateLastBatch_Momentum(this.minibatchOutputs, sampleWeights);
+			this.nn.finishBatch_Momentum();
+		}
+
+		if (this.prioritizedReplay != null) {
+			this.prioritizedReplay.updateSamplePriorities(this.minibatchTDErrors);
+		}
+	}
+
+
+	/**
+	 * Trains on a minibatch one sample at a time, for networks that can't take a
+	 * whole minibatch at once
+	 */
+	private void trainMinibatchFromHistory_perSample(int batchSize) {
+		final int stateSize = this.replayMemory.getStateSize();
+		this.sampleMinibatch(batchSize);
 		for (int i = 0; i < batchSize; i++) {
-			int sampleNum = this.randgen.nextInt((int) this.stateHistorySize);
-			StateTransition sample = this.lastStates[sampleNum];
+			System.arraycopy(this.minibatchInputs, i * stateSize, this.sampleInput, 0, stateSize);
+			System.arraycopy(this.minibatchNextInputs, i * stateSize, this.sampleNextInput, 0, stateSize);
 
-			double[] tmpnnOutput = ensureNNOutput(sample.nextInput);
+			double[] tmpnnOutput = ensureNNOutput(this.sampleNextInput);
 			double nextQVal = fastMax_DoubleArr5(tmpnnOutput);
 
-			tmpnnOutput = ensureNNOutput(sample.nnInput);
+			tmpnnOutput = ensureNNOutput(this.sampleInput);
 
 			double[] correctOut = new double[5];
 			for (int j = 0; j < tmpnnOutput.length; j++) {
 				correctOut[j] = tmpnnOutput[j];
 			}
-			correctOut[sample.action] = (sample.reward + (sample.isTerminal ? 0.0 : (this.DISCOUNT_FACTOR * nextQVal)));
+			int action = this.minibatchActions[i];
+			double correctQVal = (this.minibatchRewards[i] + (this.minibatchTerminals[i] ? 0.0 : (this.DISCOUNT_FACTOR * nextQVal)));
+			this.minibatchTDErrors[i] = correctQVal - correctOut[action];
+			if (this.prioritizedReplay != null) {
+				// These networks can't be given sample weights, but the gradient of
+				// the squared error is proportional to the error, so moving the
+				// target closer has the same effect
+				correctOut[action] += this.minibatchWeights[i] * this.minibatchTDErrors[i];
+			} else {
+				correctOut[action] = correctQVal;
+			}
 
 			if (this.nn.trainingType == TrainingType.RMSPROP) {
 				this.nn.backPropagateFromLastSample_RMSProp(correctOut);
@@ -305,6 +463,33 @@ public class DQL implements Algorithm {
 			this.nn.finishBatch_Momentum();
 		}
 
+		if (this.prioritizedReplay != null) {
+			this.prioritizedReplay.updateSamplePriorities(this.minibatchTDErrors);
+		}
+	}
+
+
+	/**
+	 * Fills the minibatch buffers with transitions sampled from the replay memory
+	 */
+	private void sampleMinibatch(int batchSize) {
+		final int stateSize = this.replayMemory.getStateSize();
+		if (this.minibatchActions.length < batchSize) {
+			this.minibatchInputs = new double[batchSize * stateSize];
+			this.minibatchNextInputs = new double[batchSize * stateSize];
+			this.minibatchOutputs = new double[batchSize * 5];
+			this.minibatchNextQVals = new double[batchSize];
+			this.minibatchActions = new int[batchSize];
+			this.minibatchRewards = new double[batchSize];
+			this.minibatchTerminals = new boolean[batchSize];
+			this.minibatchWeights = new double[batchSize];
+			this.minibatchTDErrors = new double[batchSize];
+		}
+		this.replayMemory.sample(this.randgen, batchSize, this.minibatchInputs, this.minibatchNextInputs,
+				this.minibatchActions, this.minibatchRewards, this.minibatchTerminals);
+		if (this.prioritizedReplay != null) {
+			this.prioritizedReplay.getSampleWeights(this.minibatchWeights);
+		}
 	}
 
 
@@ -314,25 +499,37 @@ public class DQL implements Algorithm {
 	 * @return the largest double value in the 5-element array
 	 */
 	private double fastMax_DoubleArr5(double[] arr) {
-		double maxVal = arr[0];
-		if (maxVal < arr[1]) {
-			maxVal = arr[1];
+		return fastMax_DoubleArr5(arr, 0);
+	}
+
+
+	/**
+	 * Quickly gets the value of the largest of the 5 double values starting at the
+	 * given offset of an array.
+	 * 
+	 * @return the largest double value in {@code arr[offset, offset + 5)}
+	 */
+	private double fastMax_DoubleArr5(double[] arr, int offset) {
+		double maxVal = arr[offset];
+		if (maxVal < arr[offset + 1]) {
+			maxVal = arr[offset + 1];
 		}
-		if (maxVal < arr[2]) {
-			maxVal = arr[2];
+		if (maxVal < arr[offset + 2]) {
+			maxVal = arr[offset + 2];
 		}
-		if (maxVal < arr[3]) {
-			maxVal = arr[3];
+		if (maxVal < arr[offset + 3]) {
+			maxVal = arr[offset + 3];
 		}
-		if (maxVal < arr[4]) {
-			maxVal = arr[4];
+		if (maxVal < arr[offset + 4]) {
+			maxVal = arr[offset + 4];
 		}
 		return maxVal;
 	}
 
 
 	private void initNeuralNet() {
-		final String setupMode = SimulatorMain.settings.getString("deepql.nn_setup_mode");
+		final SimulatorSettings settings = this.context.getSettings();
+		final String setupMode = settings.getString("deepql.nn_setup_mode");
 		if (setupMode.equalsIgnoreCase("native")) {
 			this.nn = new NeuralNet(new int[] { this.preprocessor.getStateSize(), 1 });
 			this.nn.removeLastLayer();
@@ -342,22 +539,34 @@ public class DQL implements Algorithm {
 			this.nn.addFullyConnectedLayer(5, ActivationFunction.LINEAR_ACTIVATION);
 			final int[] nnLayerSizes = this.nn.getLayerSizes();
 			this.nn.removeNeuronFromLayer(nnLayerSizes.length - 1, nnLayerSizes[nnLayerSizes.length - 1] - 1);
+			this.nn.loadSettings(settings);
 			this.nn.trainingType = this.NN_TRAINING_TYPE;
+			this.nn.trainingThreads = this.TRAINING_THREADS;
 		} else if (setupMode.equalsIgnoreCase("torch")) {
-			String prefix = SimulatorMain.settings.getString("deepql.external_torch_nn.io_file_prefix");
-			this.nn = new ExternalTorchNN(prefix + SimulatorMain.settings.getString("deepql.external_torch_nn.nninput_file_name"),
-					prefix + SimulatorMain.settings.getString("deepql.external_torch_nn.nnoutput_file_name"));
+			String prefix = settings.getString("deepql.external_torch_nn.io_file_prefix");
+			String outFile = prefix + settings.getString("deepql.external_torch_nn.nninput_file_name");
+			String inFile = prefix + settings.getString("deepql.external_torch_nn.nnoutput_file_name");
+			if (settings.getBoolean("robots.two_phase_steps")
+					|| settings.getBoolean("deepql.external_torch_nn.async_transitions")) {
+				// The robots' states are batched on one connection, and their
+				// transitions go through one writer thread
+				this.nn = ExternalTorchNN.getSharedInstance(outFile, inFile, this.context);
+			} else {
+				this.nn = new ExternalTorchNN(outFile, inFile, this.context);
+			}
 			System.out.println("Using Torch neural network...");
 		} else {
 
 			try {
-				Scanner scan = new Scanner(new File(SimulatorMain.settings.getString("neuralnet.loadfile")));
+				Scanner scan = new Scanner(new File(settings.getString("neuralnet.loadfile")));
 				this.nn = new NeuralNet(scan.nextLine());
 				int numLayers = this.nn.getLayerSizes().length;
 				for (int i = 0; i < numLayers - 1; i++) {
 					this.nn.setLayerActivation(i, ActivationFunction.RELU_ACTIVATION);
 				}
 				this.nn.setLayerActivation(this.nn.getLayerSizes().length - 1, ActivationFunction.LINEAR_ACTIVATION);
+				this.nn.loadSettings(settings);
+				this.nn.trainingThreads = this.TRAINING_THREADS;
 				scan.close();
 			} catch (FileNotFoundException e) {
 				System.err.print("Neural net load file not found!");
@@ -368,11 +577,64 @@ public class DQL implements Algorithm {
 	}
 
 
+	/**
+	 * Creates the replay memory and the buffers that states are read into, which
+	 * depend on the state preprocessor. If a replay file is set, transitions are kept
+	 * in it (resuming from any that are already there) instead of on the heap. With
+	 * more than one robot, each robot has a file of its own, named after the replay
+	 * file and the robot's id, since the robots would otherwise overwrite each other's
+	 * transitions.
+	 */
+	private void initReplayMemory() {
+		final int stateSize = this.preprocessor.getStateSize();
+		this.replayMemory = null;
+		if (!this.REPLAY_FILE.isEmpty()) {
+			String replayFile = this.REPLAY_FILE;
+			if (1 < this.context.getSettings().getInt("robots.count")) {
+				replayFile += "." + this.sensor.getRobotId();
+			}
+			try {
+				final MappedReplayMemory mappedMemory = new MappedReplayMemory(new File(replayFile), stateSize,
+						this.HISTORY_MAX, this.REPLAY_FLOAT_STORAGE);
+				System.out.printf("Using replay file %s with %d transitions\n", replayFile, mappedMemory.size());
+				this.replayMemory = mappedMemory;
+
+				// Changes to the mapping already survive the simulator exiting, but
+				// not the machine going down before the OS writes them out
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					@Override
+					public void run() {
+						mappedMemory.flush();
+					}
+				});
+			} catch (IOException e) {
+				System.err.print("Could not open replay file!");
+				System.err.println(" Falling back to in-memory replay. Please check the setting deepql.replay.file");
+				e.printStackTrace();
+			}
+		}
+		if (this.replayMemory == null) {
+			this.replayMemory = new ReplayMemory(stateSize, this.HISTORY_MAX, this.REPLAY_EXTRA_FRAMES_FRACTION,
+					this.REPLAY_FLOAT_STORAGE);
+		}
+		this.prioritizedReplay = null;
+		if (this.REPLAY_PRIORITIZED) {
+			this.prioritizedReplay = new PrioritizedReplay(this.replayMemory, this.REPLAY_PRIORITY_ALPHA,
+					this.REPLAY_PRIORITY_BETA_START, this.REPLAY_PRIORITY_BETA_BATCHES, this.REPLAY_PRIORITY_EPSILON);
+			this.replayMemory = this.prioritizedReplay;
+		}
+		this.stateBuffer = new double[stateSize];
+		this.nextStateBuffer = new double[stateSize];
+		this.sampleInput = new double[stateSize];
+		this.sampleNextInput = new double[stateSize];
+	}
+
+
 	/**
 	 * Registers commands for this class to the main console controller.
 	 */
 	private void registerCustomCommands() {
-		SimulatorMain.controller.registerCommand(":dql_get", new TerminalCommand() {
+		this.context.registerCommand(":dql_get", new TerminalCommand() {
 			@Override
 			public void execute(String[] args) {
 				if (args.length < 1) {
@@ -403,7 +665,7 @@ public class DQL implements Algorithm {
 		this.actuator.reloadSettings();
 		this.sensor.reloadSettings();
 
-		final SimulatorSettings settings = SimulatorMain.settings;
+		final SimulatorSettings settings = this.context.getSettings();
 
 		this.DISCOUNT_FACTOR = settings.getDouble("deepql.discountfactor");
 		this.GREEDY_EPSILON_DECREMENT = settings.getDouble("deepql.greedy_epsilon_decrement");
@@ -420,7 +682,16 @@ public class DQL implements Algorithm {
 		this.PRINT_Q_VALUES = settings.getBoolean("deepql.display.print_q_values");
 		this.HIDDEN_LAYER_SIZE = settings.getInt("neuralnet.hidden_layer_size");
 		this.HISTORY_MAX = settings.getInt("deepql.history_max");
+		this.REPLAY_FLOAT_STORAGE = settings.getBoolean("deepql.replay.float_storage");
+		this.REPLAY_EXTRA_FRAMES_FRACTION = settings.getDouble("deepql.replay.extra_frames_fraction");
+		this.REPLAY_FILE = settings.getString("deepql.replay.file");
+		this.REPLAY_PRIORITIZED = settings.getBoolean("deepql.replay.prioritized");
+		this.REPLAY_PRIORITY_ALPHA = settings.getDouble("deepql.replay.priority.alpha");
+		this.REPLAY_PRIORITY_BETA_START = settings.getDouble("deepql.replay.priority.beta_start");
+		this.REPLAY_PRIORITY_BETA_BATCHES = settings.getInt("deepql.replay.priority.beta_annealing_minibatches");
+		this.REPLAY_PRIORITY_EPSILON = settings.getDouble("deepql.replay.priority.epsilon");
 		this.NUM_HIDDEN_LAYERS = settings.getInt("neuralnet.num_hidden_layers");
+		this.TRAINING_THREADS = settings.getInt("neuralnet.training_threads");
 		this.USING_EXTERNAL_QLEARNER = settings.getString("deepql.nn_setup_mode").equalsIgnoreCase("torch")
 				&& settings.getBoolean("deepql.use_external_qlearner");
 		this.LOSS_SAMPLING_INTERVAL = settings.getInt("logging.deepql.loss_sampling_interval");
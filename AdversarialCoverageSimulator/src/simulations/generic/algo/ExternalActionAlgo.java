@@ -0,0 +1,101 @@
+package simulations.generic.algo;
+
+import adsim.Algorithm;
+import deeplearning.DQLActuator;
+import deeplearning.DQLStatePreprocessor;
+import gridenv.GridSensor;
+
+/**
+ * An algorithm that doesn't choose actions itself, but takes whatever action it was
+ * last given. It is used when the learner lives outside the simulation (as with
+ * {@link simulations.generic.VectorizedCoverageEnv}), so the caller can read the state
+ * and reward through this algorithm and decide what the robot does next.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class ExternalActionAlgo implements Algorithm {
+	private final GridSensor sensor;
+	private final DQLActuator actuator;
+	private DQLStatePreprocessor preprocessor;
+	private double[] stateBuffer = null;
+	private int nextAction = 0;
+
+
+	public ExternalActionAlgo(GridSensor sensor, DQLActuator actuator, DQLStatePreprocessor preprocessor) {
+		this.sensor = sensor;
+		this.actuator = actuator;
+		this.preprocessor = preprocessor;
+	}
+
+
+	@Override
+	public void init() {
+		this.stateBuffer = new double[this.preprocessor.getStateSize()];
+	}
+
+
+	@Override
+	public void step() {
+		this.actuator.takeActionById(this.nextAction);
+	}
+
+
+	/**
+	 * Sets the action to take on the next step
+	 *
+	 * @param actionId
+	 *                the id of the action, as given to
+	 *                {@link adsim.Actuator#takeActionById(int)}
+	 */
+	public void setNextAction(int actionId) {
+		this.nextAction = actionId;
+	}
+
+
+	/**
+	 * Gets the reward received for the last action taken
+	 */
+	public double getLastReward() {
+		return this.actuator.getLastReward();
+	}
+
+
+	/**
+	 * Writes the current preprocessed state into part of a larger buffer
+	 *
+	 * @param dest
+	 *                the buffer to write to
+	 * @param offset
+	 *                the position in the buffer to start the state at
+	 */
+	public void writeState(double[] dest, int offset) {
+		if (this.stateBuffer == null || this.stateBuffer.length != this.preprocessor.getStateSize()) {
+			this.stateBuffer = new double[this.preprocessor.getStateSize()];
+		}
+		this.stateBuffer = this.preprocessor.getPreprocessedState(this.stateBuffer);
+		System.arraycopy(this.stateBuffer, 0, dest, offset, this.stateBuffer.length);
+	}
+
+
+	public int getStateSize() {
+		return this.preprocessor.getStateSize();
+	}
+
+
+	public int getNumActions() {
+		return this.actuator.getNumActions();
+	}
+
+
+	public void setStatePreprocessor(DQLStatePreprocessor preprocessor) {
+		this.preprocessor = preprocessor;
+	}
+
+
+	@Override
+	public void reloadSettings() {
+		this.actuator.reloadSettings();
+		this.sensor.reloadSettings();
+	}
+}
@@ -1,7 +1,7 @@
 package simulations.generic.algo;
 
 import adsim.Algorithm;
-import adsim.SimulatorMain;
+import adsim.SimulatorSettings;
 import deeplearning.DQLActuator;
 import deeplearning.DQLStatePreprocessor;
 import deeplearning.ExternalTorchNN;
@@ -14,7 +14,8 @@ public class ExternalDQL implements Algorithm {
 	private DQLActuator actuator;
 	private Algorithm realCoverageAlgo;
 	private ExternalTorchNN nn = null;
-	private boolean ALLOW_PARTIAL_TRANSITIONS = SimulatorMain.settings.getBoolean("neuralnet.torch.use_partial_transitions");
+	private final SimulatorSettings settings;
+	private boolean ALLOW_PARTIAL_TRANSITIONS;
 	private DQLStatePreprocessor preprocessor;
 	private StateTransition transition = new StateTransition();
 
@@ -40,6 +41,8 @@ public class ExternalDQL implements Algorithm {
 	public ExternalDQL(GridSensor sensor, DQLActuator actuator, Algorithm realCoverageAlgo) {
 		this.sensor = sensor;
 		this.actuator = actuator;
+		this.settings = sensor.getContext().getSettings();
+		this.ALLOW_PARTIAL_TRANSITIONS = this.settings.getBoolean("neuralnet.torch.use_partial_transitions");
 		this.preprocessor = new CoverageStatePreprocessor(this.sensor);
 		this.realCoverageAlgo = realCoverageAlgo;
 	}
@@ -51,7 +54,7 @@ public class ExternalDQL implements Algorithm {
 		this.sensor.reloadSettings();
 		this.realCoverageAlgo.reloadSettings();
 
-		this.ALLOW_PARTIAL_TRANSITIONS = SimulatorMain.settings.getBoolean("neuralnet.torch.use_partial_transitions");
+		this.ALLOW_PARTIAL_TRANSITIONS = this.settings.getBoolean("neuralnet.torch.use_partial_transitions");
 	}
 
 
@@ -59,9 +62,20 @@ public class ExternalDQL implements Algorithm {
 	public void init() {
 		this.transition.nnInput = new double[this.preprocessor.getStateSize()];
 		this.transition.nextInput = new double[this.preprocessor.getStateSize()];
-		String prefix = SimulatorMain.settings.getString("deepql.external_torch_nn.io_file_prefix");
-		this.nn = new ExternalTorchNN(prefix + SimulatorMain.settings.getString("deepql.external_torch_nn.nninput_file_name"),
-				prefix + SimulatorMain.settings.getString("deepql.external_torch_nn.nnoutput_file_name"));
+		if (this.nn == null) {
+			// The same connection is kept for every run, so transitions still being
+			// sent from the last run can't be mixed up with the ones from this run
+			String prefix = this.settings.getString("deepql.external_torch_nn.io_file_prefix");
+			String outFile = prefix + this.settings.getString("deepql.external_torch_nn.nninput_file_name");
+			String inFile = prefix + this.settings.getString("deepql.external_torch_nn.nnoutput_file_name");
+			if (this.settings.getBoolean("deepql.external_torch_nn.async_transitions")) {
+				// Every robot's transitions have to go through the same writer
+				// thread, or their frames could be interleaved on the pipe
+				this.nn = ExternalTorchNN.getSharedInstance(outFile, inFile, this.sensor.getContext());
+			} else {
+				this.nn = new ExternalTorchNN(outFile, inFile, this.sensor.getContext());
+			}
+		}
 		this.realCoverageAlgo.init();
 	}
 
@@ -32,7 +32,7 @@ public class RandomActionAlgo implements Algorithm {
 
 	@Override
 	public void step() {
-		int direction = (int) (Math.random() * this.actuator.getNumActions());
+		int direction = this.sensor.getRandom().nextInt(this.actuator.getNumActions());
 		this.actuator.takeActionById(direction);
 		this.stepNum++;
 	}
@@ -0,0 +1,486 @@
+package simulations.pathplan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import gridenv.GridStore;
+
+/**
+ * Spreads and decays the danger of a path planning grid by one step. Each cell's new
+ * danger is gathered from its own danger and fuel and the danger spread by its four
+ * neighbors, in a single sweep over the flat arrays of the grid store. The new levels
+ * are written to a second buffer, which is then swapped into the store, so every cell
+ * sees the levels from before the step.
+ * <p>
+ * The contributions to each cell are added in the order that the old scatter loop
+ * added them (the left neighbor, the one below, the cell itself, the one above, then
+ * the right neighbor), so the results are exactly the same.
+ * <p>
+ * Grids with at least a given number of cells are swept by several threads, each with
+ * its own band of columns (columns are contiguous in the store). Since every cell only
+ * reads the old danger levels and only writes its own danger and fuel, the bands don't
+ * need to share anything at their edges, and the results don't depend on the number
+ * of threads.
+ * <p>
+ * A cell with no danger only changes if one of its neighbors has danger (its fuel
+ * can't burn without danger), so when few cells have danger, only those cells and
+ * their neighbors are updated. Full sweeps count the cells they leave with danger, and
+ * the cells with danger are only searched for when that count drops low enough for the
+ * next step to be sparse, or when the danger levels are changed from outside (see
+ * {@link GridStore#getDangerVersion()}). After that, they are found as a side effect of
+ * each sparse update.
+ * The cells that aren't updated already have the same level in both buffers, except
+ * for the ones updated on the previous step, which are copied.
+ * <p>
+ * Each step records the largest change to any cell's danger or fuel. Once a step
+ * changes nothing by more than the steady state tolerance (by default, changes nothing
+ * at all), the levels have settled, and later steps are skipped until the store's
+ * danger levels, fuel, or spreadability are changed from outside or the factors of
+ * the step change.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+class DangerDiffusionKernel {
+	private static final Map<Integer, ForkJoinPool> sweepPools = new HashMap<>();
+
+	/**
+	 * Only the cells near danger are updated when fewer than one in this many cells
+	 * have danger
+	 */
+	private static final int SPARSE_CELL_RATIO = 16;
+
+	private double[] nextDanger = null;
+	private int parallelThreshold = Integer.MAX_VALUE;
+	private int nThreads = 1;
+	private double steadyTolerance = 0.0;
+	private boolean steady = false;
+	private double lastMaxChange = 0.0;
+
+	// The number of cells with danger, which is valid for the store and danger version
+	// it was found with, if dangerCountValid is set
+	private int numDangerCells = 0;
+	private boolean dangerCountValid = false;
+	// The cells with danger, and the cells that were updated on the last sparse step.
+	// They are only valid if sparseStateValid is set.
+	private int[] dangerCells = null;
+	private int[] updatedCells = null;
+	private int numUpdatedCells = 0;
+	private int[] prevUpdatedCells = null;
+	private int numPrevUpdatedCells = 0;
+	private int[] updateMarks = null;
+	private int updateMark = 0;
+	private boolean sparseStateValid = false;
+	private GridStore lastStore = null;
+	private int lastDangerVersion = 0;
+	/**
+	 * The number of cells left with danger by each band of the last full sweep
+	 */
+	private int[] bandDangerCounts = new int[1];
+
+	private double[] danger;
+	private double[] fuel;
+	private double[] spreadability;
+	private int width;
+	private int height;
+	private double spreadFactor;
+	private double decayFactor;
+	private double cap;
+
+
+	/**
+	 * Updates the danger and fuel of every cell in the store
+	 *
+	 * @param store
+	 *                the grid to update
+	 * @param spreadFactor
+	 *                the fraction of a cell's danger (times its spreadability) that
+	 *                spreads to each neighbor
+	 * @param decayFactor
+	 *                the fraction of a cell's danger that burns fuel, or decays if the
+	 *                cell has no fuel
+	 * @param cap
+	 *                the highest danger a cell can have
+	 */
+	public void step(GridStore store, double spreadFactor, double decayFactor, double cap) {
+		if (this.steady && store == this.lastStore && store.getDangerVersion() == this.lastDangerVersion && spreadFactor == this.spreadFactor
+				&& decayFactor == this.decayFactor && cap == this.cap) {
+			return;
+		}
+
+		this.danger = store.getDangerArray();
+		this.fuel = store.getFuelArray();
+		this.spreadability = store.getSpreadabilityArray();
+		this.width = store.getWidth();
+		this.height = store.getHeight();
+		this.spreadFactor = spreadFactor;
+		this.decayFactor = decayFactor;
+		this.cap = cap;
+		final int nCells = this.danger.length;
+		boolean resized = (this.nextDanger == null || this.nextDanger.length != nCells);
+		if (resized) {
+			this.nextDanger = new double[nCells];
+		}
+
+		if (resized || store != this.lastStore || store.getDangerVersion() != this.lastDangerVersion) {
+			this.dangerCountValid = false;
+			this.sparseStateValid = false;
+		}
+		// The cells with danger are only searched for if the count isn't known, or if
+		// this step will be sparse and they haven't been found yet
+		if (!this.dangerCountValid || (!this.sparseStateValid && this.numDangerCells < nCells / SPARSE_CELL_RATIO)) {
+			this.findDangerCells();
+		}
+
+		double maxChange;
+		if (this.numDangerCells < nCells / SPARSE_CELL_RATIO) {
+			maxChange = this.updateDangerRegion();
+			this.nextDanger = store.swapDangerArray(this.nextDanger);
+			this.sparseStateValid = true;
+		} else {
+			if (1 < this.nThreads && this.parallelThreshold <= nCells && 1 < this.width) {
+				maxChange = this.sweepColumnsInParallel();
+			} else {
+				Arrays.fill(this.bandDangerCounts, 0);
+				maxChange = this.sweepColumns(0, this.width, 0);
+			}
+			this.nextDanger = store.swapDangerArray(this.nextDanger);
+			this.sparseStateValid = false;
+
+			int numDangerCells = 0;
+			for (int count : this.bandDangerCounts) {
+				numDangerCells += count;
+			}
+			this.numDangerCells = numDangerCells;
+		}
+		this.dangerCountValid = true;
+		this.lastStore = store;
+		this.lastDangerVersion = store.getDangerVersion();
+		this.lastMaxChange = maxChange;
+		this.steady = (maxChange <= this.steadyTolerance);
+
+		this.danger = null;
+		this.fuel = null;
+		this.spreadability = null;
+	}
+
+
+	/**
+	 * Sets when the grid is swept by several threads
+	 *
+	 * @param parallelThreshold
+	 *                the number of cells a grid must have to be split between threads
+	 * @param nThreads
+	 *                the number of threads to use for large grids
+	 */
+	public void setParallelism(int parallelThreshold, int nThreads) {
+		this.parallelThreshold = parallelThreshold;
+		this.nThreads = nThreads;
+	}
+
+
+	/**
+	 * Sets the largest change to a cell that still counts as settled. Skipping steps
+	 * with a nonzero tolerance leaves out those small changes, so it gives slightly
+	 * different levels than updating every step.
+	 */
+	public void setSteadyTolerance(double steadyTolerance) {
+		this.steadyTolerance = steadyTolerance;
+	}
+
+
+	/**
+	 * Gets the largest change to any cell's danger or fuel on the last step that
+	 * wasn't skipped
+	 */
+	public double getLastMaxChange() {
+		return this.lastMaxChange;
+	}
+
+
+	/**
+	 * Checks if the levels have settled, so steps are being skipped
+	 */
+	public boolean isSteady() {
+		return this.steady;
+	}
+
+
+	/**
+	 * Finds every cell that has danger, and forgets which cells were updated last
+	 */
+	private void findDangerCells() {
+		final double[] danger = this.danger;
+		if (this.dangerCells == null || this.dangerCells.length != danger.length) {
+			this.dangerCells = new int[danger.length];
+			this.updatedCells = new int[danger.length];
+			this.prevUpdatedCells = new int[danger.length];
+			this.updateMarks = new int[danger.length];
+			this.updateMark = 0;
+		}
+
+		int n = 0;
+		for (int i = 0; i < danger.length; i++) {
+			if (danger[i] != 0.0) {
+				this.dangerCells[n++] = i;
+			}
+		}
+		this.numDangerCells = n;
+		this.numUpdatedCells = 0;
+	}
+
+
+	/**
+	 * Updates only the cells with danger and their neighbors, and finds the cells
+	 * that have danger after the update
+	 *
+	 * @return the largest change to any cell
+	 */
+	private double updateDangerRegion() {
+		final int height = this.height;
+		final int nCells = this.danger.length;
+
+		this.updateMark++;
+		if (this.updateMark == 0) {
+			Arrays.fill(this.updateMarks, 0);
+			this.updateMark = 1;
+		}
+
+		int[] swapCells = this.prevUpdatedCells;
+		this.prevUpdatedCells = this.updatedCells;
+		this.numPrevUpdatedCells = (this.sparseStateValid ? this.numUpdatedCells : -1);
+		this.updatedCells = swapCells;
+		this.numUpdatedCells = 0;
+
+		for (int n = 0; n < this.numDangerCells; n++) {
+			int i = this.dangerCells[n];
+			this.markForUpdate(i);
+			if (0 < i % height) {
+				this.markForUpdate(i - 1);
+			}
+			if ((i + 1) % height != 0) {
+				this.markForUpdate(i + 1);
+			}
+			if (height <= i) {
+				this.markForUpdate(i - height);
+			}
+			if (i + height < nCells) {
+				this.markForUpdate(i + height);
+			}
+		}
+
+		// Cells that won't be updated must have the same level in the new buffer
+		if (this.numPrevUpdatedCells < 0) {
+			System.arraycopy(this.danger, 0, this.nextDanger, 0, nCells);
+		} else {
+			for (int n = 0; n < this.numPrevUpdatedCells; n++) {
+				int i = this.prevUpdatedCells[n];
+				if (this.updateMarks[i] != this.updateMark) {
+					this.nextDanger[i] = this.danger[i];
+				}
+			}
+		}
+
+		double maxChange = 0.0;
+		int numDangerCells = 0;
+		for (int n = 0; n < this.numUpdatedCells; n++) {
+			int i = this.updatedCells[n];
+			int x = i / height;
+			maxChange = Math.max(maxChange, this.updateEdgeCell(x, i - x * height));
+			if (this.nextDanger[i] != 0.0) {
+				this.dangerCells[numDangerCells++] = i;
+			}
+		}
+		this.numDangerCells = numDangerCells;
+		return maxChange;
+	}
+
+
+	private void markForUpdate(int i) {
+		if (this.updateMarks[i] != this.updateMark) {
+			this.updateMarks[i] = this.updateMark;
+			this.updatedCells[this.numUpdatedCells++] = i;
+		}
+	}
+
+
+	private double sweepColumnsInParallel() {
+		ForkJoinPool pool = getSweepPool(this.nThreads);
+		final int nBands = Math.min(this.nThreads, this.width);
+		if (this.bandDangerCounts.length != nBands) {
+			this.bandDangerCounts = new int[nBands];
+		}
+		Arrays.fill(this.bandDangerCounts, 0);
+		List<ForkJoinTask<Double>> tasks = new ArrayList<>(nBands);
+		for (int t = 0; t < nBands; t++) {
+			final int band = t;
+			final int start = (int) ((long) this.width * t / nBands);
+			final int end = (int) ((long) this.width * (t + 1) / nBands);
+			tasks.add(pool.submit(new Callable<Double>() {
+				@Override
+				public Double call() {
+					return sweepColumns(start, end, band);
+				}
+			}));
+		}
+		double maxChange = 0.0;
+		for (ForkJoinTask<Double> task : tasks) {
+			maxChange = Math.max(maxChange, task.join());
+		}
+		return maxChange;
+	}
+
+
+	/**
+	 * Updates every cell in a band of columns, and adds the number of cells it leaves
+	 * with danger to the band's count in {@link #bandDangerCounts}
+	 *
+	 * @return the largest change to any cell in the band
+	 */
+	private double sweepColumns(int xStart, int xEnd, int band) {
+		final int height = this.height;
+		final double[] next = this.nextDanger;
+		double maxChange = 0.0;
+		int numDangerCells = 0;
+		for (int x = xStart; x < xEnd; x++) {
+			int columnStart = x * height;
+			if (x == 0 || x == this.width - 1 || height < 3) {
+				for (int y = 0; y < height; y++) {
+					maxChange = Math.max(maxChange, this.updateEdgeCell(x, y));
+					if (next[columnStart + y] != 0.0) {
+						numDangerCells++;
+					}
+				}
+				continue;
+			}
+
+			maxChange = Math.max(maxChange, this.updateEdgeCell(x, 0));
+			maxChange = Math.max(maxChange, this.updateInteriorCells(columnStart + 1, columnStart + height - 1, band));
+			maxChange = Math.max(maxChange, this.updateEdgeCell(x, height - 1));
+			if (next[columnStart] != 0.0) {
+				numDangerCells++;
+			}
+			if (next[columnStart + height - 1] != 0.0) {
+				numDangerCells++;
+			}
+		}
+		this.bandDangerCounts[band] += numDangerCells;
+		return maxChange;
+	}
+
+
+	/**
+	 * Updates a run of cells in one column that all have four neighbors, so none of
+	 * the neighbors need to be checked, and adds the number of them left with danger to
+	 * the band's count in {@link #bandDangerCounts}
+	 *
+	 * @return the largest change to any of the cells
+	 */
+	private double updateInteriorCells(int start, int end, int band) {
+		final double[] danger = this.danger;
+		final double[] fuel = this.fuel;
+		final double[] spreadability = this.spreadability;
+		final double[] next = this.nextDanger;
+		final double spreadFactor = this.spreadFactor;
+		final double decayFactor = this.decayFactor;
+		final int height = this.height;
+
+		double maxChange = 0.0;
+		int numDangerCells = 0;
+		for (int i = start; i < end; i++) {
+			double delta = 0.0;
+			delta += danger[i - height] * spreadability[i - height] * spreadFactor;
+			delta += danger[i - 1] * spreadability[i - 1] * spreadFactor;
+
+			double curDanger = danger[i];
+			double fuelDelta = 0.0;
+			if (0.0 < fuel[i]) {
+				fuelDelta = Math.min(fuel[i], curDanger * decayFactor);
+				fuel[i] -= fuelDelta;
+				delta += fuelDelta;
+			} else {
+				delta -= curDanger * decayFactor;
+			}
+
+			delta += danger[i + 1] * spreadability[i + 1] * spreadFactor;
+			delta += danger[i + height] * spreadability[i + height] * spreadFactor;
+
+			double newDanger = this.clamp(curDanger + delta);
+			next[i] = newDanger;
+			if (newDanger != 0.0) {
+				numDangerCells++;
+			}
+			maxChange = Math.max(maxChange, Math.max(Math.abs(newDanger - curDanger), Math.abs(fuelDelta)));
+		}
+		this.bandDangerCounts[band] += numDangerCells;
+		return maxChange;
+	}
+
+
+	/**
+	 * Updates one cell, checking which of its neighbors are on the grid
+	 *
+	 * @return the change to the cell's danger or fuel, whichever is larger
+	 */
+	private double updateEdgeCell(int x, int y) {
+		final double[] danger = this.danger;
+		final double[] spreadability = this.spreadability;
+		final int height = this.height;
+		final int i = x * height + y;
+
+		double delta = 0.0;
+		if (0 < x) {
+			delta += danger[i - height] * spreadability[i - height] * this.spreadFactor;
+		}
+		if (0 < y) {
+			delta += danger[i - 1] * spreadability[i - 1] * this.spreadFactor;
+		}
+
+		double curDanger = danger[i];
+		double fuelDelta = 0.0;
+		if (0.0 < this.fuel[i]) {
+			fuelDelta = Math.min(this.fuel[i], curDanger * this.decayFactor);
+			this.fuel[i] -= fuelDelta;
+			delta += fuelDelta;
+		} else {
+			delta -= curDanger * this.decayFactor;
+		}
+
+		if ((y + 1) < height) {
+			delta += danger[i + 1] * spreadability[i + 1] * this.spreadFactor;
+		}
+		if ((x + 1) < this.width) {
+			delta += danger[i + height] * spreadability[i + height] * this.spreadFactor;
+		}
+
+		double newDanger = this.clamp(curDanger + delta);
+		this.nextDanger[i] = newDanger;
+		return Math.max(Math.abs(newDanger - curDanger), Math.abs(fuelDelta));
+	}
+
+
+	private double clamp(double newVal) {
+		if (newVal < 0.0) {
+			return 0;
+		} else if (this.cap < newVal) {
+			return this.cap;
+		}
+		return newVal;
+	}
+
+
+	private static synchronized ForkJoinPool getSweepPool(int nThreads) {
+		ForkJoinPool pool = sweepPools.get(nThreads);
+		if (pool == null) {
+			pool = new ForkJoinPool(nThreads);
+			sweepPools.put(nThreads, pool);
+		}
+		return pool;
+	}
+}
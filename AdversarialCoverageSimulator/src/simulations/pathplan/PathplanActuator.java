@@ -1,12 +1,10 @@
 package simulations.pathplan;
 
-import adsim.SimulatorMain;
 import adsim.SimulatorSettings;
 import deeplearning.DQLActuator;
-import gridenv.Coordinate;
 import gridenv.GridEnvironment;
 import gridenv.GridRobot;
-import gridenv.NodeType;
+import gridenv.GridStore;
 
 public class PathplanActuator implements DQLActuator {
 	private PathplanSimulation simulation;
@@ -20,9 +18,10 @@ public class PathplanActuator implements DQLActuator {
 	private GridRobot robot;
 	private double lastReward = 0.0;
 	private int lastActionId = -1;
-	private double REACH_GOAL_REWARD = SimulatorMain.settings.getDouble("pathplan.dql.reward.reach_goal");
-	private double DEATH_REWARD = SimulatorMain.settings.getDouble("pathplan.dql.reward.death");
-	private boolean ROBOTS_BREAKABLE = SimulatorMain.settings.getBoolean("robots.breakable");
+	private final SimulatorSettings settings;
+	private double REACH_GOAL_REWARD;
+	private double DEATH_REWARD;
+	private boolean ROBOTS_BREAKABLE;
 
 
 	/**
@@ -37,12 +36,16 @@ public class PathplanActuator implements DQLActuator {
 		this.env = env;
 		this.robot = robot;
 		this.simulation = covSim;
+		this.settings = env.getContext().getSettings();
+		this.REACH_GOAL_REWARD = this.settings.getDouble("pathplan.dql.reward.reach_goal");
+		this.DEATH_REWARD = this.settings.getDouble("pathplan.dql.reward.death");
+		this.ROBOTS_BREAKABLE = this.settings.getBoolean("robots.breakable");
 		this.registerSettings();
 	}
 
 
 	private void registerSettings() {
-		SimulatorSettings settings = SimulatorMain.settings;
+		SimulatorSettings settings = this.settings;
 		String settingName = "";
 
 		settingName = "pathplan.dql.reward.reach_goal";
@@ -61,8 +64,7 @@ public class PathplanActuator implements DQLActuator {
 	 * Move the robot 1 cell to the right on the grid
 	 */
 	public void moveRight() {
-		Coordinate newLoc = new Coordinate(this.robot.getLocation().x + 1, this.robot.getLocation().y);
-		moveTo(newLoc);
+		this.moveBy(1, 0);
 		this.lastActionId = 0;
 	}
 
@@ -71,8 +73,7 @@ public class PathplanActuator implements DQLActuator {
 	 * Move the robot 1 cell to the left on the grid
 	 */
 	public void moveLeft() {
-		Coordinate newLoc = new Coordinate(this.robot.getLocation().x - 1, this.robot.getLocation().y);
-		moveTo(newLoc);
+		this.moveBy(-1, 0);
 		this.lastActionId = 2;
 	}
 
@@ -81,8 +82,7 @@ public class PathplanActuator implements DQLActuator {
 	 * Move the robot 1 cell upward (North) on the grid
 	 */
 	public void moveUp() {
-		Coordinate newLoc = new Coordinate(this.robot.getLocation().x, this.robot.getLocation().y + 1);
-		moveTo(newLoc);
+		this.moveBy(0, 1);
 		this.lastActionId = 1;
 	}
 
@@ -91,22 +91,26 @@ public class PathplanActuator implements DQLActuator {
 	 * Move the robot 1 cell downward (South) on the grid
 	 */
 	public void moveDown() {
-		Coordinate newLoc = new Coordinate(this.robot.getLocation().x, this.robot.getLocation().y - 1);
-		moveTo(newLoc);
+		this.moveBy(0, -1);
 		this.lastActionId = 3;
 	}
 
 
-	private void moveTo(Coordinate newLoc) {
+	/**
+	 * Moves the robot by the given offsets, if the cell there can be entered, and
+	 * covers the cell it ends up on
+	 */
+	private void moveBy(int dx, int dy) {
 		this.lastReward = 0.0;
 		if (this.robot.isBroken()) {
 			return;
 		}
 
 		// Move, if possible
-		if (this.env.isOnGrid(newLoc.x, newLoc.y) && this.env.getGridNode(newLoc.x, newLoc.y).getNodeType() != NodeType.OBSTACLE
-				&& this.env.getRobotsByLocation(newLoc.x, newLoc.y).size() == 0) {
-			this.robot.setLocation(newLoc.x, newLoc.y);
+		int newX = this.robot.getLocation().x + dx;
+		int newY = this.robot.getLocation().y + dy;
+		if (this.env.isOnGrid(newX, newY) && this.env.isPassable(newX, newY)) {
+			this.robot.setLocation(newX, newY);
 		}
 
 		this.processCoveringCurrentNode();
@@ -123,16 +127,17 @@ public class PathplanActuator implements DQLActuator {
 
 
 	private void processCoveringCurrentNode() {
-		double rand = Math.random();
-		boolean isThreat = rand < this.env.getGridNode(this.robot.getLocation().x, this.robot.getLocation().y).getDangerProb()
-				&& this.ROBOTS_BREAKABLE;
+		final GridStore store = this.env.getGridStore();
+		final int cell = store.indexOf(this.robot.getLocation().x, this.robot.getLocation().y);
+		double rand = this.env.getRandom().nextDouble();
+		boolean isThreat = rand < store.getDanger(cell) && this.ROBOTS_BREAKABLE;
 
 		this.lastReward = this.calcMoveReward(isThreat);
 
-		SimulatorMain.getStats().updateCellCovered(this.robot);
-		this.env.getGridNode(this.robot.getLocation().x, this.robot.getLocation().y).incrementCoverCount();
+		this.env.getContext().getStats().updateCellCovered(this.robot);
+		store.incrementCoverCount(cell);
 		if (isThreat) {
-			this.env.getRobotById(this.robot.getId()).setBroken(true);
+			this.robot.setBroken(true);
 		}
 	}
 
@@ -196,9 +201,9 @@ public class PathplanActuator implements DQLActuator {
 
 	@Override
 	public void reloadSettings() {
-		this.REACH_GOAL_REWARD = SimulatorMain.settings.getDouble("deepql.reward.cover_again");
-		this.DEATH_REWARD = SimulatorMain.settings.getDouble("deepql.reward.death");
-		this.ROBOTS_BREAKABLE = SimulatorMain.settings.getBoolean("robots.breakable");
+		this.REACH_GOAL_REWARD = this.settings.getDouble("deepql.reward.cover_again");
+		this.DEATH_REWARD = this.settings.getDouble("deepql.reward.death");
+		this.ROBOTS_BREAKABLE = this.settings.getBoolean("robots.breakable");
 	}
 
 
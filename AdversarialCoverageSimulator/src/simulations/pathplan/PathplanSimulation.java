@@ -7,10 +7,10 @@ import java.util.List;
 import java.util.Random;
 
 import adsim.Algorithm;
-import adsim.ConsoleController;
 import adsim.Display;
 import adsim.SettingsReloadable;
 import adsim.Simulation;
+import adsim.SimulationContext;
 import adsim.SimulatorEngine;
 import adsim.SimulatorMain;
 import adsim.SimulatorSettings;
@@ -18,25 +18,27 @@ import adsim.TerminalCommand;
 import adsim.stats.SampledVariableLong;
 import gridenv.Coordinate;
 import gridenv.GridEnvironment;
-import gridenv.GridNode;
 import gridenv.GridNodeGenerator;
 import gridenv.GridRobot;
 import gridenv.GridSensor;
+import gridenv.GridStore;
 import gridenv.NodeType;
 import simulations.coverage.CoverageStats;
 import simulations.generic.algo.DQL;
+import simulations.generic.algo.ExternalActionAlgo;
 import simulations.generic.algo.ExternalDQL;
 import simulations.generic.algo.RandomActionAlgo;
 import simulations.pathplan.display.PathplanGUIDisplay;
 
 public class PathplanSimulation implements Simulation, SettingsReloadable {
 
-	private double[][] dangerDeltas = null;
+	private final DangerDiffusionKernel dangerKernel = new DangerDiffusionKernel();
 	private GridEnvironment env = null;
 	private SimulatorEngine engine = null;
 	private Coordinate goalPos = new Coordinate();
-	private Random random = new Random();
-	private GridNodeGenerator nodegen = new GridNodeGenerator();
+	private final SimulationContext context;
+	private final Random random;
+	private final GridNodeGenerator nodegen;
 	private int MAX_STEPS_PER_RUN;
 	private boolean VARIABLE_GRID_SIZE;
 	private boolean FORCE_SQUARE;
@@ -53,8 +55,29 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 	private SampledVariableLong batch_manhattanDist = new SampledVariableLong();
 
 
+	/**
+	 * Constructs a simulation that uses the global settings and console
+	 */
 	public PathplanSimulation() {
+		this(SimulationContext.createDefault());
+	}
+
 
+	/**
+	 * Constructs a simulation with the given context
+	 * 
+	 * @param context
+	 *                the context for the simulation
+	 */
+	public PathplanSimulation(SimulationContext context) {
+		this.context = context;
+		this.random = context.getRandom();
+		this.nodegen = new GridNodeGenerator(this.random.nextLong());
+
+		// Also done in init(), but simulations run without an engine are never
+		// initialized
+		this.registerDefaultSettings();
+		this.reloadSettings();
 	}
 
 
@@ -62,7 +85,7 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 		GridSensor sensor = new GridSensor(this.env, robot);
 		PathplanActuator actuator = new PathplanActuator(this.env, robot, this);
 
-		String coverageAlgoName = SimulatorMain.settings.getString("adsim.algorithm_name");
+		String coverageAlgoName = this.context.getSettings().getString("adsim.algorithm_name");
 		String metaCoverageAlgoName = "";
 
 		Algorithm algo = null;
@@ -77,6 +100,8 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 			((DQL) algo).setStatePreprocessor(new PathplanStatePreprocessor(sensor, this));
 		} else if (coverageAlgoName.equalsIgnoreCase("Random")) {
 			algo = new RandomActionAlgo(sensor, actuator);
+		} else if (coverageAlgoName.equalsIgnoreCase("ExternalAction")) {
+			algo = new ExternalActionAlgo(sensor, actuator, new PathplanStatePreprocessor(sensor, this));
 		} else {
 			algo = new DQL(sensor, actuator);
 			((DQL) algo).setStatePreprocessor(new PathplanStatePreprocessor(sensor, this));
@@ -109,7 +134,7 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 
 
 	private void registerDefaultSettings() {
-		SimulatorSettings settings = SimulatorMain.settings;
+		SimulatorSettings settings = this.context.getSettings();
 		String settingName = "pathplan.env.danger_decay_factor";
 		if (!settings.hasProperty(settingName)) {
 			settings.setDouble(settingName, 0.1);
@@ -125,6 +150,21 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 			settings.setDouble(settingName, 0.25);
 		}
 
+		settingName = "pathplan.env.danger_parallel_threshold";
+		if (!settings.hasProperty(settingName)) {
+			settings.setInt(settingName, 512 * 512);
+		}
+
+		settingName = "pathplan.env.danger_threads";
+		if (!settings.hasProperty(settingName)) {
+			settings.setInt(settingName, Runtime.getRuntime().availableProcessors());
+		}
+
+		settingName = "pathplan.env.danger_steady_tolerance";
+		if (!settings.hasProperty(settingName)) {
+			settings.setDouble(settingName, 0.0);
+		}
+
 		settingName = "pathplan.env.clear_obstacles_adjacent_to_goal";
 		if (!settings.hasProperty(settingName)) {
 			settings.setBoolean(settingName, true);
@@ -133,8 +173,7 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 
 
 	private void registerConsoleCommands() {
-		final ConsoleController controller = SimulatorMain.controller;
-		controller.registerCommand(":setdisplay", new TerminalCommand() {
+		this.context.registerCommand(":setdisplay", new TerminalCommand() {
 			@Override
 			public void execute(String[] args) {
 				if (args.length < 1) {
@@ -156,7 +195,7 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 		});
 
 
-		controller.registerCommand(":restart", new TerminalCommand() {
+		this.context.registerCommand(":restart", new TerminalCommand() {
 			@Override
 			public void execute(String[] args) {
 				PathplanSimulation.this.restartSimulation();
@@ -164,7 +203,7 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 		});
 
 
-		controller.registerCommand(":set_goal_pos", new TerminalCommand() {
+		this.context.registerCommand(":set_goal_pos", new TerminalCommand() {
 			@Override
 			public void execute(String[] args) {
 				if (args.length < 2) {
@@ -188,7 +227,7 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 	private void resetGoal() {
 		this.goalPos.x = this.random.nextInt(this.env.getWidth());
 		this.goalPos.y = this.random.nextInt(this.env.getHeight());
-		if (SimulatorMain.settings.getBoolean("pathplan.env.clear_obstacles_adjacent_to_goal")) {
+		if (this.context.getSettings().getBoolean("pathplan.env.clear_obstacles_adjacent_to_goal")) {
 			this.env.clear4AdjactentCells(this.goalPos.x, this.goalPos.y);
 			this.env.getGridNode(this.goalPos.x, this.goalPos.y).setNodeType(NodeType.FREE);
 		}
@@ -208,13 +247,7 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 			return false;
 		}
 
-		for (GridRobot r : this.env.robots) {
-			if (this.goalPos.equals(r.getLocation())) {
-				return true;
-			}
-		}
-
-		return false;
+		return this.env.isOnGrid(this.goalPos.x, this.goalPos.y) && 0 < this.env.getNumRobotsAt(this.goalPos.x, this.goalPos.y);
 	}
 
 
@@ -234,7 +267,7 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 
 	@Override
 	public void onRunEnd() {
-		CoverageStats stats = SimulatorMain.getStats();
+		CoverageStats stats = this.context.getStats();
 		if (this.isTerminalState() && stats != null) {
 			int minManhattanDistance = calcMinManhattanGoalDist();
 			this.batch_manhattanDist.addSample(minManhattanDistance);
@@ -250,19 +283,28 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 			}
 		}
 
-		if (SimulatorMain.settings.getBoolean("autorun.finished.newgrid")) {
-			for (GridRobot r : this.env.getRobotList()) {
-				r.setBroken(false);
-			}
-
-			this.regenerateGrid();
-			this.env.init();
+		if (this.context.getSettings().getBoolean("autorun.finished.newgrid")) {
+			this.startNewGrid();
 		} else {
 			this.engine.pauseSimulation();
 		}
 	}
 
 
+	/**
+	 * Repairs the robots and puts them on a newly generated grid, with a new goal,
+	 * ready for the next run
+	 */
+	public void startNewGrid() {
+		for (GridRobot r : this.env.getRobotList()) {
+			r.setBroken(false);
+		}
+
+		this.regenerateGrid();
+		this.env.init();
+	}
+
+
 	private int calcMinManhattanGoalDist() {
 		int minManhattanDistance = Integer.MAX_VALUE;
 		for (GridRobot r : this.env.robots) {
@@ -277,12 +319,12 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 
 
 	private boolean isBatchEnd() {
-		return (SimulatorMain.settings.getInt("stats.multirun.batch_size") <= SimulatorMain.getStats().getRunsInCurrentBatch());
+		return (this.context.getSettings().getInt("stats.multirun.batch_size") <= this.context.getStats().getRunsInCurrentBatch());
 	}
 
 
 	private void onBatchEnd() {
-		final CoverageStats stats = SimulatorMain.getStats();
+		final CoverageStats stats = this.context.getStats();
 		final SampledVariableLong stepsPerRunInfo = stats.getBatchStepsPerRunInfo();
 		System.out.printf("Batch end (size=%d): steps=%.1f (%.1f), minMdst=%.1f (%.1f), success=%d (%.1f%%)\n", stats.getRunsInCurrentBatch(),
 				stepsPerRunInfo.mean(), stepsPerRunInfo.stddev(), this.batch_manhattanDist.mean(), this.batch_manhattanDist.stddev(),
@@ -292,7 +334,7 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 
 
 	private void resetAllBatchStats() {
-		SimulatorMain.getStats().resetBatchStats();
+		this.context.getStats().resetBatchStats();
 		this.batch_goalReached.reset();
 		this.batch_manhattanDist.reset();
 	}
@@ -306,53 +348,7 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 
 
 	private void updateGridStep() {
-		GridNode[][] envgrid = this.env.grid;
-		int gridWidth = this.env.getWidth();
-		int gridHeight = this.env.getHeight();
-		for (int x = 0; x < gridWidth; x++) {
-			for (int y = 0; y < gridHeight; y++) {
-				this.dangerDeltas[x][y] = 0.0;
-			}
-		}
-
-		for (int x = 0; x < gridWidth; x++) {
-			for (int y = 0; y < gridHeight; y++) {
-				double curDanger = envgrid[x][y].getDangerProb();
-				double dangerSpread = curDanger * envgrid[x][y].spreadability * this.DANGER_SPREAD_FACTOR;
-				if (0.0 < envgrid[x][y].dangerFuel) {
-					double fuelDelta = Math.min(envgrid[x][y].dangerFuel, curDanger * this.DANGER_DECAY_FACTOR);
-					envgrid[x][y].dangerFuel -= fuelDelta;
-					this.dangerDeltas[x][y] += fuelDelta;
-				} else {
-					this.dangerDeltas[x][y] -= curDanger * this.DANGER_DECAY_FACTOR;
-				}
-
-				if ((x + 1) < gridWidth) {
-					this.dangerDeltas[x + 1][y] += dangerSpread;
-				}
-				if (0 < x) {
-					this.dangerDeltas[x - 1][y] += dangerSpread;
-				}
-				if ((y + 1) < gridHeight) {
-					this.dangerDeltas[x][y + 1] += dangerSpread;
-				}
-				if (0 < y) {
-					this.dangerDeltas[x][y - 1] += dangerSpread;
-				}
-			}
-		}
-
-		for (int x = 0; x < gridWidth; x++) {
-			for (int y = 0; y < gridHeight; y++) {
-				double newVal = envgrid[x][y].getDangerProb() + this.dangerDeltas[x][y];
-				if (newVal < 0.0) {
-					newVal = 0;
-				} else if (this.DANGER_CAP < newVal) {
-					newVal = this.DANGER_CAP;
-				}
-				envgrid[x][y].setDangerProb(newVal);
-			}
-		}
+		this.dangerKernel.step(this.env.getGridStore(), this.DANGER_SPREAD_FACTOR, this.DANGER_DECAY_FACTOR, this.DANGER_CAP);
 	}
 
 
@@ -374,11 +370,7 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 
 
 	private void reinitializeSimulation() {
-		for (int x = 0; x < this.env.getWidth(); x++) {
-			for (int y = 0; y < this.env.getHeight(); y++) {
-				this.env.getGridNode(x, y).setCoverCount(0);
-			}
-		}
+		this.env.getGridStore().fillCoverCount(0);
 		this.env.init();
 	}
 
@@ -394,7 +386,7 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 			}
 		}
 
-		final SimulatorSettings settings = SimulatorMain.settings;
+		final SimulatorSettings settings = this.context.getSettings();
 
 		this.MAX_STEPS_PER_RUN = settings.getInt("autorun.max_steps_per_run");
 		this.VARIABLE_GRID_SIZE = settings.getBoolean("env.variable_grid_size");
@@ -406,6 +398,8 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 		this.DANGER_DECAY_FACTOR = settings.getDouble("pathplan.env.danger_decay_factor");
 		this.DANGER_SPREAD_FACTOR = settings.getDouble("pathplan.env.danger_spread_factor");
 		this.DANGER_CAP = settings.getDouble("pathplan.env.danger_cap");
+		this.dangerKernel.setParallelism(settings.getInt("pathplan.env.danger_parallel_threshold"), settings.getInt("pathplan.env.danger_threads"));
+		this.dangerKernel.setSteadyTolerance(settings.getDouble("pathplan.env.danger_steady_tolerance"));
 	}
 
 
@@ -413,20 +407,22 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 	 * Sets up the environment using the settings
 	 */
 	private void resetEnvironment() {
-		this.env = new GridEnvironment(
-				new Dimension(SimulatorMain.settings.getInt("env.grid.width"), SimulatorMain.settings.getInt("env.grid.height")));
-		this.dangerDeltas = new double[SimulatorMain.settings.getInt("env.grid.width")][SimulatorMain.settings.getInt("env.grid.height")];
+		final SimulatorSettings settings = this.context.getSettings();
+		this.env = new GridEnvironment(new Dimension(settings.getInt("env.grid.width"), settings.getInt("env.grid.height")), this.context);
+		this.env.setSimulation(this);
+
 		// Set up the coverage environment
 		this.regenerateGrid();
 
 		// Set up the robots
-		for (int i = 0; i < SimulatorMain.settings.getInt("robots.count"); i++) {
-			GridRobot robot = new GridRobot(i, (int) (Math.random() * this.env.getWidth()), (int) (Math.random() * this.env.getHeight()));
+		for (int i = 0; i < settings.getInt("robots.count"); i++) {
+			GridRobot robot = new GridRobot(i, (int) (this.random.nextDouble() * this.env.getWidth()),
+					(int) (this.random.nextDouble() * this.env.getHeight()));
 			robot.coverAlgo = this.createNewCoverageAlgoInstance(robot);
 			this.env.addRobot(robot);
 		}
-		SimulatorMain.setStats(new CoverageStats(this.env, this.env.getRobotList()));
-		SimulatorMain.getStats().resetBatchStats();
+		this.context.setStats(new CoverageStats(this.env, this.env.getRobotList()));
+		this.context.getStats().resetBatchStats();
 
 		this.env.init();
 	}
@@ -443,7 +439,7 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 			this.env.setSize(new Dimension(newWidth, newHeight));
 		}
 
-		String dangerValStr = SimulatorMain.settings.getString("env.grid.dangervalues");
+		String dangerValStr = this.context.getSettings().getString("env.grid.dangervalues");
 
 		// To save time, only recompile the generator if the string has changed
 		if (!this.nodegen.getGeneratorString().equals(dangerValStr)) {
@@ -469,6 +465,13 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 	@Override
 	public void setEngine(SimulatorEngine engine) {
 		this.engine = engine;
+		this.context.setEngine(engine);
+	}
+
+
+	@Override
+	public SimulationContext getContext() {
+		return this.context;
 	}
 
 
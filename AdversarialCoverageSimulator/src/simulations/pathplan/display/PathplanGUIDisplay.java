@@ -268,13 +268,13 @@ public class PathplanGUIDisplay implements Display {
 		final JLabel spreadLabel = new JLabel("Spread: ");
 		settingsPanel.add(spreadLabel);
 		final JFormattedTextField spreadField = new JFormattedTextField(doubleFormat);
-		spreadField.setValue(new Double(gridNode.spreadability));
+		spreadField.setValue(new Double(gridNode.getSpreadability()));
 		settingsPanel.add(spreadField);
 
 		final JLabel fuelLabel = new JLabel("Fuel: ");
 		settingsPanel.add(fuelLabel);
 		final JFormattedTextField fuelField = new JFormattedTextField(doubleFormat);
-		fuelField.setValue(new Double(gridNode.dangerFuel));
+		fuelField.setValue(new Double(gridNode.getDangerFuel()));
 		settingsPanel.add(fuelField);
 
 		final JLabel coverCountLabel = new JLabel("Times covered: ");
@@ -319,8 +319,8 @@ public class PathplanGUIDisplay implements Display {
 		okButton.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				gridNode.spreadability = ((Number) spreadField.getValue()).doubleValue();
-				gridNode.dangerFuel = ((Number) fuelField.getValue()).doubleValue();
+				gridNode.setSpreadability(((Number) spreadField.getValue()).doubleValue());
+				gridNode.setDangerFuel(((Number) fuelField.getValue()).doubleValue());
 				gridNode.setDangerProb(((Number) dangerField.getValue()).doubleValue());
 				gridNode.setCost(((Number) costField.getValue()).doubleValue());
 				gridNode.setCoverCount(((Number) coverCountSpinner.getValue()).intValue());